@@ -0,0 +1,96 @@
+package io.github.dutianze.yotsuba.file;
+
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.dto.UploadSessionDto;
+import io.github.dutianze.yotsuba.file.service.ChunkedUploadService;
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import jakarta.persistence.EntityNotFoundException;
+import java.io.InputStream;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 大文件分片上传接口
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/file-resource/uploads")
+@RequiredArgsConstructor
+public class ChunkedUploadController {
+
+  private static final String PASSWORD = "123";
+  private final ChunkedUploadService chunkedUploadService;
+
+  /**
+   * 初始化上传的请求 DTO
+   */
+  public record InitUploadRequest(
+      String filename,
+      String contentType,
+      long size,
+      String referenceId,
+      ReferenceCategory referenceCategory
+  ) {
+
+  }
+
+  @PostMapping
+  public ResponseEntity<UploadSessionDto> init(@RequestBody InitUploadRequest request)
+      throws Exception {
+    UploadSessionDto session = chunkedUploadService.init(request.filename(), request.contentType(),
+        request.size(), request.referenceId(), request.referenceCategory());
+    return ResponseEntity.status(HttpStatus.CREATED).body(session);
+  }
+
+  @PutMapping(value = "/{uploadId}/chunks/{index}",
+      consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  public ResponseEntity<UploadSessionDto> putChunk(@PathVariable String uploadId,
+      @PathVariable int index, InputStream body) throws Exception {
+    return ResponseEntity.ok(chunkedUploadService.putChunk(uploadId, index, body));
+  }
+
+  @GetMapping("/{uploadId}")
+  public ResponseEntity<UploadSessionDto> status(@PathVariable String uploadId) {
+    return ResponseEntity.ok(chunkedUploadService.status(uploadId));
+  }
+
+  @PostMapping("/{uploadId}/complete")
+  public ResponseEntity<String> complete(@PathVariable String uploadId) throws Exception {
+    FileResource fileResource = chunkedUploadService.complete(uploadId, PASSWORD);
+    return ResponseEntity.ok().body(fileResource.getId().getUrl());
+  }
+
+  @DeleteMapping("/{uploadId}")
+  public ResponseEntity<Void> abort(@PathVariable String uploadId) {
+    chunkedUploadService.abort(uploadId);
+    return ResponseEntity.noContent().build();
+  }
+
+  @ExceptionHandler(EntityNotFoundException.class)
+  public ResponseEntity<String> handleNotFound(EntityNotFoundException e) {
+    return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+  }
+
+  @ExceptionHandler(IllegalArgumentException.class)
+  public ResponseEntity<String> handleBadRequest(IllegalArgumentException e) {
+    log.warn("Rejected chunked upload request: {}", e.getMessage());
+    return ResponseEntity.badRequest().body(e.getMessage());
+  }
+
+  @ExceptionHandler(IllegalStateException.class)
+  public ResponseEntity<String> handleConflict(IllegalStateException e) {
+    return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+  }
+}
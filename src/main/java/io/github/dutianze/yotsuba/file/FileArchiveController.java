@@ -0,0 +1,111 @@
+package io.github.dutianze.yotsuba.file;
+
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.service.FileArchiveService;
+import io.github.dutianze.yotsuba.note.domain.NoteRepository;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 批量下载：把一篇笔记、一个合集或指定文件打包为 ZIP
+ * <p>
+ * 直接写 Servlet 输出流而不是返回 StreamingResponseBody，
+ * 大合集打包耗时较长，不受异步请求超时限制。
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/file-resource/archive")
+@RequiredArgsConstructor
+public class FileArchiveController {
+
+  /**
+   * SQLite 单条语句的参数个数有上限，按批查询
+   */
+  private static final int QUERY_BATCH_SIZE = 500;
+
+  private final FileArchiveService fileArchiveService;
+  private final FileResourceRepository fileResourceRepository;
+  private final NoteRepository noteRepository;
+
+  @GetMapping
+  public void download(@RequestParam(required = false) String noteId,
+      @RequestParam(required = false) String collectionId,
+      @RequestParam(required = false) List<String> ids,
+      HttpServletResponse response) throws IOException {
+    long specified = Stream.of(noteId, collectionId, ids).filter(p -> p != null).count();
+    if (specified != 1) {
+      response.sendError(HttpStatus.BAD_REQUEST.value(),
+          "exactly one of noteId, collectionId, ids is required");
+      return;
+    }
+
+    List<FileResource> files;
+    String archiveName;
+    if (noteId != null) {
+      files = fileResourceRepository.findByReferenceId(noteId);
+      archiveName = noteId;
+    } else if (collectionId != null) {
+      files = findByCollection(collectionId);
+      archiveName = collectionId;
+    } else {
+      files = findByIds(ids);
+      archiveName = "files";
+    }
+    if (files.isEmpty()) {
+      response.sendError(HttpStatus.NOT_FOUND.value());
+      return;
+    }
+
+    // 提交响应之前确认所有文件都能读取，之后的失败不会写出 ZIP 目录，以中断连接结束响应
+    FileArchiveService.Archive archive = fileArchiveService.prepare(files);
+
+    // 不设置 Content-Length，以分块方式边打包边发送
+    response.setContentType("application/zip");
+    response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+        .filename(URLEncoder.encode(archiveName + ".zip", StandardCharsets.UTF_8))
+        .build()
+        .toString());
+    OutputStream outputStream = response.getOutputStream();
+    fileArchiveService.writeZip(archive, outputStream);
+    outputStream.flush();
+  }
+
+  private List<FileResource> findByIds(List<String> ids) {
+    List<FileResource> files = new ArrayList<>();
+    for (int i = 0; i < ids.size(); i += QUERY_BATCH_SIZE) {
+      List<FileResourceId> batch = ids.subList(i, Math.min(i + QUERY_BATCH_SIZE, ids.size())).stream()
+          .map(FileResourceId::new)
+          .toList();
+      fileResourceRepository.findAllById(batch).forEach(files::add);
+    }
+    files.sort(null);
+    return files;
+  }
+
+  private List<FileResource> findByCollection(String collectionId) {
+    List<String> noteIds = noteRepository.findIdsByCollectionId(collectionId);
+    List<FileResource> files = new ArrayList<>();
+    for (int i = 0; i < noteIds.size(); i += QUERY_BATCH_SIZE) {
+      List<String> batch = noteIds.subList(i, Math.min(i + QUERY_BATCH_SIZE, noteIds.size()));
+      files.addAll(fileResourceRepository.findByReferenceIdIn(batch));
+    }
+    return files;
+  }
+}
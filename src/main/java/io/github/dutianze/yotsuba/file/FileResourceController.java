@@ -3,22 +3,36 @@ package io.github.dutianze.yotsuba.file;
 import io.github.dutianze.yotsuba.file.domain.FileResource;
 import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
 import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.service.ByteRange;
 import io.github.dutianze.yotsuba.file.service.FileService;
+import io.github.dutianze.yotsuba.file.service.ImageDerivativeService;
 import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
@@ -30,48 +44,67 @@ public class FileResourceController {
 
   private final FileService fileService;
   private static final String PASSWORD = "123";
+  private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
   private final FileResourceRepository fileResourceRepository;
+  private final ImageDerivativeService imageDerivativeService;
 
   @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
   public ResponseEntity<String> upload(@RequestParam MultipartFile file,
       @RequestParam(required = false) String referenceId,
-      @RequestParam(required = false) ReferenceCategory referenceCategory) throws Exception {
-    FileResource fileResource = fileService.upload(file, PASSWORD, referenceId, referenceCategory);
+      @RequestParam(required = false) ReferenceCategory referenceCategory,
+      @RequestParam(defaultValue = "true") boolean encrypt) throws Exception {
+    // encrypt=false 时以明文保存，适用于公开的封面等资源
+    FileResource fileResource = fileService.upload(file, encrypt ? PASSWORD : null, referenceId,
+        referenceCategory);
     return ResponseEntity.ok().body(fileResource.getId().getUrl());
   }
 
+  /**
+   * 下载文件。图片可通过 w、fmt、q 参数获取缩放或转码后的变体，例如 {@code ?w=320&fmt=jpeg&q=80}
+   */
   @GetMapping("/{id}")
-  public ResponseEntity<StreamingResponseBody> download(@PathVariable String id) {
+  public ResponseEntity<StreamingResponseBody> download(@PathVariable String id,
+      @RequestParam(required = false) Integer w,
+      @RequestParam(required = false) String fmt,
+      @RequestParam(required = false) Integer q,
+      @RequestHeader HttpHeaders requestHeaders, HttpServletRequest request,
+      ServletWebRequest webRequest) throws IOException {
     FileResource res = fileResourceRepository.findById(new FileResourceId(id)).orElse(null);
     if (res == null) {
       return ResponseEntity.notFound().build();
     }
-
-    StreamingResponseBody responseBody = fileService.downloadFile(res, null);
+    if (w != null || fmt != null || q != null) {
+      ResponseEntity<StreamingResponseBody> derivative = downloadDerivative(res, w, fmt, q,
+          requestHeaders, request, webRequest);
+      if (derivative != null || webRequest.isNotModified()) {
+        return derivative;
+      }
+    }
+    String candidate = fileService.getCandidateEncoding(res, null, res.getContentType());
+    if (webRequest.checkNotModified(buildETag(res, null, accepted(requestHeaders, candidate)),
+        lastModifiedMillis(res))) {
+      // 已设置 304 及校验器响应头，不读取文件
+      return null;
+    }
 
     ContentDisposition contentDisposition = this.buildDisposition(res.getContentType(),
         res.getFilename());
 
-    return ResponseEntity.ok()
-        .header(HttpHeaders.CONTENT_TYPE, res.getContentType())
-        .header(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable")
-        .header(HttpHeaders.CONTENT_DISPOSITION, contentDisposition.toString())
-        .body(responseBody);
+    return buildRangeResponse(res, null, res.getContentType(), candidate, contentDisposition,
+        requestHeaders, request);
   }
 
   @GetMapping("/{id}/thumbnail/{index}")
   public ResponseEntity<StreamingResponseBody> download(@PathVariable String id,
-      @PathVariable String index) {
+      @PathVariable String index, @RequestHeader HttpHeaders requestHeaders,
+      HttpServletRequest request, ServletWebRequest webRequest) throws IOException {
     FileResource res = fileResourceRepository.findById(new FileResourceId(id)).orElse(null);
     if (res == null) {
       return ResponseEntity.notFound().build();
     }
-
-    StreamingResponseBody responseBody = fileService.downloadFile(res, index);
-
-    String encoded = URLEncoder.encode(res.getFilename() + "_" + index, StandardCharsets.UTF_8);
-    ContentDisposition contentDisposition = ContentDisposition.inline().filename(encoded).build();
-
     String filename = res.getFilename().toLowerCase();
     MediaType contentType;
 
@@ -86,11 +119,256 @@ public class FileResourceController {
       contentType = MediaType.APPLICATION_OCTET_STREAM;
     }
 
-    return ResponseEntity.ok()
-        .header(HttpHeaders.CONTENT_TYPE, contentType.toString())
-        .header(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable")
-        .header(HttpHeaders.CONTENT_DISPOSITION, contentDisposition.toString())
-        .body(responseBody);
+    // 表格预览 HTML 压缩保存，客户端支持时原样返回
+    String candidate = fileService.getCandidateEncoding(res, index, contentType.toString());
+    if (webRequest.checkNotModified(buildETag(res, index, accepted(requestHeaders, candidate)),
+        lastModifiedMillis(res))) {
+      return null;
+    }
+
+    String encoded = URLEncoder.encode(res.getFilename() + "_" + index, StandardCharsets.UTF_8);
+    ContentDisposition contentDisposition = ContentDisposition.inline().filename(encoded).build();
+
+    return buildRangeResponse(res, index, contentType.toString(), candidate, contentDisposition,
+        requestHeaders, request);
+  }
+
+  /**
+   * 返回图片变体，文件不是图片或无法生成变体时返回 null，由调用方返回原图
+   */
+  private ResponseEntity<StreamingResponseBody> downloadDerivative(FileResource res, Integer width,
+      String format, Integer quality, HttpHeaders requestHeaders, HttpServletRequest request,
+      ServletWebRequest webRequest) throws IOException {
+    ImageDerivativeService.Variant variant;
+    try {
+      variant = imageDerivativeService.resolveVariant(res, width, format, quality).orElse(null);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().build();
+    }
+    if (variant == null) {
+      return null;
+    }
+    if (webRequest.checkNotModified(buildETag(res, variant.name(), null), lastModifiedMillis(res))) {
+      return null;
+    }
+    if (!imageDerivativeService.ensure(res, variant)) {
+      return null;
+    }
+
+    String baseName = StringUtils.stripFilenameExtension(res.getFilename());
+    String encoded = URLEncoder.encode(baseName + "." + variant.format(), StandardCharsets.UTF_8);
+    ContentDisposition contentDisposition = ContentDisposition.inline().filename(encoded).build();
+    return buildRangeResponse(res, variant.name(), variant.contentType(), null, contentDisposition,
+        requestHeaders, request);
+  }
+
+  /**
+   * 根据 Range / If-Range 请求头返回 200、206 或 416 响应。
+   * 内容可能压缩保存（candidateEncoding 不为 null）时读取文件头部得到实际的编码，
+   * 客户端接受该编码时原样返回压缩后的内容，长度与区间均针对压缩后的字节
+   */
+  private ResponseEntity<StreamingResponseBody> buildRangeResponse(FileResource res,
+      String index, String contentType, String candidateEncoding,
+      ContentDisposition contentDisposition, HttpHeaders requestHeaders,
+      HttpServletRequest request) throws IOException {
+    String eTag = buildETag(res, index, accepted(requestHeaders, candidateEncoding));
+    String storedEncoding = candidateEncoding == null ? null
+        : fileService.getContentEncoding(res, index, contentType);
+    String encoding = accepted(requestHeaders, storedEncoding);
+    boolean encoded = encoding != null;
+    long length = fileService.getContentLength(res, index, encoded);
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+    headers.set(HttpHeaders.CONTENT_DISPOSITION, contentDisposition.toString());
+    headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+    headers.setETag(eTag);
+    if (candidateEncoding != null) {
+      headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+    }
+    if (encoded) {
+      headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+    }
+    long lastModified = lastModifiedMillis(res);
+    if (lastModified >= 0) {
+      headers.setLastModified(lastModified);
+    }
+
+    List<ByteRange> ranges = resolveRanges(requestHeaders, res, eTag, length);
+    if (ranges != null && ranges.size() > 1 && encoded) {
+      // Content-Encoding 会作用于整个 multipart 响应体，多区间请求改为返回完整内容
+      ranges = null;
+    }
+    if (ranges == null) {
+      headers.set(HttpHeaders.CONTENT_TYPE, contentType);
+      headers.setContentLength(length);
+      if (trySendfile(request, res, index, 0, length)) {
+        return ResponseEntity.ok().headers(headers).build();
+      }
+      return ResponseEntity.ok()
+          .headers(headers)
+          .body(fileService.downloadFile(res, index, encoded));
+    }
+
+    if (ranges.isEmpty()) {
+      headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+      return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+          .headers(headers)
+          .build();
+    }
+
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.getFirst();
+      headers.set(HttpHeaders.CONTENT_TYPE, contentType);
+      headers.set(HttpHeaders.CONTENT_RANGE, range.toContentRange(length));
+      headers.setContentLength(range.length());
+      if (trySendfile(request, res, index, range.start(), range.end() + 1)) {
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers).build();
+      }
+      return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+          .headers(headers)
+          .body(fileService.downloadFileRange(res, index, range, encoded));
+    }
+
+    String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+    headers.set(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+    headers.setContentLength(
+        fileService.multipartContentLength(ranges, contentType, boundary, length));
+    return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+        .headers(headers)
+        .body(fileService.downloadFileRanges(res, index, ranges, contentType, boundary, length,
+            encoded));
+  }
+
+  /**
+   * 明文文件交给容器的 sendfile 直接从磁盘输出，内容不经过 JVM 堆。
+   * 容器不支持时返回 false，由 FileChannel.transferTo 输出。
+   */
+  private boolean trySendfile(HttpServletRequest request, FileResource res, String index,
+      long start, long end) {
+    if (!fileService.isPlainFile(res, index)
+        || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+      return false;
+    }
+    request.setAttribute(SENDFILE_FILENAME_ATTR,
+        fileService.getPlainFile(res).toAbsolutePath().toString());
+    request.setAttribute(SENDFILE_START_ATTR, start);
+    request.setAttribute(SENDFILE_END_ATTR, end);
+    return true;
+  }
+
+  /**
+   * 解析 Range 请求头
+   *
+   * @return null 表示忽略 Range 返回完整内容；空列表表示区间均无法满足（416）
+   */
+  List<ByteRange> resolveRanges(HttpHeaders requestHeaders, FileResource res, String eTag,
+      long length) {
+    List<HttpRange> httpRanges;
+    try {
+      httpRanges = requestHeaders.getRange();
+    } catch (IllegalArgumentException e) {
+      // 格式错误的 Range 按规范忽略
+      log.debug("Ignoring invalid Range header: {}", requestHeaders.getFirst(HttpHeaders.RANGE));
+      return null;
+    }
+    if (httpRanges.isEmpty() || !isIfRangeSatisfied(requestHeaders, res, eTag)) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<>();
+    for (HttpRange httpRange : httpRanges) {
+      if (length == 0) {
+        break;
+      }
+      long start = httpRange.getRangeStart(length);
+      long end = httpRange.getRangeEnd(length);
+      if (start < length && start <= end) {
+        ranges.add(new ByteRange(start, end));
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * If-Range 只有在校验器与当前资源一致时才允许返回部分内容，否则返回完整内容
+   */
+  boolean isIfRangeSatisfied(HttpHeaders requestHeaders, FileResource res, String eTag) {
+    String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("W/")) {
+      // If-Range 要求强比较，弱标签永远不匹配
+      return false;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(eTag);
+    }
+    try {
+      long ifRangeDate = requestHeaders.getFirstDate(HttpHeaders.IF_RANGE);
+      long lastModified = lastModifiedMillis(res);
+      return lastModified >= 0 && ifRangeDate / 1000 == lastModified / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * 强 ETag：内容寻址的文件按内容哈希，其余按文件 ID 加存储版本；预览图追加序号。
+   * 可能压缩保存的内容在客户端接受该编码时追加编码名：文件内容不变，因此同一 ETag 始终对应同一份字节，
+   * 实际未压缩时只是与未追加的 ETag 对应相同的字节。只依赖元数据，校验时无需读取文件
+   */
+  private static String buildETag(FileResource res, String index, String encoding) {
+    String base = res.getStorageKey().equals(res.getContentHash())
+        ? res.getContentHash()
+        : res.getId().id() + "-" + res.getStorageVersion();
+    return "\"" + base + (index == null ? "" : "-t" + index)
+        + (encoding == null ? "" : "-" + encoding) + "\"";
+  }
+
+  /**
+   * 客户端通过 Accept-Encoding 接受 encoding（q > 0，显式条目优先于 *）时返回 encoding，否则返回 null
+   */
+  private static String accepted(HttpHeaders requestHeaders, String encoding) {
+    if (encoding == null) {
+      return null;
+    }
+    Double explicit = null;
+    Double wildcard = null;
+    for (String value : requestHeaders.getValuesAsList(HttpHeaders.ACCEPT_ENCODING)) {
+      String[] parts = value.split(";");
+      String coding = parts[0].trim();
+      if (coding.equalsIgnoreCase(encoding)) {
+        explicit = quality(parts);
+      } else if ("*".equals(coding)) {
+        wildcard = quality(parts);
+      }
+    }
+    double quality = explicit != null ? explicit : wildcard != null ? wildcard : 0;
+    return quality > 0 ? encoding : null;
+  }
+
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String parameter = parts[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Last-Modified 取 updatedAt（缺失时取 createdAt），两者都没有时返回 -1
+   */
+  private static long lastModifiedMillis(FileResource res) {
+    LocalDateTime modified = res.getUpdatedAt() != null ? res.getUpdatedAt() : res.getCreatedAt();
+    return modified == null ? -1 : modified.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
   }
 
   private ContentDisposition buildDisposition(String contentType, String filename) {
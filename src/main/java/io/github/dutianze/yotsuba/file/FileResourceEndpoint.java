@@ -6,18 +6,22 @@ import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
 import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
 import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
 import io.github.dutianze.yotsuba.file.dto.FileResourceDto;
+import io.github.dutianze.yotsuba.file.dto.ThumbnailJobDto;
 import java.util.List;
 import io.github.dutianze.yotsuba.file.service.FileService;
+import io.github.dutianze.yotsuba.file.service.ThumbnailJobService;
 import io.github.dutianze.yotsuba.note.dto.PageDto;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import jakarta.annotation.security.PermitAll;
+import jakarta.persistence.EntityNotFoundException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
 
 @Slf4j
 @Endpoint
@@ -27,6 +31,7 @@ public class FileResourceEndpoint {
 
   private final FileResourceRepository fileResourceRepository;
   private final FileService fileService;
+  private final ThumbnailJobService thumbnailJobService;
 
   @Nonnull
   public PageDto<FileResourceDto> list(int page, int size) {
@@ -48,6 +53,27 @@ public class FileResourceEndpoint {
     return fileService.deleteFileFromDatabaseAndFileSystem(new FileResourceId(id));
   }
 
+  /**
+   * 查询文件最近一次预览图生成任务的状态，没有任务时返回 null
+   */
+  @Nullable
+  public ThumbnailJobDto getThumbnailJob(String id) {
+    return thumbnailJobService.findLatest(getFileResource(id).getStorageKey()).orElse(null);
+  }
+
+  /**
+   * 订阅文件预览图生成进度，每生成一张推送一次
+   */
+  @Nonnull
+  public Flux<ThumbnailJobDto> subscribeThumbnailJob(String id) {
+    return thumbnailJobService.subscribe(getFileResource(id).getStorageKey());
+  }
+
+  private FileResource getFileResource(String id) {
+    return fileResourceRepository.findById(new FileResourceId(id))
+        .orElseThrow(() -> new EntityNotFoundException("File not found: " + id));
+  }
+
   @Nonnull
   public PageDto<FileResourceDto> listByNoteId(String noteId, int page, int size) {
     Pageable pageable = PageRequest.of(page, size);
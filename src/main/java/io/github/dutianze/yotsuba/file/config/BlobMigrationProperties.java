@@ -0,0 +1,24 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 数据库内文件迁移到磁盘的配置
+ *
+ * @param batchSize          每批迁移的记录数
+ * @param batchPause         两批之间的停顿，给前台请求让出数据库
+ * @param maxBytesPerSecond  写入磁盘的速率上限
+ * @param vacuumPagesPerStep 每次增量 VACUUM 释放的页数
+ */
+@ConfigurationProperties(prefix = "modules.file.blob-migration")
+public record BlobMigrationProperties(
+    @DefaultValue("20") int batchSize,
+    @DefaultValue("500ms") Duration batchPause,
+    @DefaultValue("20MB") DataSize maxBytesPerSecond,
+    @DefaultValue("2000") int vacuumPagesPerStep
+) {
+
+}
@@ -0,0 +1,28 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 分片上传配置
+ *
+ * @param chunkSize     分片大小，会向上对齐到加密格式要求的对齐大小（认证分段大小），最大 1GB
+ * @param sessionTtl    上传会话创建后超过该时间仍未完成即视为放弃，会话与已写入的部分文件被清理
+ * @param sweepInterval 清理过期上传会话的间隔
+ */
+@ConfigurationProperties(prefix = "modules.file.upload")
+public record ChunkedUploadProperties(
+    @DefaultValue("8MB") DataSize chunkSize,
+    @DefaultValue("24h") Duration sessionTtl,
+    @DefaultValue("1h") Duration sweepInterval
+) {
+
+    public ChunkedUploadProperties {
+        if (chunkSize.toBytes() <= 0 || chunkSize.toBytes() > DataSize.ofGigabytes(1).toBytes()) {
+            throw new IllegalArgumentException("modules.file.upload.chunk-size must be between 1B and 1GB: "
+                                                   + chunkSize);
+        }
+    }
+}
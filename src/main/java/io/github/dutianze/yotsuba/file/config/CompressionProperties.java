@@ -0,0 +1,25 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 加密前压缩配置，只对分段认证加密（V7/V8）的新文件生效
+ *
+ * @param enabled      是否压缩
+ * @param contentTypes 可压缩的内容类型，支持 text/* 形式的通配
+ * @param sampleSize   上传时先压缩开头这么多字节估算压缩率
+ * @param maxRatio     压缩后与压缩前的大小之比不超过该值才压缩保存，否则原样加密
+ */
+@ConfigurationProperties(prefix = "modules.file.compression")
+public record CompressionProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue({"text/*", "application/json", "application/xml", "application/javascript", "image/svg+xml"})
+    List<String> contentTypes,
+    @DefaultValue("64KB") DataSize sampleSize,
+    @DefaultValue("0.9") double maxRatio
+) {
+
+}
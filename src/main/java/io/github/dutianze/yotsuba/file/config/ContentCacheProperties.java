@@ -0,0 +1,24 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 解密内容缓存配置
+ *
+ * @param heapBudget     堆内缓存的字节上限，0 表示关闭缓存
+ * @param offHeapBudget  堆外（direct buffer）二级缓存的字节上限，0 表示不启用；受 -XX:MaxDirectMemorySize 限制
+ * @param maxEntrySize   单个文件超过该大小时不缓存
+ * @param ttl            条目写入后的存活时间
+ */
+@ConfigurationProperties(prefix = "modules.file.content-cache")
+public record ContentCacheProperties(
+    @DefaultValue("64MB") DataSize heapBudget,
+    @DefaultValue("0") DataSize offHeapBudget,
+    @DefaultValue("1MB") DataSize maxEntrySize,
+    @DefaultValue("30m") Duration ttl
+) {
+
+}
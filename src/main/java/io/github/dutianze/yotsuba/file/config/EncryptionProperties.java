@@ -0,0 +1,25 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 分段并行加密与分段认证加密配置
+ *
+ * @param threads                  并行加密、解密的线程数，0 表示 CPU 核数，1 表示不并行
+ * @param segmentSize              每个并行加密分段的大小，向下取整到 AES 块大小或认证分段大小；
+ *                                 不足一个分段的输入在调用线程中加密
+ * @param authenticatedSegmentSize V7/V8 新文件中每个独立认证的分段的明文大小，已有文件的分段大小记录在头部，不超过 16MB
+ */
+@ConfigurationProperties(prefix = "modules.file.encryption")
+public record EncryptionProperties(
+    @DefaultValue("0") int threads,
+    @DefaultValue("4MB") DataSize segmentSize,
+    @DefaultValue("64KB") DataSize authenticatedSegmentSize
+) {
+
+    public int effectiveThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+}
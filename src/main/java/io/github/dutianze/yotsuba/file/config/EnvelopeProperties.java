@@ -0,0 +1,22 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * 信封加密（V5-V8）配置
+ *
+ * @param activeKeyId        包装新数据密钥使用的主密钥 ID
+ * @param masterKeys         主密钥 ID 到口令的映射，启动时各派生一次。轮换时新增一个 ID 并切换 activeKeyId，
+ *                           旧口令保留到重新包装完成。口令只从环境变量或外部配置读取，没有默认值
+ * @param rotationBatchSize  重新包装时每批读取的存储键数
+ */
+@ConfigurationProperties(prefix = "modules.file.envelope")
+public record EnvelopeProperties(
+    @DefaultValue("1") int activeKeyId,
+    Map<Integer, String> masterKeys,
+    @DefaultValue("100") int rotationBatchSize
+) {
+
+}
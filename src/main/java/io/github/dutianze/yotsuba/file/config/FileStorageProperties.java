@@ -0,0 +1,18 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * 文件存储配置
+ *
+ * @param plaintextCategories 以明文保存的引用类别（如公开的封面），这些文件不加密并通过 sendfile 直接输出
+ */
+@ConfigurationProperties(prefix = "modules.file.storage")
+public record FileStorageProperties(
+    @DefaultValue List<ReferenceCategory> plaintextCategories
+) {
+
+}
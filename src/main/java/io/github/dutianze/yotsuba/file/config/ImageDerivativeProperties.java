@@ -0,0 +1,25 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * 图片衍生图（缩放、转码）配置
+ *
+ * @param widths          允许的输出宽度，请求宽度向上取到最近的一档，避免任意宽度生成大量变体
+ * @param qualities       允许的 JPEG 质量，请求质量取最接近的一档，与宽度一样限制每张图片的变体数量
+ * @param defaultQuality  未指定 q 时的 JPEG 质量，应为 qualities 中的一档
+ * @param maxSourcePixels 原图像素数上限，超过时不生成，防止解码超大图片耗尽内存
+ * @param maxConcurrent   同时生成的衍生图数量上限，0 表示与 CPU 核数相同
+ */
+@ConfigurationProperties(prefix = "modules.file.image-derivative")
+public record ImageDerivativeProperties(
+    @DefaultValue({"160", "320", "640", "1280", "1920"}) List<Integer> widths,
+    @DefaultValue({"60", "75", "90"}) List<Integer> qualities,
+    @DefaultValue("75") int defaultQuality,
+    @DefaultValue("40000000") long maxSourcePixels,
+    @DefaultValue("0") int maxConcurrent
+) {
+
+}
@@ -0,0 +1,32 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 文件完整性校验配置
+ *
+ * @param macKey            计算 HMAC-SHA256 的密钥（Base64），更换后已有校验值全部失效
+ * @param scrubEnabled      是否按 interval 定时校验
+ * @param initialDelay      启动后首次校验前的等待时间
+ * @param interval          两次定时校验的间隔
+ * @param batchSize         每批校验的文件数
+ * @param maxBytesPerSecond 校验读取磁盘的速率上限
+ * @param backfill          是否为没有校验值的旧文件补算校验值（以当前内容为准）
+ * @param quarantine        校验失败的文件是否移入隔离目录，否则只记录
+ */
+@ConfigurationProperties(prefix = "modules.file.integrity")
+public record IntegrityProperties(
+    String macKey,
+    @DefaultValue("true") boolean scrubEnabled,
+    @DefaultValue("1h") Duration initialDelay,
+    @DefaultValue("7d") Duration interval,
+    @DefaultValue("100") int batchSize,
+    @DefaultValue("10MB") DataSize maxBytesPerSecond,
+    @DefaultValue("true") boolean backfill,
+    @DefaultValue("false") boolean quarantine
+) {
+
+}
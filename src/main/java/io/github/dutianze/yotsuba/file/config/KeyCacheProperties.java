@@ -0,0 +1,19 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * 派生密钥缓存配置
+ *
+ * @param maxEntries 最多缓存的密钥数量
+ * @param ttl        密钥在缓存中的存活时间
+ */
+@ConfigurationProperties(prefix = "modules.file.key-cache")
+public record KeyCacheProperties(
+    @DefaultValue("1024") int maxEntries,
+    @DefaultValue("30m") Duration ttl
+) {
+
+}
@@ -0,0 +1,23 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * V1/V2 存储布局迁移到 V3 的配置
+ *
+ * @param threads     并行迁移的线程数
+ * @param batchSize   每批读取的记录数
+ * @param batchPause  两批之间的停顿
+ * @param unlinkDelay 记录切换到 V3 后延迟多久删除旧位置的文件，让已读取旧记录的请求读完
+ */
+@ConfigurationProperties(prefix = "modules.file.layout-migration")
+public record LayoutMigrationProperties(
+    @DefaultValue("4") int threads,
+    @DefaultValue("200") int batchSize,
+    @DefaultValue("100ms") Duration batchPause,
+    @DefaultValue("30s") Duration unlinkDelay
+) {
+
+}
@@ -0,0 +1,29 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * 孤立文件回收配置
+ *
+ * @param enabled            是否按 interval 定时回收
+ * @param initialDelay       启动后首次回收前的等待时间
+ * @param interval           两次定时回收的间隔
+ * @param gracePeriod        引用移除或文件写入后至少经过多久才视为孤立，避免误删上传中或刚解除引用的文件
+ * @param batchSize          每批检查的记录或磁盘条目数
+ * @param batchPause         两批之间的停顿
+ * @param maxDeletesPerSecond 每秒最多删除的文件数，0 表示不限制
+ */
+@ConfigurationProperties(prefix = "modules.file.orphan-gc")
+public record OrphanGcProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("30m") Duration initialDelay,
+    @DefaultValue("24h") Duration interval,
+    @DefaultValue("7d") Duration gracePeriod,
+    @DefaultValue("100") int batchSize,
+    @DefaultValue("200ms") Duration batchPause,
+    @DefaultValue("20") int maxDeletesPerSecond
+) {
+
+}
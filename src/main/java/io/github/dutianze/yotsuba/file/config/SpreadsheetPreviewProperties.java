@@ -0,0 +1,21 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 表格预览配置
+ *
+ * @param maxRows           每个工作表预览页最多输出的行数
+ * @param maxColumns        每行最多输出的列数
+ * @param zipSpoolThreshold xlsx 中超过该大小的压缩条目解压到（加密的）临时文件而不是内存
+ */
+@ConfigurationProperties(prefix = "modules.file.spreadsheet-preview")
+public record SpreadsheetPreviewProperties(
+    @DefaultValue("1000") int maxRows,
+    @DefaultValue("50") int maxColumns,
+    @DefaultValue("8MB") DataSize zipSpoolThreshold
+) {
+
+}
@@ -0,0 +1,24 @@
+package io.github.dutianze.yotsuba.file.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 预览图渲染配置
+ *
+ * @param threads      并行渲染线程数，0 表示使用 CPU 核数，1 表示逐张串行渲染
+ * @param memoryBudget 同时驻留的文档模型与位图的内存上限，超出时渲染任务等待前面的任务释放
+ * @param maxDocumentSize 生成预览图的演示文稿大小上限，更大的文件不生成预览图
+ */
+@ConfigurationProperties(prefix = "modules.file.thumbnail-render")
+public record ThumbnailRenderProperties(
+    @DefaultValue("0") int threads,
+    @DefaultValue("512MB") DataSize memoryBudget,
+    @DefaultValue("64MB") DataSize maxDocumentSize
+) {
+
+  public int resolvedThreads() {
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+}
@@ -0,0 +1,70 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+/**
+ * 内容寻址存储（{@link StorageVersion#V4}）中的一份实际文件，多个 {@link FileResource} 可指向同一个 blob
+ */
+@Getter
+@Entity
+@Table(name = "file_blob")
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class FileBlob {
+
+  /**
+   * 明文内容的 SHA-256（十六进制）
+   */
+  @Id
+  @Column(name = "content_hash")
+  private String contentHash;
+
+  @Column(name = "file_size")
+  private Long fileSize;
+
+  /**
+   * 指向该 blob 的 FileResource 行数，由 FileBlobService 在创建与删除 FileResource 时维护，降为 0 时删除 blob
+   */
+  @Column(name = "ref_count")
+  private long refCount;
+
+  @Column(name = "storage_version")
+  @Enumerated(EnumType.STRING)
+  private StorageVersion storageVersion;
+
+  @Column(name = "thumbnail_index_list")
+  @Convert(converter = FileResource.IntegerListConverter.class)
+  private List<Integer> thumbnailIndexList = new ArrayList<>();
+
+  @Nullable
+  @CreationTimestamp
+  private LocalDateTime createdAt;
+
+  /**
+   * 创建时即被一个 FileResource 引用
+   */
+  public static FileBlob create(String contentHash, long fileSize, StorageVersion storageVersion,
+                                List<Integer> thumbnailIndexList) {
+    FileBlob blob = new FileBlob();
+    blob.contentHash = contentHash;
+    blob.fileSize = fileSize;
+    blob.refCount = 1;
+    blob.storageVersion = storageVersion;
+    blob.thumbnailIndexList = new ArrayList<>(thumbnailIndexList);
+    return blob;
+  }
+}
@@ -0,0 +1,48 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import java.util.List;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface FileBlobRepository extends JpaRepository<FileBlob, String> {
+
+    /**
+     * 原子地调整引用计数
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE FileBlob b
+        SET b.refCount = CASE WHEN b.refCount + :delta < 0 THEN 0 ELSE b.refCount + :delta END
+        WHERE b.contentHash = :contentHash
+        """)
+    int adjustRefCount(@Param("contentHash") String contentHash, @Param("delta") long delta);
+
+    /**
+     * blob 存在时引用计数加一，返回更新的行数
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE FileBlob b SET b.refCount = b.refCount + 1 WHERE b.contentHash = :contentHash")
+    int acquire(@Param("contentHash") String contentHash);
+
+    /**
+     * 引用计数为 0 时删除记录，返回删除的行数
+     */
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM FileBlob b WHERE b.contentHash = :contentHash AND b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("contentHash") String contentHash);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE FileBlob b SET b.thumbnailIndexList = :thumbnailIndexList WHERE b.contentHash = :contentHash")
+    int updateThumbnailIndexList(@Param("contentHash") String contentHash,
+                                 @Param("thumbnailIndexList") List<Integer> thumbnailIndexList);
+
+}
@@ -0,0 +1,102 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.ChecksumStatus;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.hypersistence.tsid.TSID;
+import jakarta.annotation.Nullable;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+/**
+ * 磁盘文件的 HMAC 校验值，文件本体与每张预览图各一条。
+ * path 为存储路径（如 {@code 存储键} 或 {@code 存储键/预览图序号}），对落盘的字节（含加密头部）计算
+ */
+@Getter
+@Entity
+@Table(name = "file_checksum")
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class FileChecksum {
+
+  @Id
+  private String id;
+
+  private String path;
+
+  @Column(name = "storage_key")
+  private String storageKey;
+
+  @Column(name = "storage_version")
+  @Enumerated(EnumType.STRING)
+  private StorageVersion storageVersion;
+
+  private String mac;
+
+  @Column(name = "file_size")
+  private long fileSize;
+
+  @Enumerated(EnumType.STRING)
+  private ChecksumStatus status;
+
+  /**
+   * 最近一次校验通过的时间，写入后尚未校验时为空
+   */
+  @Nullable
+  @Column(name = "verified_at")
+  private LocalDateTime verifiedAt;
+
+  @Nullable
+  @CreationTimestamp
+  private LocalDateTime createdAt;
+
+  @Nullable
+  @UpdateTimestamp
+  private LocalDateTime updatedAt;
+
+  public static FileChecksum create(String path, String storageKey, StorageVersion storageVersion, String mac,
+                                    long fileSize) {
+    FileChecksum checksum = new FileChecksum();
+    checksum.id = TSID.Factory.getTsid().toString();
+    checksum.path = path;
+    checksum.storageKey = storageKey;
+    checksum.update(storageVersion, mac, fileSize);
+    return checksum;
+  }
+
+  /**
+   * 文件被重新写入时更新校验值
+   */
+  public void update(StorageVersion storageVersion, String mac, long fileSize) {
+    this.storageVersion = storageVersion;
+    this.mac = mac;
+    this.fileSize = fileSize;
+    this.status = ChecksumStatus.OK;
+    this.verifiedAt = null;
+  }
+
+  public void verified() {
+    this.status = ChecksumStatus.OK;
+    this.verifiedAt = LocalDateTime.now();
+  }
+
+  public void markCorrupt() {
+    this.status = ChecksumStatus.CORRUPT;
+  }
+
+  public void markMissing() {
+    this.status = ChecksumStatus.MISSING;
+  }
+
+  public void markQuarantined() {
+    this.status = ChecksumStatus.QUARANTINED;
+  }
+}
@@ -0,0 +1,73 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.ChecksumStatus;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface FileChecksumRepository extends JpaRepository<FileChecksum, String> {
+
+    Optional<FileChecksum> findByPath(String path);
+
+    boolean existsByPath(String path);
+
+    /**
+     * 按 path 游标分页，供后台校验遍历
+     */
+    List<FileChecksum> findByPathGreaterThanOrderByPath(String afterPath, Limit limit);
+
+    List<FileChecksum> findByStatusNotOrderByUpdatedAtDesc(ChecksumStatus status);
+
+    long countByStatus(ChecksumStatus status);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM FileChecksum c WHERE c.path = :path")
+    int deleteByPath(@Param("path") String path);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        DELETE FROM FileChecksum c
+        WHERE c.storageKey = :storageKey
+          AND c.storageVersion = :storageVersion
+        """)
+    int deleteByStorageKeyAndStorageVersion(@Param("storageKey") String storageKey,
+                                            @Param("storageVersion") StorageVersion storageVersion);
+
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE FileChecksum c
+        SET c.path = :targetPath, c.storageKey = :targetKey, c.storageVersion = :targetVersion
+        WHERE c.path = :sourcePath
+        """)
+    int movePath(@Param("sourcePath") String sourcePath,
+                 @Param("targetPath") String targetPath,
+                 @Param("targetKey") String targetKey,
+                 @Param("targetVersion") StorageVersion targetVersion);
+
+    /**
+     * 存储键整体移动时，把 path 中的存储键前缀替换为新存储键
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE FileChecksum c
+        SET c.path = CONCAT(:targetKey, SUBSTRING(c.path, LENGTH(:sourceKey) + 1)),
+            c.storageKey = :targetKey,
+            c.storageVersion = :targetVersion
+        WHERE c.storageKey = :sourceKey
+        """)
+    int moveStorageKey(@Param("sourceKey") String sourceKey,
+                       @Param("targetKey") String targetKey,
+                       @Param("targetVersion") StorageVersion targetVersion);
+}
@@ -6,6 +6,7 @@ import io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType;
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
 import io.github.dutianze.yotsuba.note.domain.converter.JsonListConverter;
 import io.github.dutianze.yotsuba.note.domain.valueobject.MediaSeason;
+import io.github.dutianze.yotsuba.shared.common.FileReferenceId;
 import jakarta.annotation.Nullable;
 import jakarta.persistence.AttributeOverride;
 import jakarta.persistence.AttributeOverrides;
@@ -24,12 +25,14 @@ import java.util.List;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.UpdateTimestamp;
-import org.springframework.util.unit.DataSize;
 
 @Data
 @Entity
 @Table
+// 只更新修改过的列，后台任务直接改写的 storage_version 等列不会被持有旧实体的保存覆盖
+@DynamicUpdate
 @NoArgsConstructor
 public class FileResource implements Comparable<FileResource> {
 
@@ -58,7 +61,13 @@ public class FileResource implements Comparable<FileResource> {
   @Enumerated(EnumType.STRING)
   private StorageVersion storageVersion = StorageVersion.V1;
 
-  private byte[] data;
+  /**
+   * 明文内容的 SHA-256，V4 存储时指向 {@link FileBlob}
+   */
+  @Column(name = "content_hash")
+  private String contentHash;
+
+  // 旧版 DATABASE 文件的 data 列不映射到实体，避免每次查询都加载 BLOB，按需通过 DatabaseBlobReader 读取
 
   @Column(name = "thumbnail_index_list")
   @Convert(converter = IntegerListConverter.class)
@@ -80,33 +89,6 @@ public class FileResource implements Comparable<FileResource> {
   @UpdateTimestamp
   private LocalDateTime updatedAt;
 
-  public static FileResource create(ReferenceInfo reference, String filename, String contentType,
-                                    byte[] data, String passwordHash) {
-    FileResource fileResource = new FileResource();
-    fileResource.id = new FileResourceId();
-    fileResource.filename = filename;
-    fileResource.contentType = contentType;
-    fileResource.data = data;
-    fileResource.reference = reference;
-    DataSize dataSize = DataSize.ofBytes(data.length);
-    fileResource.fileSize = dataSize.toKilobytes();
-    fileResource.resourceType = ResourceType.LOCAL;
-    fileResource.passwordHash = passwordHash;
-    fileResource.storageVersion = StorageVersion.V1;
-    return fileResource;
-  }
-
-  public FileResource(FileResourceId fileResourceId, String filename, String contentType,
-                      byte[] data) {
-    this.id = fileResourceId;
-    this.filename = filename;
-    this.contentType = contentType;
-    this.data = data;
-    DataSize dataSize = DataSize.ofBytes(data.length);
-    this.fileSize = dataSize.toKilobytes();
-    this.createdAt = LocalDateTime.now();
-  }
-
   @Override
   public int compareTo(FileResource o) {
     if (this.createdAt == null || o.createdAt == null) {
@@ -115,6 +97,24 @@ public class FileResource implements Comparable<FileResource> {
     return this.createdAt.compareTo(o.createdAt);
   }
 
+  /**
+   * 文件在存储中的键：V4/V6/V8 按内容哈希保存，其余版本按文件 ID 保存
+   */
+  public String getStorageKey() {
+    return storageVersion != null && storageVersion.isContentAddressed() ? contentHash : id.id();
+  }
+
+  public boolean hasReference() {
+    return reference != null && reference.referenceId() != null && reference.referenceId().id() != null;
+  }
+
+  /**
+   * 当前引用是否来自 referenceId。一个文件只记录一个引用方，其他引用方移除引用时不应清空它
+   */
+  public boolean isReferencedBy(FileReferenceId referenceId) {
+    return hasReference() && reference.referenceId().equals(referenceId);
+  }
+
   public void removeReference() {
     this.reference = null;
   }
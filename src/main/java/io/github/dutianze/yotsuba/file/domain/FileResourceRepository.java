@@ -3,13 +3,18 @@ package io.github.dutianze.yotsuba.file.domain;
 import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
 import io.github.dutianze.yotsuba.file.dto.FileResourceDto;
 import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public interface FileResourceRepository extends JpaRepository<FileResource, FileResourceId> {
@@ -85,6 +90,33 @@ public interface FileResourceRepository extends JpaRepository<FileResource, File
         """, nativeQuery = true)
     List<String> findOrphanFileIds();
 
+    /**
+     * 按 ID 游标分页查找引用已移除且超过宽限期的文件 ID，引用移除时 updatedAt 会被刷新
+     */
+    @Query("""
+        SELECT f.id.id
+        FROM FileResource f
+        WHERE f.reference.referenceId.id IS NULL
+          AND f.id.id > :afterId
+          AND COALESCE(f.updatedAt, f.createdAt) < :cutoff
+        ORDER BY f.id.id
+        """)
+    List<String> findUnreferencedIds(@Param("afterId") String afterId,
+                                     @Param("cutoff") LocalDateTime cutoff,
+                                     Limit limit);
+
+    /**
+     * 按 ID 游标分页查找保存在磁盘上的文件
+     */
+    @Query("""
+        SELECT f
+        FROM FileResource f
+        WHERE f.resourceType = io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType.LOCAL
+          AND f.id.id > :afterId
+        ORDER BY f.id.id
+        """)
+    List<FileResource> findLocalAfter(@Param("afterId") String afterId, Limit limit);
+
     /**
      * 根据 referenceId 查找所有 FileResource
      */
@@ -95,4 +127,40 @@ public interface FileResourceRepository extends JpaRepository<FileResource, File
         """)
     List<FileResource> findByReferenceId(@Param("noteId") String noteId);
 
+    @Query("""
+        SELECT f
+        FROM FileResource f
+        WHERE f.reference.referenceId.id IN :referenceIds
+        ORDER BY f.createdAt
+        """)
+    List<FileResource> findByReferenceIdIn(@Param("referenceIds") Collection<String> referenceIds);
+
+    long countByContentHash(String contentHash);
+
+    /**
+     * 以 reference 为空为条件删除记录，返回 0 表示记录已被重新引用或已删除
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        DELETE FROM FileResource f
+        WHERE f.id.id = :id
+          AND f.reference.referenceId.id IS NULL
+        """)
+    int deleteIfUnreferenced(@Param("id") String id);
+
+    /**
+     * 按存储键更新预览图列表：V4 文件按内容哈希匹配，其余版本按文件 ID 匹配
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE FileResource f
+        SET f.thumbnailIndexList = :thumbnailIndexList
+        WHERE f.id.id = :storageKey
+           OR f.contentHash = :storageKey
+        """)
+    int updateThumbnailIndexListByStorageKey(@Param("storageKey") String storageKey,
+                                             @Param("thumbnailIndexList") List<Integer> thumbnailIndexList);
+
 }
@@ -0,0 +1,118 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus;
+import io.hypersistence.tsid.TSID;
+import jakarta.annotation.Nullable;
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+/**
+ * 后台预览图生成任务。按存储键（V4 为内容哈希，其余为文件 ID）生成，进度逐张写回
+ */
+@Getter
+@Entity
+@Table(name = "file_thumbnail_job")
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class ThumbnailJob {
+
+  private static final int MAX_ERROR_LENGTH = 1000;
+
+  @Id
+  private String id;
+
+  @Column(name = "storage_key")
+  private String storageKey;
+
+  @Column(name = "storage_version")
+  @Enumerated(EnumType.STRING)
+  private StorageVersion storageVersion;
+
+  /**
+   * 源文件是否加密保存，明文文件直接从 .plain 读取
+   */
+  private boolean encrypted;
+
+  private String filename;
+
+  @Enumerated(EnumType.STRING)
+  private ThumbnailJobStatus status;
+
+  private int attempts;
+
+  @Nullable
+  @Column(name = "total_count")
+  private Integer totalCount;
+
+  @Column(name = "thumbnail_index_list")
+  @Convert(converter = FileResource.IntegerListConverter.class)
+  private List<Integer> thumbnailIndexList = new ArrayList<>();
+
+  @Nullable
+  @Column(name = "last_error")
+  private String lastError;
+
+  @Nullable
+  @CreationTimestamp
+  private LocalDateTime createdAt;
+
+  @Nullable
+  @UpdateTimestamp
+  private LocalDateTime updatedAt;
+
+  public static ThumbnailJob create(String storageKey, StorageVersion storageVersion, boolean encrypted,
+                                    String filename) {
+    ThumbnailJob job = new ThumbnailJob();
+    job.id = TSID.Factory.getTsid().toString();
+    job.storageKey = storageKey;
+    job.storageVersion = storageVersion;
+    job.encrypted = encrypted;
+    job.filename = filename;
+    job.status = ThumbnailJobStatus.PENDING;
+    return job;
+  }
+
+  public void updateTotalCount(int totalCount) {
+    this.totalCount = totalCount;
+  }
+
+  public void updateThumbnailIndexList(List<Integer> thumbnailIndexList) {
+    this.thumbnailIndexList = new ArrayList<>(thumbnailIndexList);
+  }
+
+  public void succeed() {
+    this.status = ThumbnailJobStatus.DONE;
+    this.lastError = null;
+  }
+
+  /**
+   * 记录失败，未超过最大尝试次数时回到 PENDING 等待重试
+   *
+   * @return 是否还会重试
+   */
+  public boolean fail(String error, int maxAttempts) {
+    this.lastError = StringUtils.abbreviate(error, MAX_ERROR_LENGTH);
+    boolean retry = attempts < maxAttempts;
+    this.status = retry ? ThumbnailJobStatus.PENDING : ThumbnailJobStatus.FAILED;
+    return retry;
+  }
+
+  public void abandon(String error) {
+    this.lastError = StringUtils.abbreviate(error, MAX_ERROR_LENGTH);
+    this.status = ThumbnailJobStatus.FAILED;
+  }
+}
@@ -0,0 +1,47 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface ThumbnailJobRepository extends JpaRepository<ThumbnailJob, String> {
+
+    List<ThumbnailJob> findByStatusOrderByCreatedAtAsc(ThumbnailJobStatus status);
+
+    Optional<ThumbnailJob> findFirstByStorageKeyOrderByCreatedAtDesc(String storageKey);
+
+    /**
+     * 以 PENDING 为条件把任务标记为 RUNNING 并增加尝试次数
+     *
+     * @return 1 表示调用方取得了任务，0 表示任务已被其他线程取得或已结束
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE ThumbnailJob j
+        SET j.status = io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus.RUNNING,
+            j.attempts = j.attempts + 1
+        WHERE j.id = :id
+          AND j.status = io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus.PENDING
+        """)
+    int claim(@Param("id") String id);
+
+    /**
+     * 进程退出时仍在执行的任务重新放回队列
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+        UPDATE ThumbnailJob j
+        SET j.status = io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus.PENDING
+        WHERE j.status = io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus.RUNNING
+        """)
+    int requeueRunningJobs();
+}
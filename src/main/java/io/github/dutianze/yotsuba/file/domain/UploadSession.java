@@ -0,0 +1,81 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import jakarta.annotation.Nullable;
+import jakarta.persistence.AttributeOverride;
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+/**
+ * 分片上传会话。上传 ID 即最终的 FileResource ID，分片直接加密写入该 ID 对应的 .encrypted 文件
+ */
+@Getter
+@Entity
+@Table(name = "file_upload_session")
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+public class UploadSession {
+
+  @EmbeddedId
+  @AttributeOverride(name = "id", column = @Column(name = "id"))
+  private FileResourceId id;
+
+  private String filename;
+
+  @Column(name = "content_type")
+  private String contentType;
+
+  @Column(name = "total_size")
+  private long totalSize;
+
+  @Column(name = "chunk_size")
+  private int chunkSize;
+
+  @Column(name = "reference_id")
+  private String referenceId;
+
+  @Column(name = "reference_category")
+  @Enumerated(EnumType.STRING)
+  private ReferenceCategory referenceCategory;
+
+  @Nullable
+  @CreationTimestamp
+  private LocalDateTime createdAt;
+
+  public static UploadSession create(String filename, String contentType, long totalSize, int chunkSize,
+                                     String referenceId, ReferenceCategory referenceCategory) {
+    UploadSession session = new UploadSession();
+    session.id = new FileResourceId();
+    session.filename = filename;
+    session.contentType = contentType;
+    session.totalSize = totalSize;
+    session.chunkSize = chunkSize;
+    session.referenceId = referenceId;
+    session.referenceCategory = referenceCategory;
+    return session;
+  }
+
+  public int getTotalChunks() {
+    return (int) Math.max(1, (totalSize + chunkSize - 1) / chunkSize);
+  }
+
+  public long chunkOffset(int index) {
+    return (long) index * chunkSize;
+  }
+
+  /**
+   * 第 index 个分片的字节数，最后一个分片可能不足 chunkSize
+   */
+  public long chunkLength(int index) {
+    return Math.min(chunkSize, totalSize - chunkOffset(index));
+  }
+}
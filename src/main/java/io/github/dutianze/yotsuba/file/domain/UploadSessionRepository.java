@@ -0,0 +1,41 @@
+package io.github.dutianze.yotsuba.file.domain;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, FileResourceId> {
+
+    /**
+     * 记录已确认的分片，重复确认不会报错
+     */
+    @Transactional
+    @Modifying
+    @Query(value = """
+        INSERT OR IGNORE INTO file_upload_chunk (upload_id, chunk_index)
+        VALUES (:uploadId, :chunkIndex)
+        """, nativeQuery = true)
+    int acknowledgeChunk(@Param("uploadId") String uploadId, @Param("chunkIndex") int chunkIndex);
+
+    @Query(value = """
+        SELECT chunk_index
+        FROM file_upload_chunk
+        WHERE upload_id = :uploadId
+        ORDER BY chunk_index
+        """, nativeQuery = true)
+    List<Integer> findAcknowledgedChunks(@Param("uploadId") String uploadId);
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM file_upload_chunk WHERE upload_id = :uploadId", nativeQuery = true)
+    int deleteChunks(@Param("uploadId") String uploadId);
+
+    List<UploadSession> findByCreatedAtBefore(LocalDateTime createdAt);
+}
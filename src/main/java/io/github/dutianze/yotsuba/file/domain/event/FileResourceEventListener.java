@@ -32,6 +32,12 @@ public class FileResourceEventListener {
     if (fileResource == null) {
       return;
     }
+    if (!fileResource.isReferencedBy(event.fileReferenceId())) {
+      // 事件乱序或文件已被其他引用方使用，保留当前引用
+      logger.info("Reference of resourceId: {} is not held by {}, skipping", event.fileResourceId(),
+          event.fileReferenceId());
+      return;
+    }
 
     fileResource.removeReference();
     fileResourceRepository.save(fileResource);
@@ -0,0 +1,8 @@
+package io.github.dutianze.yotsuba.file.domain.valueobject;
+
+public enum ChecksumStatus {
+  OK,
+  CORRUPT,
+  MISSING,
+  QUARANTINED
+}
@@ -23,7 +23,8 @@ public record FileResourceId(String id) {
     if (StringUtils.isBlank(url)) {
       return null;
     }
-    String id = StringUtils.substringAfterLast(url, "/");
+    // 图片变体地址带有 w、q 等查询参数
+    String id = StringUtils.substringBefore(StringUtils.substringAfterLast(url, "/"), "?");
     if (StringUtils.isBlank(id)) {
       return null;
     }
@@ -37,6 +38,17 @@ public record FileResourceId(String id) {
         .toUriString();
   }
 
+  /**
+   * 图片缩放变体的地址，服务端把宽度向上取到允许的一档
+   */
+  public String getUrl(int width) {
+    return UriComponentsBuilder.fromPath(Constant.FILE_RESOURCE_URL_PREFIX)
+        .pathSegment(this.id)
+        .queryParam("w", width)
+        .build()
+        .toUriString();
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -1,8 +1,60 @@
 package io.github.dutianze.yotsuba.file.domain.valueobject;
 
+import java.util.Arrays;
+import java.util.List;
+
 public enum StorageVersion {
   V1,
   V2,
-  V3
-}
+  V3,
+  /**
+   * 内容寻址：按内容 SHA-256 保存，相同内容只保存一份
+   */
+  V4,
+  /**
+   * 与 V3 相同的目录布局，信封加密：每个文件使用随机数据密钥，数据密钥由主密钥以 AES-KW 包装后保存在文件头部
+   */
+  V5,
+  /**
+   * 与 V4 相同的内容寻址布局，信封加密
+   */
+  V6,
+  /**
+   * 与 V3 相同的目录布局，信封加密的数据密钥，内容按固定大小分段以 AES-GCM 独立加密和认证
+   */
+  V7,
+  /**
+   * 与 V4 相同的内容寻址布局，分段认证加密
+   */
+  V8;
+
+  /**
+   * 目录布局与之相同的版本，加密格式不影响文件位置
+   */
+  public StorageVersion layout() {
+    return switch (this) {
+      case V5, V7 -> V3;
+      case V6, V8 -> V4;
+      default -> this;
+    };
+  }
+
+  /**
+   * 保存在同一位置的所有版本
+   */
+  public List<StorageVersion> sharingLayout() {
+    return Arrays.stream(values()).filter(version -> version.layout() == layout()).toList();
+  }
 
+  public boolean isContentAddressed() {
+    return layout() == V4;
+  }
+
+  public boolean isEnvelope() {
+    return this == V5 || this == V6 || isSegmented();
+  }
+
+  public boolean isSegmented() {
+    return this == V7 || this == V8;
+  }
+}
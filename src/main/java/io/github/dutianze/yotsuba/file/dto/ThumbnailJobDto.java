@@ -0,0 +1,26 @@
+package io.github.dutianze.yotsuba.file.dto;
+
+import io.github.dutianze.yotsuba.file.domain.ThumbnailJob;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus;
+import java.util.List;
+import org.springframework.lang.NonNull;
+
+public record ThumbnailJobDto(
+    @NonNull
+    String jobId,
+    @NonNull
+    String storageKey,
+    @NonNull
+    ThumbnailJobStatus status,
+    Integer totalCount,
+    @NonNull
+    List<Integer> thumbnailIndexList,
+    int attempts,
+    String lastError
+) {
+
+  public static ThumbnailJobDto fromEntity(ThumbnailJob job) {
+    return new ThumbnailJobDto(job.getId(), job.getStorageKey(), job.getStatus(), job.getTotalCount(),
+        List.copyOf(job.getThumbnailIndexList()), job.getAttempts(), job.getLastError());
+  }
+}
@@ -0,0 +1,19 @@
+package io.github.dutianze.yotsuba.file.dto;
+
+import java.util.List;
+import org.springframework.lang.NonNull;
+
+public record UploadSessionDto(
+    @NonNull
+    String uploadId,
+    String filename,
+    long totalSize,
+    int chunkSize,
+    int totalChunks,
+    @NonNull
+    List<Integer> receivedChunks,
+    @NonNull
+    List<Integer> missingChunks
+) {
+
+}
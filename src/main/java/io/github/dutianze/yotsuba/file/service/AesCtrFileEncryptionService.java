@@ -1,71 +1,547 @@
 package io.github.dutianze.yotsuba.file.service;
 
+import io.github.dutianze.yotsuba.file.config.EncryptionProperties;
 import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongUnaryOperator;
 import java.util.stream.Stream;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Instant;
 
 
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class AesCtrFileEncryptionService {
 
     private static final String FILE_STORAGE_PATH = "files";
+    private static final String CONTENT_ADDRESSED_DIR = "cas";
+    private static final String QUARANTINE_DIR = "quarantine";
     private static final int BUFFER_SIZE = 8192;
     private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
     private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final int IV_LENGTH = 16;
     private static final int SALT_LENGTH = 16;
+    private static final int HEADER_LENGTH = SALT_LENGTH + IV_LENGTH;
+    private static final int ENVELOPE_HEADER_LENGTH = Integer.BYTES + EnvelopeKeyService.WRAPPED_KEY_LENGTH + IV_LENGTH;
+    private static final int AES_BLOCK_SIZE = 16;
     private static final int ITERATION_COUNT = 65_536;
     private static final int KEY_LENGTH_BITS = 256;
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    private static final int TRANSFER_BUFFER_POOL_SIZE = 16;
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
+    private final DerivedKeyCache derivedKeyCache;
+    private final FileChecksumService fileChecksumService;
+    private final EnvelopeKeyService envelopeKeyService;
+    private final EncryptionProperties encryptionProperties;
+    private final BlockingQueue<DecryptBuffers> bufferPool =
+        new ArrayBlockingQueue<>(TRANSFER_BUFFER_POOL_SIZE);
+    private final AtomicInteger directBuffersAllocated = new AtomicInteger();
+    private volatile ExecutorService encryptionPool;
+
+    /**
+     * 加密输入流并保存。输入超过一个分段时按分段并行加密，输出与逐字节顺序加密的结果完全相同
+     */
     public void encryptFile(InputStream inputStream, Path path, String password, StorageVersion storageVersion) throws Exception {
-        Path fullPath = getStoragePath(path, storageVersion);
-        Files.createDirectories(fullPath.getParent());
-        Path encryptedPath = fullPath.resolveSibling(fullPath.getFileName() + ".encrypted");
+        encryptFile(inputStream, path, password, storageVersion, ContentCoding.IDENTITY);
+    }
 
-        try (OutputStream out = createEncryptedOutputStream(encryptedPath, password)) {
+    /**
+     * 以 coding 压缩后加密保存。压缩只能在调用线程中顺序进行，因此压缩时不并行加密
+     */
+    public void encryptFile(InputStream inputStream, Path path, String password, StorageVersion storageVersion,
+                            ContentCoding coding) throws Exception {
+        byte[] firstSegment = new byte[0];
+        if (coding == ContentCoding.IDENTITY) {
+            int segmentSize = segmentSize(storageVersion);
+            firstSegment = inputStream.readNBytes(segmentSize);
+            if (firstSegment.length == segmentSize && encryptionProperties.effectiveThreads() > 1) {
+                encryptSegmented(firstSegment, inputStream, path, password, storageVersion);
+                return;
+            }
+        }
+
+        EncryptedFileOutputStream out = openEncryptedOutputStream(path, password, storageVersion, coding);
+        try {
+            out.write(firstSegment, 0, firstSegment.length);
             byte[] buffer = new byte[BUFFER_SIZE];
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
                 out.write(buffer, 0, bytesRead);
             }
+        } catch (Exception e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+
+        log.info("Encrypted file {} as single encrypted file ({})", out.targetPath, coding);
+    }
+
+    /**
+     * 分段并行加密：调用线程顺序读取输入，每个分段由线程池按其偏移量独立加密（CTR 算出计数器，分段认证格式使用随机 nonce），
+     * 以 FileChannel 按位置写入临时文件。多读一个分段以确定最后一段。
+     * HMAC 按分段顺序累积，同时在途的分段数限制为线程数的两倍以限制内存占用
+     */
+    private void encryptSegmented(byte[] firstSegment, InputStream in, Path path, String password,
+                                  StorageVersion storageVersion) throws Exception {
+        Path fullPath = getStoragePath(path, storageVersion);
+        Files.createDirectories(fullPath.getParent());
+        Path encryptedPath = fullPath.resolveSibling(fullPath.getFileName() + ".encrypted");
+        Path tempPath = encryptedPath.resolveSibling(encryptedPath.getFileName() + "." + System.nanoTime() + ".tmp");
+
+        byte[] header = newHeader(storageVersion, ContentCoding.IDENTITY);
+        SegmentEncryptor encryptor;
+        LongUnaryOperator positionOf;
+        if (storageVersion.isSegmented()) {
+            SegmentedGcmFormat.Params params = openSegmentedHeader(header);
+            encryptor = (offset, data, last) -> SegmentedGcmFormat.encryptSegments(params, offset, data, data.length,
+                                                                                  last);
+            positionOf = offset -> params.position(offset / params.segmentSize());
+        } else {
+            FileKey fileKey = openHeader(header, password, storageVersion);
+            encryptor = (offset, data, last) -> {
+                encryptSegment(fileKey.key(), fileKey.iv(), offset, data, 0, data.length);
+                return data;
+            };
+            positionOf = offset -> header.length + offset;
+        }
+        Mac mac = fileChecksumService.newMac();
+        mac.update(header);
+
+        ExecutorService pool = encryptionPool();
+        int maxInFlight = encryptionProperties.effectiveThreads() * 2;
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        long plaintextLength = 0;
+        int segments = 0;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(header), 0);
+            byte[] segment = firstSegment;
+            byte[] next = in.readNBytes(firstSegment.length);
+            while (segment.length > 0) {
+                byte[] data = segment;
+                long offset = plaintextLength;
+                boolean last = next.length == 0;
+                inFlight.add(pool.submit(() -> {
+                    byte[] cipherText = encryptor.encrypt(offset, data, last);
+                    writeFully(channel, ByteBuffer.wrap(cipherText), positionOf.applyAsLong(offset));
+                    return cipherText;
+                }));
+                plaintextLength += data.length;
+                segments++;
+                if (inFlight.size() >= maxInFlight) {
+                    mac.update(awaitSegment(inFlight.removeFirst()));
+                }
+                segment = next;
+                next = segment.length == firstSegment.length ? in.readNBytes(firstSegment.length) : new byte[0];
+            }
+            while (!inFlight.isEmpty()) {
+                mac.update(awaitSegment(inFlight.removeFirst()));
+            }
+        } catch (Exception e) {
+            inFlight.forEach(future -> future.cancel(true));
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        long storedSize = Files.size(tempPath);
+        Files.move(tempPath, encryptedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        fileChecksumService.record(path, storageVersion, mac.doFinal(), storedSize);
+        log.info("Encrypted file {} ({} bytes) in {} segments", encryptedPath, plaintextLength, segments);
+    }
+
+    @FunctionalInterface
+    private interface SegmentEncryptor {
+
+        byte[] encrypt(long offset, byte[] data, boolean last) throws GeneralSecurityException;
+    }
+
+    /**
+     * 原地加密 data[from, from + length)，这段数据位于明文偏移量 offset 处，offset 必须按 AES 块对齐
+     */
+    static void encryptSegment(SecretKey key, byte[] iv, long offset, byte[] data, int from, int length)
+        throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterForBlock(iv, offset / AES_BLOCK_SIZE)));
+        cipher.doFinal(data, from, length, data, from);
+    }
+
+    private static byte[] awaitSegment(Future<byte[]> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 并行加密的分段大小，按 {@link #getChunkAlignment} 对齐
+     */
+    private int segmentSize(StorageVersion storageVersion) {
+        int alignment = getChunkAlignment(storageVersion);
+        long size = encryptionProperties.segmentSize().toBytes() / alignment * alignment;
+        return Math.clamp(size, alignment, Integer.MAX_VALUE / alignment * alignment);
+    }
+
+    /**
+     * 分片写入的偏移量与分片大小必须是它的整数倍：CTR 格式为 AES 块大小，分段认证格式为认证分段大小
+     */
+    public int getChunkAlignment(StorageVersion storageVersion) {
+        return storageVersion.isSegmented() ? authenticatedSegmentSize() : AES_BLOCK_SIZE;
+    }
+
+    private int authenticatedSegmentSize() {
+        return (int) Math.clamp(encryptionProperties.authenticatedSegmentSize().toBytes(), AES_BLOCK_SIZE,
+                                SegmentedGcmFormat.MAX_SEGMENT_SIZE);
+    }
+
+    private ExecutorService encryptionPool() {
+        ExecutorService pool = encryptionPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = encryptionPool;
+                if (pool == null) {
+                    pool = Executors.newFixedThreadPool(encryptionProperties.effectiveThreads(), runnable -> {
+                        Thread thread = new Thread(runnable, "segment-encryption");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    encryptionPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ExecutorService pool = encryptionPool;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 打开加密输出流，供边生成边写入的场景使用（如表格预览）。
+     * 内容先写入临时文件，close 时原子替换目标文件；写入失败时调用 {@link EncryptedFileOutputStream#abort()} 丢弃
+     */
+    public EncryptedFileOutputStream openEncryptedOutputStream(Path path, String password,
+                                                               StorageVersion storageVersion) throws Exception {
+        return openEncryptedOutputStream(path, password, storageVersion, ContentCoding.IDENTITY);
+    }
+
+    /**
+     * 打开先以 coding 压缩再加密的输出流，只有分段认证加密格式能记录压缩编码
+     */
+    public EncryptedFileOutputStream openEncryptedOutputStream(Path path, String password,
+                                                               StorageVersion storageVersion,
+                                                               ContentCoding coding) throws Exception {
+        if (coding != ContentCoding.IDENTITY && !storageVersion.isSegmented()) {
+            throw new IllegalArgumentException(storageVersion + " cannot record content coding " + coding);
+        }
+        Path fullPath = getStoragePath(path, storageVersion);
+        Files.createDirectories(fullPath.getParent());
+        Path encryptedPath = fullPath.resolveSibling(fullPath.getFileName() + ".encrypted");
+        // 先写入临时文件再原子替换，读取方不会看到写了一半的文件
+        Path tempPath = encryptedPath.resolveSibling(encryptedPath.getFileName() + "." + System.nanoTime() + ".tmp");
+        // 落盘字节边写边计算 HMAC，提交后记录校验值，不必再读一遍
+        Mac mac = fileChecksumService.newMac();
+        return new EncryptedFileOutputStream(createEncryptedOutputStream(tempPath, password, storageVersion, mac,
+                                                                         coding),
+                                             tempPath,
+                                             encryptedPath,
+                                             committed -> fileChecksumService.record(path, storageVersion,
+                                                                                     mac.doFinal(),
+                                                                                     Files.size(committed)));
+    }
+
+    /**
+     * 以明文形式保存文件（不经过 AES），用于封面等非敏感资源，读取时可直接 sendfile
+     */
+    public void storePlainFile(InputStream inputStream, Path path, StorageVersion storageVersion) throws IOException {
+        Path plainPath = getPlainFilePath(path, storageVersion);
+        Files.createDirectories(plainPath.getParent());
+        Files.copy(inputStream, plainPath, StandardCopyOption.REPLACE_EXISTING);
+        log.info("Stored plaintext file {}", plainPath);
+        fileChecksumService.recordFile(path, storageVersion, plainPath);
+    }
+
+    public Path getPlainFilePath(Path path, StorageVersion storageVersion) {
+        return getStoragePath(path, storageVersion)
+            .resolveSibling(path.getFileName() + ".plain");
+    }
+
+    /**
+     * 使用 FileChannel.transferTo 输出明文文件的 [offset, offset + length) 区间
+     */
+    public void transferPlain(Path path, StorageVersion storageVersion, long offset, long length,
+                              OutputStream out) throws IOException {
+        Path plainPath = getPlainFilePath(path, storageVersion);
+        try (FileChannel channel = FileChannel.open(plainPath, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            long size = channel.size();
+            long end = length >= size - offset ? size : offset + length;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * 创建只包含头部的加密文件，之后可按明文偏移量并行写入各个分片。
+     * 分段认证格式的空文件没有分片可写，在此写入只包含标签的最后一段
+     */
+    public void createEncryptedFile(Path path, StorageVersion storageVersion, long plaintextLength)
+        throws IOException {
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+        Files.createDirectories(encryptedPath.getParent());
+        ByteBuffer header;
+        byte[] emptySegment = new byte[0];
+        try {
+            byte[] bytes = newHeader(storageVersion, ContentCoding.IDENTITY);
+            header = ByteBuffer.wrap(bytes);
+            if (storageVersion.isSegmented() && plaintextLength == 0) {
+                emptySegment = SegmentedGcmFormat.encryptSegments(openSegmentedHeader(bytes), 0, emptySegment, 0,
+                                                                  true);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to create header for " + encryptedPath, e);
+        }
+        try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            writeFully(channel, ByteBuffer.wrap(emptySegment), header.limit());
+        }
+        log.info("Created encrypted file {} for chunked writes", encryptedPath);
+    }
+
+    /**
+     * 将 in 中 length 字节的明文加密后写入明文偏移量 offset 处。offset 必须按 {@link #getChunkAlignment} 对齐，
+     * 分段位置由偏移量直接算出，因此分片可以乱序、并行写入。totalSize 用于确定最后一段。
+     * <p>
+     * 只支持分段认证格式：每次写入都使用新的随机 nonce，重传的分片不会复用密钥流。
+     * CTR 格式的计数器由偏移量决定，重传不同内容会复用密钥流，因此不支持分片写入
+     */
+    public void writeEncryptedChunk(Path path, StorageVersion storageVersion, long offset, InputStream in,
+                                    long length, long totalSize) throws Exception {
+        if (!storageVersion.isSegmented()) {
+            throw new IllegalArgumentException("Chunked writes require a segmented storage version: "
+                                                   + storageVersion);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+
+        try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            writeAuthenticatedChunk(channel, offset, in, length, totalSize);
+        }
+    }
+
+    /**
+     * 逐段加密分片并写入各段的位置。分段大小以文件头部为准
+     */
+    private void writeAuthenticatedChunk(FileChannel channel, long offset, InputStream in, long length,
+                                         long totalSize) throws Exception {
+        SegmentedGcmFormat.Params params = openSegmentedHeader(channel);
+        int segmentSize = params.segmentSize();
+        if (offset % segmentSize != 0) {
+            throw new IllegalArgumentException("offset must be segment aligned: " + offset);
+        }
+        byte[] plainText = new byte[segmentSize];
+        byte[] cipherText = new byte[segmentSize + SegmentedGcmFormat.SEGMENT_OVERHEAD];
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            int count = (int) Math.min(segmentSize, end - position);
+            if (in.readNBytes(plainText, 0, count) < count) {
+                throw new EOFException("Chunk ended " + (end - position) + " bytes early");
+            }
+            long index = position / segmentSize;
+            SegmentedGcmFormat.encrypt(params, index, position + count >= totalSize, plainText, 0, count,
+                                       cipherText, 0);
+            writeFully(channel, ByteBuffer.wrap(cipherText, 0, count + SegmentedGcmFormat.SEGMENT_OVERHEAD),
+                       params.position(index));
+            position += count;
+        }
+    }
+
+    /**
+     * 原子地将加密文件及其预览图目录移动到另一个存储位置。
+     * 目标预览图目录已存在时（相同内容并发写入）保留目标，丢弃源目录
+     */
+    public void moveEncryptedFile(Path source, StorageVersion sourceVersion, Path target,
+                                  StorageVersion targetVersion) throws IOException {
+        Path sourcePath = getEncryptedPath(source, sourceVersion);
+        Path targetPath = getEncryptedPath(target, targetVersion);
+        Files.createDirectories(targetPath.getParent());
+        Files.move(sourcePath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.info("Moved encrypted file {} to {}", sourcePath, targetPath);
+
+        Path sourceThumbnailDir = sourcePath.getParent().resolve(source.getFileName());
+        Path targetThumbnailDir = targetPath.getParent().resolve(target.getFileName());
+        boolean thumbnailsMoved = false;
+        if (Files.isDirectory(sourceThumbnailDir)) {
+            if (Files.exists(targetThumbnailDir)) {
+                deleteDirectory(sourceThumbnailDir);
+            } else {
+                Files.move(sourceThumbnailDir, targetThumbnailDir, StandardCopyOption.ATOMIC_MOVE);
+                thumbnailsMoved = true;
+                log.info("Moved thumbnail directory {} to {}", sourceThumbnailDir, targetThumbnailDir);
+            }
         }
 
-        log.info("Encrypted file {} as single encrypted file", encryptedPath);
+        // 分片上传的文件写入时没有校验值，移动到最终位置后补算
+        if (!fileChecksumService.move(source, target, targetVersion, thumbnailsMoved)) {
+            fileChecksumService.recordFile(target, targetVersion, targetPath);
+        }
+    }
+
+    /**
+     * 原子地把存储键的预览图目录移动到另一个存储键下，两个版本必须使用相同的加密格式。
+     * 目标预览图目录已存在时保留目标，丢弃源目录
+     *
+     * @return 预览图目录是否已移动
+     */
+    public boolean moveThumbnails(String sourceKey, StorageVersion sourceVersion, String targetKey,
+                                  StorageVersion targetVersion) throws IOException {
+        Path sourceThumbnailDir = getEncryptedPath(Path.of(sourceKey), sourceVersion).getParent().resolve(sourceKey);
+        Path targetThumbnailDir = getEncryptedPath(Path.of(targetKey), targetVersion).getParent().resolve(targetKey);
+        if (!Files.isDirectory(sourceThumbnailDir)) {
+            return false;
+        }
+        if (Files.exists(targetThumbnailDir)) {
+            deleteFile(sourceKey, sourceVersion);
+            return false;
+        }
+        Files.createDirectories(targetThumbnailDir.getParent());
+        Files.move(sourceThumbnailDir, targetThumbnailDir, StandardCopyOption.ATOMIC_MOVE);
+        fileChecksumService.moveThumbnails(sourceKey, targetKey, targetVersion);
+        log.info("Moved thumbnail directory {} to {}", sourceThumbnailDir, targetThumbnailDir);
+        return true;
     }
 
-    private OutputStream createEncryptedOutputStream(Path filePath, String password) throws Exception {
-        FileOutputStream fos = new FileOutputStream(filePath.toFile(), false);
+    /**
+     * 以硬链接把存储键的加密文件、明文文件和预览图目录复制到另一种存储布局，源位置保持可读。
+     * 文件系统不支持硬链接时退化为复制到临时文件再原子重命名。目标已有的文件（上次中断的迁移）会被替换
+     */
+    public void linkStorage(String storageKey, StorageVersion sourceVersion, StorageVersion targetVersion)
+        throws IOException {
+        Path key = Path.of(storageKey);
+        Path sourceEncrypted = getEncryptedPath(key, sourceVersion);
+        Path targetEncrypted = getEncryptedPath(key, targetVersion);
+        if (Files.exists(sourceEncrypted)) {
+            linkOrCopy(sourceEncrypted, targetEncrypted);
+        }
+        Path sourcePlain = getPlainFilePath(key, sourceVersion);
+        if (Files.exists(sourcePlain)) {
+            linkOrCopy(sourcePlain, getPlainFilePath(key, targetVersion));
+        }
 
+        Path sourceThumbnailDir = sourceEncrypted.getParent().resolve(storageKey);
+        Path targetThumbnailDir = targetEncrypted.getParent().resolve(storageKey);
+        if (Files.isDirectory(sourceThumbnailDir)) {
+            try (Stream<Path> paths = Files.walk(sourceThumbnailDir)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    Path target = targetThumbnailDir.resolve(sourceThumbnailDir.relativize(path).toString());
+                    if (Files.isDirectory(path)) {
+                        Files.createDirectories(target);
+                    } else {
+                        linkOrCopy(path, target);
+                    }
+                }
+            }
+        }
+        log.info("Linked storage {} from {} to {}", storageKey, sourceVersion, targetVersion);
+    }
+
+    private void linkOrCopy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
         try {
-            // 生成随机 salt 和 IV
-            byte[] salt = generateRandomBytes(SALT_LENGTH);
-            byte[] iv = generateRandomBytes(IV_LENGTH);
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Path tempPath = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+            try {
+                Files.copy(source, tempPath, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+        // 硬链接沿用源文件的修改时间，刷新后孤立文件回收在宽限期内不会把尚未提交的新位置当作孤立文件
+        Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+    }
 
-            // 写入头部：salt + IV
-            fos.write(salt);
-            fos.write(iv);
+    private OutputStream createEncryptedOutputStream(Path filePath, String password, StorageVersion storageVersion,
+                                                     Mac mac, ContentCoding coding) throws Exception {
+        OutputStream fos = new MacOutputStream(new FileOutputStream(filePath.toFile(), false), mac);
 
-            // 派生密钥并初始化加密器
-            SecretKey secretKey = generateKeyFromPassword(password, salt);
+        try {
+            byte[] header = newHeader(storageVersion, coding);
+            fos.write(header);
+            if (storageVersion.isSegmented()) {
+                return SegmentedGcmFormat.openEncodingStream(fos, openSegmentedHeader(header));
+            }
+
+            // 由头部得到密钥并初始化加密器
+            FileKey fileKey = openHeader(header, password, storageVersion);
             Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
+            cipher.init(Cipher.ENCRYPT_MODE, fileKey.key(), new IvParameterSpec(fileKey.iv()));
 
             return new CipherOutputStream(fos, cipher);
         } catch (Exception e) {
@@ -78,39 +554,110 @@ public class AesCtrFileEncryptionService {
     }
 
     public InputStream decryptFile(Path path, String password, StorageVersion storageVersion) throws Exception {
-      Path encryptedPath = getStoragePath(path, storageVersion)
-          .resolveSibling(path.getFileName() + ".encrypted");
+        return decryptFile(path, password, storageVersion, 0);
+    }
+
+    /**
+     * 从明文偏移量 offset 处开始解密。
+     * CTR 模式下任意块的计数器可以直接计算，因此只需定位到所在块，无需解密之前的数据。
+     */
+    public InputStream decryptFile(Path path, String password, StorageVersion storageVersion, long offset)
+        throws Exception {
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
 
         if (!Files.exists(encryptedPath)) {
             throw new IOException("Encrypted file not found: " + encryptedPath);
         }
 
-        return createDecryptedInputStream(encryptedPath, password);
+        return createDecryptedInputStream(encryptedPath, password, storageVersion, offset);
     }
 
-    private InputStream createDecryptedInputStream(Path filePath, String password) throws Exception {
-        FileInputStream fis = new FileInputStream(filePath.toFile());
+    /**
+     * 获取明文长度（加密文件大小减去头部）。压缩保存的文件读取并校验写入时记录的原始长度，不需要解压
+     */
+    public long getPlaintextLength(Path path, StorageVersion storageVersion) throws IOException {
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+        if (!Files.exists(encryptedPath)) {
+            throw new IOException("Encrypted file not found: " + encryptedPath);
+        }
+        if (storageVersion.isSegmented()) {
+            try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.READ)) {
+                if (SegmentedGcmFormat.readCoding(channel) == ContentCoding.IDENTITY) {
+                    return encodedLength(channel);
+                }
+                return SegmentedGcmFormat.readDecodedLength(channel, openSegmentedHeader(channel));
+            }
+        }
+        return Math.max(Files.size(encryptedPath) - headerLength(storageVersion), 0);
+    }
 
-        try {
-            // 读取头部：salt + IV
-            byte[] salt = new byte[SALT_LENGTH];
-            byte[] iv = new byte[IV_LENGTH];
+    /**
+     * 文件保存的内容编码，分段认证加密以外的版本不压缩
+     */
+    public ContentCoding getContentCoding(Path path, StorageVersion storageVersion) throws IOException {
+        if (!storageVersion.isSegmented()) {
+            return ContentCoding.IDENTITY;
+        }
+        try (FileChannel channel = FileChannel.open(getEncryptedPath(path, storageVersion),
+                                                    StandardOpenOption.READ)) {
+            return SegmentedGcmFormat.readCoding(channel);
+        }
+    }
 
-            if (fis.read(salt) != SALT_LENGTH || fis.read(iv) != IV_LENGTH) {
-                fis.close();
-                throw new IOException("Failed to read file header");
-            }
+    /**
+     * 编码后（压缩后）的内容长度，未压缩的文件与明文长度相同
+     */
+    public long getEncodedLength(Path path, StorageVersion storageVersion) throws IOException {
+        if (!storageVersion.isSegmented()) {
+            return getPlaintextLength(path, storageVersion);
+        }
+        try (FileChannel channel = FileChannel.open(getEncryptedPath(path, storageVersion),
+                                                    StandardOpenOption.READ)) {
+            return encodedLength(channel);
+        }
+    }
 
-            // 派生密钥并初始化解密器
-            SecretKey secretKey = generateKeyFromPassword(password, salt);
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
+    private static long encodedLength(FileChannel channel) throws IOException {
+        return SegmentedGcmFormat.readEncodedLength(channel);
+    }
+
+    private Path getEncryptedPath(Path path, StorageVersion storageVersion) {
+        return getStoragePath(path, storageVersion)
+            .resolveSibling(path.getFileName() + ".encrypted");
+    }
+
+    private InputStream createDecryptedInputStream(Path filePath, String password, StorageVersion storageVersion,
+                                                   long offset) throws Exception {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+
+        try {
+            if (storageVersion.isSegmented()) {
+                SegmentedGcmFormat.Params params = openSegmentedHeader(channel);
+                if (params.coding() == ContentCoding.IDENTITY) {
+                    // 只读取并校验 offset 所在分段及之后的分段
+                    return new SegmentedGcmFormat.SegmentInputStream(channel, params, offset);
+                }
+                // 压缩的内容只能从头解压
+                InputStream in = params.coding().decode(new SegmentedGcmFormat.SegmentInputStream(channel, params, 0));
+                skipFully(in, offset);
+                return in;
+            }
+            // 定位到 offset 所在的块，并计算该块的计数器
+            long blockIndex = offset / AES_BLOCK_SIZE;
+            int blockOffset = (int) (offset % AES_BLOCK_SIZE);
+            Cipher cipher = initCipher(channel, password, storageVersion, blockIndex, Cipher.DECRYPT_MODE);
+            channel.position(headerLength(storageVersion) + blockIndex * AES_BLOCK_SIZE);
 
-            return new CipherInputStream(fis, cipher);
+            InputStream in = new CipherInputStream(Channels.newInputStream(channel), cipher);
+            // 丢弃块内 offset 之前的字节
+            in.readNBytes(blockOffset);
+            return in;
         } catch (Exception e) {
             try {
-                fis.close();
+                channel.close();
             } catch (IOException suppressed) {
                 e.addSuppressed(suppressed);
             }
@@ -118,43 +665,515 @@ public class AesCtrFileEncryptionService {
         }
     }
 
+    /**
+     * 通过 FileChannel 解密 [offset, offset + length) 区间并写入 out。
+     * <p>
+     * 密文以大块读入可复用的 direct buffer，再用 {@link Cipher#update(ByteBuffer, ByteBuffer)}
+     * 解密到 heap buffer，直接以其底层数组写出，避免 CipherInputStream 的小缓冲区与多次拷贝。
+     */
+    public void transferDecrypted(Path path, String password, StorageVersion storageVersion,
+                                  long offset, long length, OutputStream out) throws Exception {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+
+        try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.READ)) {
+            if (storageVersion.isSegmented()) {
+                SegmentedGcmFormat.Params params = openSegmentedHeader(channel);
+                if (params.coding() == ContentCoding.IDENTITY) {
+                    transferAuthenticated(channel, params, offset, length, out);
+                } else {
+                    transferDecoded(channel, params, offset, length, out);
+                }
+                return;
+            }
+            long blockIndex = offset / AES_BLOCK_SIZE;
+            int skip = (int) (offset % AES_BLOCK_SIZE);
+            Cipher cipher = initCipher(channel, password, storageVersion, blockIndex, Cipher.DECRYPT_MODE);
+
+            int headerLength = headerLength(storageVersion);
+            long position = headerLength + blockIndex * AES_BLOCK_SIZE;
+            long remaining = Math.min(length, channel.size() - headerLength - offset);
+
+            DecryptBuffers buffers = acquireBuffers();
+            try {
+                ByteBuffer cipherText = buffers.cipherText();
+                ByteBuffer plainText = buffers.plainText();
+                while (remaining > 0) {
+                    cipherText.clear();
+                    cipherText.limit((int) Math.min(cipherText.capacity(), remaining + skip));
+                    int read = channel.read(cipherText, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    position += read;
+                    cipherText.flip();
+
+                    plainText.clear();
+                    cipher.update(cipherText, plainText);
+                    plainText.flip();
+
+                    int start = Math.min(skip, plainText.limit());
+                    skip -= start;
+                    int count = (int) Math.min(plainText.limit() - start, remaining);
+                    out.write(plainText.array(), plainText.arrayOffset() + start, count);
+                    remaining -= count;
+                }
+            } finally {
+                releaseBuffers(buffers);
+            }
+        }
+    }
+
+    /**
+     * 输出文件保存的编码后内容的 [offset, offset + length) 区间，压缩的文件不解压，可以原样作为 Content-Encoding 响应体
+     */
+    public void transferEncoded(Path path, String password, StorageVersion storageVersion,
+                                long offset, long length, OutputStream out) throws Exception {
+        if (!storageVersion.isSegmented()) {
+            transferDecrypted(path, password, storageVersion, offset, length, out);
+            return;
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        try (FileChannel channel = FileChannel.open(getEncryptedPath(path, storageVersion),
+                                                    StandardOpenOption.READ)) {
+            transferAuthenticated(channel, openSegmentedHeader(channel), offset, length, out);
+        }
+    }
+
+    /**
+     * 从头解密并解压，丢弃 offset 之前的内容
+     */
+    private static void transferDecoded(FileChannel channel, SegmentedGcmFormat.Params params, long offset,
+                                        long length, OutputStream out) throws IOException {
+        // 关闭时释放 Inflater 并关闭 channel，调用方再次关闭 channel 无副作用
+        try (InputStream in = params.coding().decode(
+            new SegmentedGcmFormat.SegmentInputStream(channel, params, 0))) {
+            if (!skipFully(in, offset)) {
+                return;
+            }
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * 跳过 count 字节，内容不足时返回 false
+     */
+    private static boolean skipFully(InputStream in, long count) throws IOException {
+        try {
+            in.skipNBytes(count);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 解密并校验 [offset, offset + length) 涉及的分段。后续分段由线程池预先读取、解密，
+     * 预读窗口为线程数的两倍；任一分段认证失败时抛出 IOException，已写出的内容均已通过校验
+     */
+    private void transferAuthenticated(FileChannel channel, SegmentedGcmFormat.Params params, long offset,
+                                       long length, OutputStream out) throws Exception {
+        long cipherTextLength = channel.size() - SegmentedGcmFormat.HEADER_LENGTH;
+        long segmentCount = params.segmentCount(cipherTextLength);
+        long end = Math.min(params.encodedLength(cipherTextLength), offset + Math.max(length, 0));
+        if (offset >= end) {
+            return;
+        }
+        int segmentSize = params.segmentSize();
+        long firstIndex = offset / segmentSize;
+        long lastIndex = (end - 1) / segmentSize;
+        int skip = (int) (offset % segmentSize);
+        long remaining = end - offset;
+
+        int threads = encryptionProperties.effectiveThreads();
+        ExecutorService pool = threads > 1 ? encryptionPool() : null;
+        Deque<Future<byte[]>> readAhead = new ArrayDeque<>();
+        long nextIndex = firstIndex;
+        try {
+            for (long index = firstIndex; index <= lastIndex; index++) {
+                byte[] plainText;
+                if (pool == null) {
+                    plainText = SegmentedGcmFormat.readSegment(channel, params, index, segmentCount);
+                } else {
+                    while (nextIndex <= lastIndex && readAhead.size() < threads * 2) {
+                        long segment = nextIndex++;
+                        readAhead.add(pool.submit(
+                            () -> SegmentedGcmFormat.readSegment(channel, params, segment, segmentCount)));
+                    }
+                    plainText = awaitSegment(readAhead.removeFirst());
+                }
+                int start = Math.min(skip, plainText.length);
+                skip = 0;
+                int count = (int) Math.min(plainText.length - start, remaining);
+                out.write(plainText, start, count);
+                remaining -= count;
+            }
+        } finally {
+            readAhead.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * 读取文件头部并初始化从第 blockIndex 个块开始的 CTR 加密/解密器
+     */
+    private Cipher initCipher(FileChannel channel, String password, StorageVersion storageVersion, long blockIndex,
+                              int mode) throws Exception {
+        FileKey fileKey = openHeader(readHeader(channel, storageVersion), password, storageVersion);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        IvParameterSpec ivSpec = new IvParameterSpec(counterForBlock(fileKey.iv(), blockIndex));
+        cipher.init(mode, fileKey.key(), ivSpec);
+        return cipher;
+    }
+
+    private static int headerLength(StorageVersion storageVersion) {
+        if (storageVersion != null && storageVersion.isSegmented()) {
+            return SegmentedGcmFormat.HEADER_LENGTH;
+        }
+        return storageVersion != null && storageVersion.isEnvelope() ? ENVELOPE_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    private static byte[] readHeader(FileChannel channel, StorageVersion storageVersion) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerLength(storageVersion));
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Failed to read file header");
+            }
+        }
+        return header.array();
+    }
+
+    /**
+     * 生成新文件的头部。V1-V4 为 salt + IV；信封加密为主密钥 ID + 包装后的随机数据密钥 + IV；
+     * 分段认证加密以压缩编码与分段大小代替 IV，nonce 随各段保存
+     */
+    private byte[] newHeader(StorageVersion storageVersion, ContentCoding coding) throws GeneralSecurityException {
+        if (storageVersion != null && storageVersion.isSegmented()) {
+            return ByteBuffer.allocate(SegmentedGcmFormat.HEADER_LENGTH)
+                .putInt(envelopeKeyService.activeKeyId())
+                .put(envelopeKeyService.wrap(envelopeKeyService.newDataKey()))
+                .putInt(SegmentedGcmFormat.segmentField(authenticatedSegmentSize(), coding))
+                .array();
+        }
+        byte[] iv = generateRandomBytes(IV_LENGTH);
+        if (storageVersion == null || !storageVersion.isEnvelope()) {
+            return ByteBuffer.allocate(HEADER_LENGTH).put(generateRandomBytes(SALT_LENGTH)).put(iv).array();
+        }
+        return ByteBuffer.allocate(ENVELOPE_HEADER_LENGTH)
+            .putInt(envelopeKeyService.activeKeyId())
+            .put(envelopeKeyService.wrap(envelopeKeyService.newDataKey()))
+            .put(iv)
+            .array();
+    }
+
+    /**
+     * 由头部得到文件的密钥和 IV：V1-V4 由密码和 salt 派生，信封加密解包数据密钥，不使用密码
+     */
+    private FileKey openHeader(byte[] header, String password, StorageVersion storageVersion)
+        throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte[] iv = new byte[IV_LENGTH];
+        if (storageVersion == null || !storageVersion.isEnvelope()) {
+            byte[] salt = new byte[SALT_LENGTH];
+            buffer.get(salt).get(iv);
+            return new FileKey(generateKeyFromPassword(password, salt), iv);
+        }
+        int keyId = buffer.getInt();
+        byte[] wrappedKey = new byte[EnvelopeKeyService.WRAPPED_KEY_LENGTH];
+        buffer.get(wrappedKey).get(iv);
+        return new FileKey(envelopeKeyService.unwrap(keyId, wrappedKey), iv);
+    }
+
+    private record FileKey(SecretKey key, byte[] iv) {
+
+    }
+
+    /**
+     * 由分段认证加密的头部得到数据密钥、分段大小与压缩编码
+     */
+    private SegmentedGcmFormat.Params openSegmentedHeader(byte[] header) throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        int keyId = buffer.getInt();
+        byte[] wrappedKey = new byte[EnvelopeKeyService.WRAPPED_KEY_LENGTH];
+        buffer.get(wrappedKey);
+        int segmentField = buffer.getInt();
+        int segmentSize = SegmentedGcmFormat.segmentSize(segmentField);
+        if (segmentSize <= 0) {
+            throw new GeneralSecurityException("Invalid segment size: " + segmentSize);
+        }
+        ContentCoding coding;
+        try {
+            coding = SegmentedGcmFormat.coding(segmentField);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException(e.getMessage(), e);
+        }
+        return new SegmentedGcmFormat.Params(envelopeKeyService.unwrap(keyId, wrappedKey), segmentSize, coding);
+    }
+
+    private SegmentedGcmFormat.Params openSegmentedHeader(FileChannel channel) throws IOException {
+        try {
+            return openSegmentedHeader(readHeader(channel, StorageVersion.V7));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to open segmented header", e);
+        }
+    }
+
+    /**
+     * 以当前主密钥重新包装存储键下所有信封加密文件（本体与预览图）的数据密钥，只改写头部，不重新加密内容
+     *
+     * @return 重新包装的文件数
+     */
+    public int rewrapStorageKey(String storageKey, StorageVersion storageVersion) throws IOException {
+        if (!storageVersion.isEnvelope()) {
+            return 0;
+        }
+        Path key = Path.of(storageKey);
+        List<Path> paths = new ArrayList<>();
+        paths.add(key);
+        Path thumbnailDir = getEncryptedPath(key, storageVersion).getParent().resolve(storageKey);
+        if (Files.isDirectory(thumbnailDir)) {
+            try (Stream<Path> entries = Files.list(thumbnailDir)) {
+                entries.map(entry -> entry.getFileName().toString())
+                    .filter(name -> name.endsWith(".encrypted"))
+                    .map(name -> key.resolve(name.substring(0, name.length() - ".encrypted".length())))
+                    .forEach(paths::add);
+            }
+        }
+        int rewrapped = 0;
+        for (Path path : paths) {
+            if (rewrapHeader(path, storageVersion)) {
+                rewrapped++;
+            }
+        }
+        return rewrapped;
+    }
+
+    /**
+     * 新头部写入同目录下的副本，落盘并计算校验值后原子重命名覆盖原文件。进程崩溃或写入中断时原文件保持不变，
+     * 旧主密钥包装的数据密钥始终可用；并发读取要么读到完整的旧文件，要么读到完整的新文件
+     */
+    private boolean rewrapHeader(Path path, StorageVersion storageVersion) throws IOException {
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+        if (!Files.exists(encryptedPath)) {
+            return false;
+        }
+        ByteBuffer replacement;
+        try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.wrap(readHeader(channel, storageVersion));
+            int keyId = header.getInt();
+            if (keyId == envelopeKeyService.activeKeyId()) {
+                return false;
+            }
+            byte[] wrappedKey = new byte[EnvelopeKeyService.WRAPPED_KEY_LENGTH];
+            header.get(wrappedKey);
+            // 主密钥 ID 与包装后的数据密钥等长替换，IV 与密文不变
+            replacement = ByteBuffer.allocate(Integer.BYTES + EnvelopeKeyService.WRAPPED_KEY_LENGTH)
+                .putInt(envelopeKeyService.activeKeyId())
+                .put(envelopeKeyService.wrap(envelopeKeyService.unwrap(keyId, wrappedKey)))
+                .flip();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to rewrap " + encryptedPath, e);
+        }
+        Path tempPath = encryptedPath.resolveSibling(encryptedPath.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            Files.copy(encryptedPath, tempPath, StandardCopyOption.COPY_ATTRIBUTES);
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                writeFully(channel, replacement, 0);
+                channel.force(true);
+            }
+            // 头部改变后校验值随之改变，在替换前按副本计算
+            byte[] mac = fileChecksumService.computeMac(tempPath, read -> {
+            });
+            long size = Files.size(tempPath);
+            // 替换文件与记录新校验值在同一把锁内完成，后台校验不会看到新文件与旧校验值
+            Lock lock = fileChecksumService.lock(path);
+            lock.lock();
+            try {
+                if (!Files.exists(encryptedPath)) {
+                    return false;
+                }
+                Files.move(tempPath, encryptedPath, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+                fileChecksumService.record(path, storageVersion, mac, size);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        log.info("Rewrapped data key of {}", encryptedPath);
+        return true;
+    }
+
+    /**
+     * direct buffer 最多分配 TRANSFER_BUFFER_POOL_SIZE 对，全部借出时临时使用 heap buffer，
+     * 并发下载再多也不会持续分配难以回收的堆外内存
+     */
+    private DecryptBuffers acquireBuffers() {
+        DecryptBuffers buffers = bufferPool.poll();
+        if (buffers != null) {
+            return buffers;
+        }
+        if (directBuffersAllocated.getAndUpdate(n -> n < TRANSFER_BUFFER_POOL_SIZE ? n + 1 : n)
+            < TRANSFER_BUFFER_POOL_SIZE) {
+            return new DecryptBuffers(ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE),
+                                      ByteBuffer.allocate(TRANSFER_BUFFER_SIZE), true);
+        }
+        return new DecryptBuffers(ByteBuffer.allocate(TRANSFER_BUFFER_SIZE),
+                                  ByteBuffer.allocate(TRANSFER_BUFFER_SIZE), false);
+    }
+
+    private void releaseBuffers(DecryptBuffers buffers) {
+        if (buffers.pooled()) {
+            bufferPool.offer(buffers);
+        }
+    }
+
+    /**
+     * 密文 buffer 与明文 heap buffer 组成的一对缓冲区，池中的一对密文 buffer 为 direct buffer，按对复用
+     */
+    private record DecryptBuffers(ByteBuffer cipherText, ByteBuffer plainText, boolean pooled) {
+
+    }
+
+    /**
+     * 计算第 blockIndex 个块的计数器：IV 视为 128 位大端整数加上块序号（与 SunJCE CTR 的递增方式一致）
+     */
+    static byte[] counterForBlock(byte[] iv, long blockIndex) {
+        byte[] counter = iv.clone();
+        long carry = blockIndex;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
     public boolean deleteFile(FileResourceId fileResourceId, StorageVersion storageVersion) {
+        return deleteFile(fileResourceId.id(), storageVersion);
+    }
+
+    /**
+     * 删除存储键对应的文件及其预览图目录。V4 的存储键为内容哈希，其余版本为文件 ID
+     */
+    public boolean deleteFile(String storageKey, StorageVersion storageVersion) {
         try {
             boolean deleted = false;
-            Path encryptedFilePath = getEncryptedFilePath(fileResourceId, storageVersion);
-            Path dirPath = encryptedFilePath.getParent().resolve(fileResourceId.id());
+            Path encryptedFilePath = getEncryptedPath(Path.of(storageKey), storageVersion);
+            Path plainFilePath = getPlainFilePath(Path.of(storageKey), storageVersion);
+            Path dirPath = encryptedFilePath.getParent().resolve(storageKey);
             if (Files.exists(encryptedFilePath)) {
                 Files.delete(encryptedFilePath);
                 log.info("Deleted encrypted file: {}", encryptedFilePath);
                 deleted = true;
             }
+            if (Files.exists(plainFilePath)) {
+                Files.delete(plainFilePath);
+                log.info("Deleted plaintext file: {}", plainFilePath);
+                deleted = true;
+            }
             if (Files.exists(dirPath) && Files.isDirectory(dirPath)) {
-                try (Stream<Path> paths = Files.walk(dirPath)) {
-                    paths.sorted(Comparator.reverseOrder())
-                        .forEach(path -> {
-                            try {
-                                Files.delete(path);
-                                log.info("Deleted: {}", path);
-                            } catch (Exception ex) {
-                                log.error("Failed to delete {}", path, ex);
-                            }
-                        });
-                }
+                deleteDirectory(dirPath);
                 deleted = true;
             }
+            // 同一布局的其他版本保存在相同位置
+            for (StorageVersion version : storageVersion.sharingLayout()) {
+                fileChecksumService.delete(storageKey, version);
+            }
             return deleted;
         } catch (Exception e) {
-            log.error("Failed to delete file: {}", fileResourceId.id(), e);
+            log.error("Failed to delete file: {}", storageKey, e);
         return false;
     }
     }
 
-    private Path getEncryptedFilePath(FileResourceId fileResourceId, StorageVersion storageVersion) {
-        return getStoragePath(Path.of(fileResourceId.id()), storageVersion)
-            .resolveSibling(fileResourceId.id() + ".encrypted");
+    /**
+     * 存储键占用的磁盘空间：加密文件、明文文件与预览图目录之和
+     */
+    public long getStoredSize(String storageKey, StorageVersion storageVersion) throws IOException {
+        Path encryptedFilePath = getEncryptedPath(Path.of(storageKey), storageVersion);
+        Path plainFilePath = getPlainFilePath(Path.of(storageKey), storageVersion);
+        Path dirPath = encryptedFilePath.getParent().resolve(storageKey);
+        long size = 0;
+        if (Files.isRegularFile(encryptedFilePath)) {
+            size += Files.size(encryptedFilePath);
+        }
+        if (Files.isRegularFile(plainFilePath)) {
+            size += Files.size(plainFilePath);
+        }
+        if (Files.isDirectory(dirPath)) {
+            try (Stream<Path> paths = Files.walk(dirPath)) {
+                size += paths.filter(Files::isRegularFile)
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 文件存储根目录，V1 文件直接位于其下，V2/V3 位于按 ID 前缀划分的子目录
+     */
+    public Path getStorageRoot() {
+        return Path.of(FILE_STORAGE_PATH);
+    }
+
+    /**
+     * 实际保存存储路径内容的文件：加密文件不存在时返回明文文件，两者都不存在时返回加密文件路径
+     */
+    public Path resolveStoredFile(Path path, StorageVersion storageVersion) {
+        Path encryptedPath = getEncryptedPath(path, storageVersion);
+        if (Files.exists(encryptedPath)) {
+            return encryptedPath;
+        }
+        Path plainPath = getPlainFilePath(path, storageVersion);
+        return Files.exists(plainPath) ? plainPath : encryptedPath;
+    }
+
+    /**
+     * 校验失败的文件移入的隔离目录，保留相对存储根目录的路径
+     */
+    public Path getQuarantineRoot() {
+        return Path.of(FILE_STORAGE_PATH, QUARANTINE_DIR);
+    }
+
+    /**
+     * V4 内容寻址存储的根目录
+     */
+    public Path getContentAddressedRoot() {
+        return Path.of(FILE_STORAGE_PATH, CONTENT_ADDRESSED_DIR);
     }
 
-    private Path getStoragePath(Path path, StorageVersion storageVersion) {
+    private void deleteDirectory(Path dirPath) throws IOException {
+        try (Stream<Path> paths = Files.walk(dirPath)) {
+            paths.sorted(Comparator.reverseOrder())
+                .forEach(path -> {
+                    try {
+                        Files.delete(path);
+                        log.info("Deleted: {}", path);
+                    } catch (Exception ex) {
+                        log.error("Failed to delete {}", path, ex);
+                    }
+                });
+        }
+    }
+
+    private Path getStoragePath(Path path, StorageVersion version) {
+        // 信封加密与对应的旧版本共用目录布局
+        StorageVersion storageVersion = version == null ? null : version.layout();
         if (storageVersion == StorageVersion.V2) {
             // 获取路径的第一部分（文件ID）
             Path firstPart = path.getName(0);
@@ -170,6 +1189,15 @@ public class AesCtrFileEncryptionService {
                     return basePath.resolve(id);
                 }
             }
+        } else if (storageVersion == StorageVersion.V4) {
+            // 获取路径的第一部分（内容哈希）
+            String hash = path.getName(0).toString();
+            if (hash.length() >= 4) {
+                // 构建路径：files/cas/哈希前2位/哈希3-4位/完整路径
+                Path basePath = Path.of(FILE_STORAGE_PATH, CONTENT_ADDRESSED_DIR, hash.substring(0, 2),
+                    hash.substring(2, 4));
+                return basePath.resolve(path);
+            }
         } else if (storageVersion == StorageVersion.V3) {
             // 获取路径的第一部分（文件ID）
             Path firstPart = path.getName(0);
@@ -190,7 +1218,11 @@ public class AesCtrFileEncryptionService {
         return Path.of(FILE_STORAGE_PATH).resolve(path);
     }
 
-    private SecretKey generateKeyFromPassword(String password, byte[] salt)
+    private SecretKey generateKeyFromPassword(String password, byte[] salt) throws GeneralSecurityException {
+        return derivedKeyCache.get(password, salt, AesCtrFileEncryptionService::deriveKeyBytes);
+    }
+
+    private static byte[] deriveKeyBytes(String password, byte[] salt)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
         PBEKeySpec spec = new PBEKeySpec(
                 password.toCharArray(),
@@ -198,9 +1230,12 @@ public class AesCtrFileEncryptionService {
                 ITERATION_COUNT,
                 KEY_LENGTH_BITS
         );
-        SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
-        byte[] keyBytes = keyFactory.generateSecret(spec).getEncoded();
-        return new SecretKeySpec(keyBytes, "AES");
+        try {
+            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
+            return keyFactory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
     }
 
     private static byte[] generateRandomBytes(int length) {
@@ -208,4 +1243,92 @@ public class AesCtrFileEncryptionService {
         SECURE_RANDOM.nextBytes(bytes);
         return bytes;
     }
+
+    /**
+     * 写入临时文件的加密输出流，close 时原子替换目标文件，abort 时删除临时文件
+     */
+    public static final class EncryptedFileOutputStream extends FilterOutputStream {
+
+        private final Path tempPath;
+        private final Path targetPath;
+        private final CommitListener commitListener;
+        private boolean aborted;
+        private boolean closed;
+
+        private EncryptedFileOutputStream(OutputStream out, Path tempPath, Path targetPath,
+                                          CommitListener commitListener) {
+            super(out);
+            this.tempPath = tempPath;
+            this.targetPath = targetPath;
+            this.commitListener = commitListener;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void abort() {
+            aborted = true;
+            try {
+                close();
+            } catch (IOException e) {
+                log.warn("Failed to discard {}", tempPath, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+                if (!aborted) {
+                    Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                    try {
+                        commitListener.committed(targetPath);
+                    } catch (IOException e) {
+                        // 文件已提交，回调失败不影响写入结果
+                        log.warn("Commit listener failed for {}", targetPath, e);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface CommitListener {
+
+        void committed(Path targetPath) throws IOException;
+    }
+
+    /**
+     * 写入的同时更新 HMAC
+     */
+    private static final class MacOutputStream extends FilterOutputStream {
+
+        private final Mac mac;
+
+        private MacOutputStream(OutputStream out, Mac mac) {
+            super(out);
+            this.mac = mac;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mac.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mac.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单生产者、单消费者的有界字节管道。生产者线程调用 {@link #write}，消费者在另一个线程中把它当作 InputStream 读取。
+ * <p>
+ * 与 PipedInputStream 不同，生产者最多只等待消费者很短的时间：缓冲超过容量时管道标记为溢出，丢弃缓冲和之后的写入，
+ * 消费者下一次读取时收到 IOException。消费者提前关闭（例如已读到所需内容）后写入同样被直接丢弃。
+ * 上传主流程因此不会被旁路的消费者拖慢，溢出的旁路由调用方改为从存储读取。
+ */
+final class BoundedPipe extends InputStream {
+
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final long capacity;
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private long buffered;
+    private boolean closed;
+    private boolean finished;
+    private boolean overflowed;
+    private IOException failure;
+    private byte[] current;
+    private int position;
+
+    /**
+     * @param capacity 最多缓冲的字节数，单次写入超过容量时只要缓冲为空仍会接受
+     */
+    BoundedPipe(long capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws InterruptedIOException {
+        if (closed || finished || overflowed || len == 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + WRITE_TIMEOUT_NANOS;
+        while (buffered > 0 && buffered + len > capacity && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                overflowed = true;
+                chunks.clear();
+                buffered = 0;
+                notifyAll();
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to pipe");
+            }
+        }
+        if (closed) {
+            return;
+        }
+        chunks.add(Arrays.copyOfRange(b, off, off + len));
+        buffered += len;
+        notifyAll();
+    }
+
+    /**
+     * 结束写入。failure 不为空时消费者读到末尾会收到该异常，而不是正常的 EOF
+     */
+    synchronized void finish(IOException failure) {
+        if (finished) {
+            return;
+        }
+        this.failure = failure;
+        this.finished = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null || position == current.length) {
+            current = next();
+            position = 0;
+            if (current == null) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private synchronized byte[] next() throws IOException {
+        while (chunks.isEmpty()) {
+            if (overflowed) {
+                throw new IOException("Pipe overflowed, consumer fell behind the producer");
+            }
+            if (finished) {
+                if (failure != null) {
+                    throw new IOException("Upstream failed", failure);
+                }
+                return null;
+            }
+            if (closed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading from pipe");
+            }
+        }
+        byte[] chunk = chunks.poll();
+        buffered -= chunk.length;
+        notifyAll();
+        return chunk;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+}
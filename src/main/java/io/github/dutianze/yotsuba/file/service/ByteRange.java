@@ -0,0 +1,21 @@
+package io.github.dutianze.yotsuba.file.service;
+
+/**
+ * 明文字节区间，start 与 end 均为闭区间下标
+ */
+public record ByteRange(long start, long end) {
+
+  public ByteRange {
+    if (start < 0 || end < start) {
+      throw new IllegalArgumentException("Invalid byte range: " + start + "-" + end);
+    }
+  }
+
+  public long length() {
+    return end - start + 1;
+  }
+
+  public String toContentRange(long totalLength) {
+    return "bytes " + start + "-" + end + "/" + totalLength;
+  }
+}
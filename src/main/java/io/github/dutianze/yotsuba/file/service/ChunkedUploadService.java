@@ -0,0 +1,190 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.ChunkedUploadProperties;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.UploadSession;
+import io.github.dutianze.yotsuba.file.domain.UploadSessionRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.dto.UploadSessionDto;
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * 分片上传：init → 并行/乱序 put-chunk → complete，可通过 status 查询已确认的分片后断点续传。
+ * <p>
+ * 每个分片按其明文偏移量算出各认证分段的位置，直接加密写入最终的 .encrypted 文件，不需要先落盘整个明文。
+ * 已确认的分片不能再次写入；写入失败未确认的分片可以重传，每次加密都使用新的随机 nonce。
+ * 超过 sessionTtl 仍未完成的会话视为放弃，定时清理会话记录与已写入的部分文件。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChunkedUploadService {
+
+    private static final StorageVersion STAGING_VERSION = StorageVersion.V7;
+    private static final long MAX_CHUNK_SIZE = 1024L * 1024 * 1024;
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final FileService fileService;
+    private final ChunkedUploadProperties chunkedUploadProperties;
+    /**
+     * 正在写入的分片（uploadId/index），同一分片的并发写入直接拒绝
+     */
+    private final Set<String> writingChunks = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "upload-session-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleSweep() {
+        long interval = chunkedUploadProperties.sweepInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::sweepExpired, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public UploadSessionDto init(String filename, String contentType, long totalSize, String referenceId,
+                                 ReferenceCategory referenceCategory) throws IOException {
+        if (totalSize < 0) {
+            throw new IllegalArgumentException("size must not be negative: " + totalSize);
+        }
+        // 分片按认证分段对齐，每个分段只由一个分片写入；配置小于对齐大小时提高到一个对齐大小
+        int alignment = aesCtrFileEncryptionService.getChunkAlignment(STAGING_VERSION);
+        long configured = chunkedUploadProperties.chunkSize().toBytes();
+        int chunkSize = (int) Math.min((configured + alignment - 1) / alignment * alignment,
+                                       MAX_CHUNK_SIZE / alignment * alignment);
+        UploadSession session = UploadSession.create(filename, contentType, totalSize, chunkSize, referenceId,
+                                                     referenceCategory);
+        aesCtrFileEncryptionService.createEncryptedFile(Path.of(session.getId().id()), STAGING_VERSION,
+                                                        totalSize);
+        uploadSessionRepository.save(session);
+        log.info("Chunked upload {} started: {} ({} bytes, {} chunks)", session.getId().id(), filename, totalSize,
+                 session.getTotalChunks());
+        return toDto(session, List.of());
+    }
+
+    /**
+     * 写入一个分片
+     *
+     * @throws IllegalStateException 分片已确认或正在写入
+     */
+    public UploadSessionDto putChunk(String uploadId, int index, InputStream in) throws Exception {
+        UploadSession session = getSession(uploadId);
+        if (index < 0 || index >= session.getTotalChunks()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        String chunkKey = uploadId + "/" + index;
+        if (!writingChunks.add(chunkKey)) {
+            throw new IllegalStateException("Chunk " + index + " is already being uploaded");
+        }
+        try {
+            if (uploadSessionRepository.findAcknowledgedChunks(uploadId).contains(index)) {
+                throw new IllegalStateException("Chunk " + index + " has already been acknowledged");
+            }
+
+            long length = session.chunkLength(index);
+            aesCtrFileEncryptionService.writeEncryptedChunk(Path.of(uploadId), STAGING_VERSION,
+                                                            session.chunkOffset(index), in, length,
+                                                            session.getTotalSize());
+            if (in.read() != -1) {
+                throw new IllegalArgumentException("Chunk " + index + " is larger than " + length + " bytes");
+            }
+
+            // 写入完成后才确认分片，连接中断的分片会在续传时重新上传
+            uploadSessionRepository.acknowledgeChunk(uploadId, index);
+        } finally {
+            writingChunks.remove(chunkKey);
+        }
+        return status(uploadId);
+    }
+
+    public UploadSessionDto status(String uploadId) {
+        UploadSession session = getSession(uploadId);
+        return toDto(session, uploadSessionRepository.findAcknowledgedChunks(uploadId));
+    }
+
+    public FileResource complete(String uploadId, String password) throws Exception {
+        UploadSession session = getSession(uploadId);
+        UploadSessionDto status = toDto(session, uploadSessionRepository.findAcknowledgedChunks(uploadId));
+        if (!status.missingChunks().isEmpty()) {
+            throw new IllegalStateException("Upload " + uploadId + " is missing chunks " + status.missingChunks());
+        }
+
+        FileResource fileResource = fileService.adoptEncryptedFile(session.getId(), STAGING_VERSION,
+                                                                   session.getFilename(), session.getContentType(),
+                                                                   session.getTotalSize(), password,
+                                                                   session.getReferenceId(),
+                                                                   session.getReferenceCategory());
+        uploadSessionRepository.deleteChunks(uploadId);
+        uploadSessionRepository.delete(session);
+        log.info("Chunked upload {} completed", uploadId);
+        return fileResource;
+    }
+
+    public void abort(String uploadId) {
+        UploadSession session = getSession(uploadId);
+        aesCtrFileEncryptionService.deleteFile(session.getId(), STAGING_VERSION);
+        uploadSessionRepository.deleteChunks(uploadId);
+        uploadSessionRepository.delete(session);
+        log.info("Chunked upload {} aborted", uploadId);
+    }
+
+    /**
+     * 清理超过 sessionTtl 仍未完成的上传会话
+     */
+    void sweepExpired() {
+        LocalDateTime threshold = LocalDateTime.now().minus(chunkedUploadProperties.sessionTtl());
+        for (UploadSession session : uploadSessionRepository.findByCreatedAtBefore(threshold)) {
+            try {
+                aesCtrFileEncryptionService.deleteFile(session.getId(), STAGING_VERSION);
+                uploadSessionRepository.deleteChunks(session.getId().id());
+                uploadSessionRepository.delete(session);
+                log.info("Expired chunked upload {} ({}) removed", session.getId().id(), session.getFilename());
+            } catch (RuntimeException e) {
+                log.error("Failed to remove expired chunked upload {}", session.getId().id(), e);
+            }
+        }
+    }
+
+    private UploadSession getSession(String uploadId) {
+        return uploadSessionRepository.findById(new FileResourceId(uploadId))
+            .orElseThrow(() -> new EntityNotFoundException("Upload session not found: " + uploadId));
+    }
+
+    private static UploadSessionDto toDto(UploadSession session, List<Integer> receivedChunks) {
+        Set<Integer> received = new HashSet<>(receivedChunks);
+        List<Integer> missingChunks = IntStream.range(0, session.getTotalChunks())
+            .filter(i -> !received.contains(i))
+            .boxed()
+            .toList();
+        return new UploadSessionDto(session.getId().id(), session.getFilename(), session.getTotalSize(),
+                                    session.getChunkSize(), session.getTotalChunks(), receivedChunks,
+                                    missingChunks);
+    }
+}
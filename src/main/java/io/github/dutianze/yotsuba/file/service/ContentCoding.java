@@ -0,0 +1,54 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 加密前对内容的压缩编码，记录在分段认证加密文件的头部。
+ * 编码后的字节可以原样作为 HTTP 响应体，以 Content-Encoding 交给客户端解压
+ */
+public enum ContentCoding {
+  IDENTITY(0, null),
+  GZIP(1, "gzip");
+
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final int id;
+  private final String contentEncoding;
+
+  ContentCoding(int id, String contentEncoding) {
+    this.id = id;
+    this.contentEncoding = contentEncoding;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  /**
+   * HTTP Content-Encoding 的值，IDENTITY 为 null
+   */
+  public String contentEncoding() {
+    return contentEncoding;
+  }
+
+  public static ContentCoding of(int id) {
+    for (ContentCoding coding : values()) {
+      if (coding.id == id) {
+        return coding;
+      }
+    }
+    throw new IllegalArgumentException("Unknown content coding: " + id);
+  }
+
+  public OutputStream encode(OutputStream out) throws IOException {
+    return this == GZIP ? new GZIPOutputStream(out, STREAM_BUFFER_SIZE) : out;
+  }
+
+  public InputStream decode(InputStream in) throws IOException {
+    return this == GZIP ? new GZIPInputStream(in, STREAM_BUFFER_SIZE) : in;
+  }
+}
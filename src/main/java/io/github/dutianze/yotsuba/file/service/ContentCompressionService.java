@@ -0,0 +1,94 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.CompressionProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.InvalidMimeTypeException;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+/**
+ * 决定新文件是否在加密前压缩：内容类型在配置的可压缩类型中，且上传内容开头的样本实测压缩率足够高。
+ * 只有分段认证加密格式能在头部记录压缩编码
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ContentCompressionService {
+
+    /**
+     * gzip 尾部只记录 32 位的原始长度，超过的内容不压缩
+     */
+    private static final long MAX_SOURCE_SIZE = 0xFFFF_FFFFL;
+    private static final int DEFLATE_BUFFER_SIZE = 8192;
+
+    private final CompressionProperties properties;
+
+    public boolean isCompressible(String contentType) {
+        if (!properties.enabled() || contentType == null) {
+            return false;
+        }
+        MimeType type;
+        try {
+            type = MimeTypeUtils.parseMimeType(contentType);
+        } catch (InvalidMimeTypeException e) {
+            return false;
+        }
+        return properties.contentTypes().stream()
+            .map(MimeTypeUtils::parseMimeType)
+            .anyMatch(compressible -> compressible.includes(type));
+    }
+
+    /**
+     * 服务端生成的内容（如表格预览 HTML）只按内容类型判断
+     */
+    public ContentCoding forGenerated(String contentType, StorageVersion storageVersion) {
+        return storageVersion.isSegmented() && isCompressible(contentType) ? ContentCoding.GZIP
+            : ContentCoding.IDENTITY;
+    }
+
+    /**
+     * 上传的内容：类型可压缩时压缩开头的样本估算压缩率。in 必须支持 mark，读取样本后复位到原位置
+     *
+     * @param size 内容长度，未知时为负数
+     */
+    public ContentCoding forUpload(String contentType, long size, StorageVersion storageVersion, InputStream in)
+        throws IOException {
+        if (!storageVersion.isSegmented() || size > MAX_SOURCE_SIZE || !isCompressible(contentType)) {
+            return ContentCoding.IDENTITY;
+        }
+        int sampleSize = (int) Math.clamp(properties.sampleSize().toBytes(), 1, Integer.MAX_VALUE / 2);
+        in.mark(sampleSize);
+        byte[] sample = in.readNBytes(sampleSize);
+        in.reset();
+        if (sample.length == 0) {
+            return ContentCoding.IDENTITY;
+        }
+        double ratio = (double) deflatedSize(sample) / sample.length;
+        ContentCoding coding = ratio <= properties.maxRatio() ? ContentCoding.GZIP : ContentCoding.IDENTITY;
+        log.debug("Sample of {} ({} bytes) compresses to {}, storing as {}", contentType, sample.length,
+                  String.format("%.2f", ratio), coding);
+        return coding;
+    }
+
+    private static long deflatedSize(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            long size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.BlobMigrationProperties;
+import io.github.dutianze.yotsuba.file.config.FileDataSourceConfig;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * 把 ResourceType.DATABASE 记录的 data 列迁移为 V3 加密文件。
+ * <p>
+ * 按 ID 顺序分批处理：先写文件，再在一条 UPDATE 中清空 data 并切换为 LOCAL，
+ * 因此中途停止或进程重启后重新启动即可从剩余记录继续。全部完成后执行增量 VACUUM 回收空间。
+ */
+@Slf4j
+@Service
+public class DatabaseBlobMigrationService {
+
+    private static final String PASSWORD = "123";
+    private static final StorageVersion TARGET_VERSION = StorageVersion.V3;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final BlobMigrationProperties properties;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "blob-migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private volatile String lastError;
+    private volatile String vacuumResult;
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+
+    public DatabaseBlobMigrationService(@Qualifier(FileDataSourceConfig.JDBC_TEMPLATE) JdbcTemplate jdbcTemplate,
+                                        AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                                        BlobMigrationProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.properties = properties;
+    }
+
+    /**
+     * 在后台启动迁移，已在运行时不重复启动
+     *
+     * @return 是否启动了新的迁移
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        stopRequested.set(false);
+        migrated.set(0);
+        failed.set(0);
+        bytesMoved.set(0);
+        lastError = null;
+        vacuumResult = null;
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        executor.execute(this::run);
+        return true;
+    }
+
+    /**
+     * 请求在当前记录完成后停止，已迁移的记录保持迁移状态
+     */
+    public void stop() {
+        stopRequested.set(true);
+    }
+
+    public MigrationStatus status() {
+        return new MigrationStatus(running.get(), countRemaining(), migrated.get(), failed.get(), bytesMoved.get(),
+                                   lastError, vacuumResult, startedAt, finishedAt);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested.set(true);
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        log.info("Database blob migration started");
+        try {
+            String afterId = "";
+            long runStart = System.nanoTime();
+            long written = 0;
+            while (!stopRequested.get()) {
+                List<String> ids = jdbcTemplate.queryForList("""
+                    SELECT id FROM file_resource
+                    WHERE resource_type = 'DATABASE' AND data IS NOT NULL AND id > ?
+                    ORDER BY id
+                    LIMIT ?
+                    """, String.class, afterId, properties.batchSize());
+                if (ids.isEmpty()) {
+                    break;
+                }
+                for (String id : ids) {
+                    if (stopRequested.get()) {
+                        break;
+                    }
+                    afterId = id;
+                    written += migrateOne(id);
+                    throttle(runStart, written);
+                }
+                Thread.sleep(properties.batchPause().toMillis());
+            }
+
+            if (stopRequested.get()) {
+                log.info("Database blob migration stopped: {} migrated, {} failed", migrated.get(), failed.get());
+            } else {
+                log.info("Database blob migration finished: {} migrated, {} failed", migrated.get(), failed.get());
+                vacuumResult = incrementalVacuum();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Database blob migration interrupted");
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            log.error("Database blob migration aborted", e);
+        } finally {
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 迁移单条记录，失败时记录错误并跳过
+     *
+     * @return 迁移的字节数
+     */
+    private long migrateOne(String id) {
+        try {
+            byte[] data = jdbcTemplate.queryForObject(
+                "SELECT data FROM file_resource WHERE id = ?", byte[].class, id);
+            if (data == null) {
+                return 0;
+            }
+            aesCtrFileEncryptionService.encryptFile(new ByteArrayInputStream(data), Path.of(id), PASSWORD,
+                                                    TARGET_VERSION);
+            // 数据库中的 file_size 以 KB 记录，迁移后与本地文件一致改为字节数
+            int updated = jdbcTemplate.update("""
+                UPDATE file_resource
+                SET data = NULL, resource_type = 'LOCAL', storage_version = ?, encrypted = 1, file_size = ?
+                WHERE id = ? AND resource_type = 'DATABASE'
+                """, TARGET_VERSION.name(), data.length, id);
+            if (updated == 0) {
+                // 迁移过程中记录已被删除
+                aesCtrFileEncryptionService.deleteFile(new FileResourceId(id), TARGET_VERSION);
+                return 0;
+            }
+            migrated.incrementAndGet();
+            bytesMoved.addAndGet(data.length);
+            return data.length;
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            lastError = id + ": " + e.getMessage();
+            log.error("Failed to migrate database blob {}", id, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 按 maxBytesPerSecond 限制平均写入速率：已写入量超出预算时睡眠到预算允许的时间点
+     */
+    private void throttle(long runStart, long written) throws InterruptedException {
+        long bytesPerSecond = properties.maxBytesPerSecond().toBytes();
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = (long) ((double) written / bytesPerSecond * 1_000_000_000L);
+        long elapsedNanos = System.nanoTime() - runStart;
+        if (expectedNanos > elapsedNanos) {
+            Thread.sleep((expectedNanos - elapsedNanos) / 1_000_000);
+        }
+    }
+
+    /**
+     * 分步执行 incremental_vacuum 释放空闲页。数据库不是 INCREMENTAL 模式时先切换模式并执行一次完整 VACUUM
+     */
+    private String incrementalVacuum() throws InterruptedException {
+        Integer autoVacuum = jdbcTemplate.queryForObject("PRAGMA auto_vacuum", Integer.class);
+        if (autoVacuum == null || autoVacuum != 2) {
+            log.info("Switching file database to incremental auto_vacuum");
+            long start = System.currentTimeMillis();
+            jdbcTemplate.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            jdbcTemplate.execute("VACUUM");
+            return String.format("已切换为增量模式并完成 VACUUM，耗时 %d 毫秒", System.currentTimeMillis() - start);
+        }
+
+        long freed = 0;
+        Integer freePages = jdbcTemplate.queryForObject("PRAGMA freelist_count", Integer.class);
+        while (freePages != null && freePages > 0 && !stopRequested.get()) {
+            jdbcTemplate.execute("PRAGMA incremental_vacuum(" + properties.vacuumPagesPerStep() + ")");
+            freed += Math.min(freePages, properties.vacuumPagesPerStep());
+            freePages = jdbcTemplate.queryForObject("PRAGMA freelist_count", Integer.class);
+            Thread.sleep(properties.batchPause().toMillis());
+        }
+        return String.format("增量 VACUUM 释放了 %d 页", freed);
+    }
+
+    private long countRemaining() {
+        Long remaining = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM file_resource WHERE resource_type = 'DATABASE' AND data IS NOT NULL", Long.class);
+        return remaining == null ? 0 : remaining;
+    }
+
+    /**
+     * 迁移进度
+     */
+    public record MigrationStatus(
+        boolean running,
+        long remaining,
+        long migrated,
+        long failed,
+        long bytesMoved,
+        @Nullable String lastError,
+        @Nullable String vacuumResult,
+        @Nullable LocalDateTime startedAt,
+        @Nullable LocalDateTime finishedAt
+    ) {
+
+    }
+}
@@ -0,0 +1,212 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.github.dutianze.yotsuba.file.config.ContentCacheProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import jakarta.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * 小文件（封面、预览图）解密后内容的缓存，按（文件 ID, 预览图序号）缓存，按字节数限制容量。
+ * <p>
+ * 堆内一级缓存使用 Caffeine 的 W-TinyLFU 淘汰策略，偶发的大量冷请求不会冲掉热门封面；
+ * 启用堆外二级缓存时，一级缓存因容量淘汰的条目降级到 direct buffer，再次命中时提升回一级缓存。
+ * 同一文件的并发未命中只解密一次。
+ */
+@Slf4j
+@Component
+public class DecryptedContentCache {
+
+  /**
+   * 每个条目除内容外的估算开销（键、节点、数组头）
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxEntrySize;
+  @Nullable
+  private final Cache<ContentKey, byte[]> heap;
+  @Nullable
+  private final Cache<ContentKey, ByteBuffer> offHeap;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong offHeapHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bypasses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public DecryptedContentCache(ContentCacheProperties properties) {
+    this.maxEntrySize = properties.maxEntrySize().toBytes();
+    long offHeapBudget = properties.offHeapBudget().toBytes();
+    this.offHeap = offHeapBudget <= 0 ? null : Caffeine.newBuilder()
+        .maximumWeight(offHeapBudget)
+        .<ContentKey, ByteBuffer>weigher((key, value) -> value.capacity() + ENTRY_OVERHEAD)
+        .expireAfterWrite(properties.ttl())
+        .build();
+
+    long heapBudget = properties.heapBudget().toBytes();
+    this.heap = heapBudget <= 0 ? null : Caffeine.newBuilder()
+        .maximumWeight(heapBudget)
+        .<ContentKey, byte[]>weigher((key, value) -> value.length + ENTRY_OVERHEAD)
+        .expireAfterWrite(properties.ttl())
+        .evictionListener(this::demote)
+        .build();
+  }
+
+  public boolean isEnabled() {
+    return heap != null;
+  }
+
+  /**
+   * 获取缓存的内容，未命中时调用 loader 解密并放入缓存
+   *
+   * @param length 明文长度，超过 maxEntrySize 时不缓存，直接返回 null 由调用方流式输出
+   */
+  @Nullable
+  public byte[] get(ContentKey key, LengthSupplier length, Loader loader) throws IOException {
+    if (heap == null) {
+      return null;
+    }
+    byte[] cached = heap.getIfPresent(key);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached;
+    }
+    if (length.get() > maxEntrySize) {
+      bypasses.incrementAndGet();
+      return null;
+    }
+    try {
+      return heap.get(key, k -> load(k, loader));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * 不计入统计地查看缓存内容，用于获取长度等元数据
+   */
+  @Nullable
+  public byte[] peek(ContentKey key) {
+    return heap == null ? null : heap.policy().getIfPresentQuietly(key);
+  }
+
+  /**
+   * 文件删除时移除其本体与所有预览图的缓存
+   */
+  public void invalidate(FileResourceId id) {
+    if (heap != null) {
+      heap.asMap().keySet().removeIf(key -> key.fileId().equals(id.id()));
+    }
+    if (offHeap != null) {
+      offHeap.asMap().keySet().removeIf(key -> key.fileId().equals(id.id()));
+    }
+  }
+
+  public void invalidateAll() {
+    if (heap != null) {
+      heap.invalidateAll();
+    }
+    if (offHeap != null) {
+      offHeap.invalidateAll();
+    }
+    log.info("Decrypted content cache cleared");
+  }
+
+  public Stats stats() {
+    long hitCount = hits.get() + offHeapHits.get();
+    long requestCount = hitCount + misses.get();
+    return new Stats(
+        heap == null ? 0 : heap.estimatedSize(),
+        heap == null ? 0 : heap.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L),
+        heap == null ? 0 : heap.policy().eviction().map(e -> e.getMaximum()).orElse(0L),
+        offHeap == null ? 0 : offHeap.estimatedSize(),
+        offHeap == null ? 0 : offHeap.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L),
+        offHeap == null ? 0 : offHeap.policy().eviction().map(e -> e.getMaximum()).orElse(0L),
+        hits.get(),
+        offHeapHits.get(),
+        misses.get(),
+        bypasses.get(),
+        evictions.get(),
+        requestCount == 0 ? 0 : (double) hitCount / requestCount);
+  }
+
+  private byte[] load(ContentKey key, Loader loader) {
+    if (offHeap != null) {
+      ByteBuffer demoted = offHeap.asMap().remove(key);
+      if (demoted != null) {
+        offHeapHits.incrementAndGet();
+        byte[] content = new byte[demoted.capacity()];
+        demoted.duplicate().clear().get(content);
+        return content;
+      }
+    }
+    misses.incrementAndGet();
+    try {
+      return loader.load();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * 一级缓存因容量淘汰的条目降级到堆外缓存
+   */
+  private void demote(ContentKey key, byte[] value, RemovalCause cause) {
+    evictions.incrementAndGet();
+    if (offHeap == null || cause != RemovalCause.SIZE || value == null) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(value.length);
+    buffer.put(value).flip();
+    offHeap.put(key, buffer);
+  }
+
+  /**
+   * 缓存键：文件 ID 与预览图序号，文件本体的序号为 null
+   */
+  public record ContentKey(String fileId, @Nullable String index) {
+
+    public static ContentKey of(FileResourceId id, @Nullable String index) {
+      return new ContentKey(id.id(), index);
+    }
+  }
+
+  @FunctionalInterface
+  public interface LengthSupplier {
+
+    long get() throws IOException;
+  }
+
+  @FunctionalInterface
+  public interface Loader {
+
+    byte[] load() throws IOException;
+  }
+
+  /**
+   * 缓存统计信息
+   */
+  public record Stats(
+      long heapEntries,
+      long heapBytes,
+      long heapBudget,
+      long offHeapEntries,
+      long offHeapBytes,
+      long offHeapBudget,
+      long hits,
+      long offHeapHits,
+      long misses,
+      long bypasses,
+      long evictions,
+      double hitRatio
+  ) {
+
+  }
+}
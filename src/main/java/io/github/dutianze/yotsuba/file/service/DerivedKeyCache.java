@@ -0,0 +1,183 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.KeyCacheProperties;
+import jakarta.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * PBKDF2 派生密钥缓存，按（密码指纹, salt）缓存，避免每次读写文件都重新派生密钥。
+ * <p>
+ * 密码只以进程内随机密钥的 HMAC 指纹形式出现在缓存键中；被淘汰或过期的密钥会被清零。
+ */
+@Slf4j
+@Component
+public class DerivedKeyCache {
+
+  private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final SecretKeySpec fingerprintKey;
+  private final LinkedHashMap<String, Entry> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public DerivedKeyCache(KeyCacheProperties properties) {
+    this.maxEntries = properties.maxEntries();
+    this.ttlNanos = properties.ttl().toNanos();
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    this.fingerprintKey = new SecretKeySpec(secret, FINGERPRINT_ALGORITHM);
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > maxEntries) {
+          eldest.getValue().wipe();
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * 获取密钥，缓存未命中时调用 deriver 派生并放入缓存
+   */
+  public SecretKey get(String password, byte[] salt, KeyDeriver deriver)
+      throws GeneralSecurityException {
+    if (maxEntries <= 0) {
+      misses.incrementAndGet();
+      byte[] keyBytes = deriver.derive(password, salt);
+      try {
+        return toSecretKey(keyBytes);
+      } finally {
+        Arrays.fill(keyBytes, (byte) 0);
+      }
+    }
+
+    String cacheKey = cacheKey(password, salt);
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Entry entry = entries.get(cacheKey);
+      if (entry != null) {
+        if (!entry.isExpired(now)) {
+          hits.incrementAndGet();
+          return toSecretKey(entry.keyBytes);
+        }
+        entries.remove(cacheKey);
+        entry.wipe();
+        evictions.incrementAndGet();
+      }
+    }
+
+    // 派生过程较慢，不在锁内执行
+    misses.incrementAndGet();
+    byte[] keyBytes = deriver.derive(password, salt);
+    SecretKey secretKey = toSecretKey(keyBytes);
+    synchronized (entries) {
+      purgeExpired(now);
+      Entry previous = entries.put(cacheKey, new Entry(keyBytes, now + ttlNanos));
+      if (previous != null) {
+        previous.wipe();
+      }
+    }
+    return secretKey;
+  }
+
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.values().forEach(Entry::wipe);
+      evictions.addAndGet(entries.size());
+      entries.clear();
+    }
+    log.info("Derived key cache cleared");
+  }
+
+  public Stats stats() {
+    synchronized (entries) {
+      return new Stats(entries.size(), maxEntries, hits.get(), misses.get(), evictions.get());
+    }
+  }
+
+  @PreDestroy
+  public void destroy() {
+    invalidateAll();
+  }
+
+  private void purgeExpired(long now) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.isExpired(now)) {
+        entry.wipe();
+        iterator.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private String cacheKey(String password, byte[] salt) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+    mac.init(fingerprintKey);
+    byte[] fingerprint = mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().formatHex(fingerprint) + ":" + HexFormat.of().formatHex(salt);
+  }
+
+  private static SecretKey toSecretKey(byte[] keyBytes) {
+    return new SecretKeySpec(keyBytes, "AES");
+  }
+
+  @FunctionalInterface
+  public interface KeyDeriver {
+
+    byte[] derive(String password, byte[] salt) throws GeneralSecurityException;
+  }
+
+  private static final class Entry {
+
+    private final byte[] keyBytes;
+    private final long expiresAtNanos;
+
+    private Entry(byte[] keyBytes, long expiresAtNanos) {
+      this.keyBytes = keyBytes;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expiresAtNanos >= 0;
+    }
+
+    private void wipe() {
+      Arrays.fill(keyBytes, (byte) 0);
+    }
+  }
+
+  /**
+   * 缓存统计信息
+   */
+  public record Stats(
+      int size,
+      int maxEntries,
+      long hits,
+      long misses,
+      long evictions
+  ) {
+
+  }
+}
@@ -0,0 +1,226 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.EncryptionProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * 比较顺序加密与分段并行加密在不同线程数下的吞吐量，并确认分段加密的输出与顺序加密完全相同。
+ * <p>
+ * 只在内存中加密，不包含磁盘写入，结果反映加密在多核上的扩展性。每种方式先预热一轮，再取三轮中最快的一轮。
+ * <p>
+ * 下载基准比较 CipherInputStream 加 8KB 缓冲的旧解密路径与 FileChannel 加 direct buffer 的
+ * {@link AesCtrFileEncryptionService#transferDecrypted}，读取的是实际写入存储目录的临时文件，结果受页缓存影响。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class EncryptionBenchmarkService {
+
+    private static final int MAX_SIZE_MB = 512;
+    private static final int ROUNDS = 3;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final StorageVersion DOWNLOAD_VERSION = StorageVersion.V3;
+
+    private final EncryptionProperties properties;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+
+    public List<BenchmarkResult> run(int sizeMb) throws Exception {
+        int size = Math.clamp(sizeMb, 1, MAX_SIZE_MB) * 1024 * 1024;
+        SecureRandom random = new SecureRandom();
+        byte[] plaintext = new byte[size];
+        random.nextBytes(plaintext);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        SecretKey key = keyGenerator.generateKey();
+
+        byte[] expected = null;
+        long sequentialNanos = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            byte[] cipherText = encryptSequential(key, iv, plaintext);
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                sequentialNanos = Math.min(sequentialNanos, elapsed);
+            }
+            expected = cipherText;
+        }
+
+        List<BenchmarkResult> results = new ArrayList<>();
+        results.add(new BenchmarkResult("sequential", 1, throughput(size, sequentialNanos), 1.0, true));
+        int segmentSize = (int) Math.max(16, properties.segmentSize().toBytes() / 16 * 16);
+        for (int threads : threadCounts()) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                long best = Long.MAX_VALUE;
+                boolean identical = true;
+                for (int round = 0; round <= ROUNDS; round++) {
+                    byte[] data = plaintext.clone();
+                    long start = System.nanoTime();
+                    encryptSegmented(pool, key, iv, data, segmentSize);
+                    long elapsed = System.nanoTime() - start;
+                    if (round > 0) {
+                        best = Math.min(best, elapsed);
+                    }
+                    identical &= Arrays.equals(expected, data);
+                }
+                results.add(new BenchmarkResult("segmented", threads, throughput(size, best),
+                                                (double) sequentialNanos / best, identical));
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        log.info("Encryption benchmark ({} MB): {}", size / 1024 / 1024, results);
+        return results;
+    }
+
+    /**
+     * 比较下载解密的吞吐量：加密保存一个临时文件，分别以旧路径与 FileChannel 路径完整解密，测试后删除
+     */
+    public List<BenchmarkResult> runDownload(int sizeMb) throws Exception {
+        int size = Math.clamp(sizeMb, 1, MAX_SIZE_MB) * 1024 * 1024;
+        SecureRandom random = new SecureRandom();
+        byte[] plaintext = new byte[size];
+        random.nextBytes(plaintext);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(plaintext);
+        String password = UUID.randomUUID().toString();
+        String storageKey = "benchmark-" + UUID.randomUUID();
+        Path path = Path.of(storageKey);
+        try {
+            aesCtrFileEncryptionService.encryptFile(new ByteArrayInputStream(plaintext), path, password,
+                                                    DOWNLOAD_VERSION);
+            long streamNanos = Long.MAX_VALUE;
+            long channelNanos = Long.MAX_VALUE;
+            boolean streamIdentical = true;
+            boolean channelIdentical = true;
+            for (int round = 0; round <= ROUNDS; round++) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                long start = System.nanoTime();
+                try (InputStream in = aesCtrFileEncryptionService.decryptFile(path, password, DOWNLOAD_VERSION);
+                     OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                streamIdentical &= Arrays.equals(expected, digest.digest());
+
+                digest = MessageDigest.getInstance("SHA-256");
+                start = System.nanoTime();
+                try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                    aesCtrFileEncryptionService.transferDecrypted(path, password, DOWNLOAD_VERSION, 0, size, out);
+                }
+                long channelElapsed = System.nanoTime() - start;
+                channelIdentical &= Arrays.equals(expected, digest.digest());
+                if (round > 0) {
+                    streamNanos = Math.min(streamNanos, elapsed);
+                    channelNanos = Math.min(channelNanos, channelElapsed);
+                }
+            }
+            List<BenchmarkResult> results = List.of(
+                new BenchmarkResult("stream", 1, throughput(size, streamNanos), 1.0, streamIdentical),
+                new BenchmarkResult("channel", 1, throughput(size, channelNanos),
+                                    (double) streamNanos / channelNanos, channelIdentical));
+            log.info("Download benchmark ({} MB): {}", size / 1024 / 1024, results);
+            return results;
+        } finally {
+            aesCtrFileEncryptionService.deleteFile(storageKey, DOWNLOAD_VERSION);
+        }
+    }
+
+    /**
+     * 与分段加密引入之前的 encryptFile 相同：以 8KB 缓冲写入 CipherOutputStream
+     */
+    private static byte[] encryptSequential(SecretKey key, byte[] iv, byte[] plaintext) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(plaintext.length);
+        try (OutputStream out = new CipherOutputStream(buffer, cipher)) {
+            for (int offset = 0; offset < plaintext.length; offset += STREAM_BUFFER_SIZE) {
+                out.write(plaintext, offset, Math.min(STREAM_BUFFER_SIZE, plaintext.length - offset));
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void encryptSegmented(ExecutorService pool, SecretKey key, byte[] iv, byte[] data,
+                                         int segmentSize) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += segmentSize) {
+            int from = offset;
+            int length = Math.min(segmentSize, data.length - offset);
+            futures.add(pool.submit(() -> {
+                AesCtrFileEncryptionService.encryptSegment(key, iv, from, data, from, length);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+    }
+
+    /**
+     * 1、2、4……直到 CPU 核数，核数不是 2 的幂时最后追加核数
+     */
+    private static List<Integer> threadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        return counts;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return bytes / 1024.0 / 1024.0 / (nanos / 1_000_000_000.0);
+    }
+
+    /**
+     * 基准测试结果
+     *
+     * @param mbPerSecond 每秒加密（下载基准为解密）的 MB 数
+     * @param speedup     相对顺序加密（下载基准为旧解密路径）的加速比
+     * @param identical   输出是否与顺序加密（下载基准为原始内容）完全相同
+     */
+    public record BenchmarkResult(
+        String mode,
+        int threads,
+        double mbPerSecond,
+        double speedup,
+        boolean identical
+    ) {
+
+    }
+}
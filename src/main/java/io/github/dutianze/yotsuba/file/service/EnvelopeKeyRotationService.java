@@ -0,0 +1,174 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.EnvelopeProperties;
+import io.github.dutianze.yotsuba.file.config.FileDataSourceConfig;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * 主密钥轮换：把信封加密文件头部中由旧主密钥包装的数据密钥改为由当前主密钥包装。
+ * <p>
+ * 只改写每个文件开头的主密钥 ID 与包装后的数据密钥，内容不重新加密。
+ * 已使用当前主密钥的文件直接跳过，因此中途停止后重新启动即可继续；全部完成后才可以从配置中移除旧口令。
+ */
+@Slf4j
+@Service
+public class EnvelopeKeyRotationService {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final EnvelopeKeyService envelopeKeyService;
+    private final EnvelopeProperties properties;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "envelope-key-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicLong scannedKeys = new AtomicLong();
+    private final AtomicLong rewrappedFiles = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile String lastError;
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+
+    public EnvelopeKeyRotationService(@Qualifier(FileDataSourceConfig.JDBC_TEMPLATE) JdbcTemplate jdbcTemplate,
+                                      AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                                      EnvelopeKeyService envelopeKeyService,
+                                      EnvelopeProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.envelopeKeyService = envelopeKeyService;
+        this.properties = properties;
+    }
+
+    /**
+     * 在后台启动重新包装，已在运行时不重复启动
+     *
+     * @return 是否启动了新的任务
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        stopRequested.set(false);
+        scannedKeys.set(0);
+        rewrappedFiles.set(0);
+        failed.set(0);
+        lastError = null;
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        executor.execute(this::run);
+        return true;
+    }
+
+    /**
+     * 请求在当前存储键完成后停止
+     */
+    public void stop() {
+        stopRequested.set(true);
+    }
+
+    public RotationStatus status() {
+        return new RotationStatus(running.get(), envelopeKeyService.activeKeyId(), scannedKeys.get(),
+                                  rewrappedFiles.get(), failed.get(), lastError, startedAt, finishedAt);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested.set(true);
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        log.info("Envelope key rotation to key {} started", envelopeKeyService.activeKeyId());
+        try {
+            String afterKey = "";
+            while (!stopRequested.get()) {
+                // V6/V8 的多条记录共用一个内容哈希，按存储键去重
+                List<Map<String, Object>> rows = jdbcTemplate.queryForList("""
+                    SELECT storage_key, storage_version FROM (
+                        SELECT CASE WHEN storage_version IN ('V6', 'V8') THEN content_hash ELSE id END AS storage_key,
+                               storage_version
+                        FROM file_resource
+                        WHERE resource_type = 'LOCAL' AND storage_version IN ('V5', 'V6', 'V7', 'V8')
+                    )
+                    WHERE storage_key > ?
+                    GROUP BY storage_key, storage_version
+                    ORDER BY storage_key
+                    LIMIT ?
+                    """, afterKey, properties.rotationBatchSize());
+                if (rows.isEmpty()) {
+                    break;
+                }
+                for (Map<String, Object> row : rows) {
+                    if (stopRequested.get()) {
+                        break;
+                    }
+                    afterKey = (String) row.get("storage_key");
+                    rewrap(afterKey, StorageVersion.valueOf((String) row.get("storage_version")));
+                }
+            }
+
+            if (stopRequested.get()) {
+                log.info("Envelope key rotation stopped: {} files rewrapped, {} failed", rewrappedFiles.get(),
+                         failed.get());
+            } else {
+                log.info("Envelope key rotation finished: {} files rewrapped, {} failed", rewrappedFiles.get(),
+                         failed.get());
+            }
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            log.error("Envelope key rotation aborted", e);
+        } finally {
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    private void rewrap(String storageKey, StorageVersion storageVersion) {
+        scannedKeys.incrementAndGet();
+        try {
+            rewrappedFiles.addAndGet(aesCtrFileEncryptionService.rewrapStorageKey(storageKey, storageVersion));
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            lastError = storageKey + ": " + e.getMessage();
+            log.error("Failed to rewrap data keys of {}", storageKey, e);
+        }
+    }
+
+    /**
+     * 主密钥轮换进度
+     *
+     * @param activeKeyId    重新包装使用的主密钥 ID
+     * @param scannedKeys    已检查的存储键数
+     * @param rewrappedFiles 头部被改写的文件数（含预览图）
+     */
+    public record RotationStatus(
+        boolean running,
+        int activeKeyId,
+        long scannedKeys,
+        long rewrappedFiles,
+        long failed,
+        @Nullable String lastError,
+        @Nullable LocalDateTime startedAt,
+        @Nullable LocalDateTime finishedAt
+    ) {
+
+    }
+}
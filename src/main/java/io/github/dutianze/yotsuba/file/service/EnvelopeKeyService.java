@@ -0,0 +1,112 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.EnvelopeProperties;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * 信封加密的主密钥。
+ * <p>
+ * 主密钥在启动时由配置的口令以 PBKDF2 各派生一次，之后打开文件只需一次 AES-KW 解包，
+ * 不再为每个文件重复 65536 次迭代。文件头部记录包装所用的主密钥 ID，轮换主密钥时只需重新包装头部。
+ */
+@Slf4j
+@Service
+public class EnvelopeKeyService {
+
+    /**
+     * 256 位数据密钥经 AES-KW 包装后的长度
+     */
+    public static final int WRAPPED_KEY_LENGTH = 40;
+
+    private static final String WRAP_ALGORITHM = "AESWrap";
+    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String SALT_PREFIX = "yotsuba-envelope-";
+    private static final int ITERATION_COUNT = 65_536;
+    private static final int KEY_LENGTH_BITS = 256;
+
+    private final int activeKeyId;
+    private final Map<Integer, SecretKey> masterKeys = new HashMap<>();
+    private final KeyGenerator keyGenerator;
+
+    public EnvelopeKeyService(EnvelopeProperties properties) throws GeneralSecurityException {
+        if (properties.masterKeys() == null || !properties.masterKeys().containsKey(properties.activeKeyId())) {
+            throw new IllegalStateException(
+                "modules.file.envelope.master-keys must contain active key " + properties.activeKeyId());
+        }
+        this.activeKeyId = properties.activeKeyId();
+        for (Map.Entry<Integer, String> entry : properties.masterKeys().entrySet()) {
+            if (!StringUtils.hasText(entry.getValue())) {
+                throw new IllegalStateException("modules.file.envelope.master-keys." + entry.getKey() + " is empty");
+            }
+            masterKeys.put(entry.getKey(), deriveMasterKey(entry.getKey(), entry.getValue()));
+        }
+        this.keyGenerator = KeyGenerator.getInstance("AES");
+        this.keyGenerator.init(KEY_LENGTH_BITS, new SecureRandom());
+        log.info("Derived {} envelope master keys, active key {}", masterKeys.size(), activeKeyId);
+    }
+
+    public int activeKeyId() {
+        return activeKeyId;
+    }
+
+    /**
+     * 生成新文件的随机数据密钥
+     */
+    public SecretKey newDataKey() {
+        synchronized (keyGenerator) {
+            return keyGenerator.generateKey();
+        }
+    }
+
+    /**
+     * 以当前主密钥包装数据密钥
+     */
+    public byte[] wrap(Key dataKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+        cipher.init(Cipher.WRAP_MODE, masterKeys.get(activeKeyId));
+        return cipher.wrap(dataKey);
+    }
+
+    /**
+     * 以指定的主密钥解包数据密钥，完整性校验失败或主密钥未配置时抛出异常
+     */
+    public SecretKey unwrap(int keyId, byte[] wrappedKey) throws GeneralSecurityException {
+        SecretKey masterKey = masterKeys.get(keyId);
+        if (masterKey == null) {
+            throw new GeneralSecurityException("Unknown envelope master key: " + keyId);
+        }
+        Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+        cipher.init(Cipher.UNWRAP_MODE, masterKey);
+        return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+    }
+
+    private static SecretKey deriveMasterKey(int keyId, String passphrase) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), (SALT_PREFIX + keyId).getBytes(
+            StandardCharsets.UTF_8), ITERATION_COUNT, KEY_LENGTH_BITS);
+        try {
+            byte[] keyBytes = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM).generateSecret(spec).getEncoded();
+            try {
+                return new SecretKeySpec(keyBytes, "AES");
+            } finally {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
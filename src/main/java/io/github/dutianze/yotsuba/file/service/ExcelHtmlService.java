@@ -1,30 +1,67 @@
 package io.github.dutianze.yotsuba.file.service;
 
+import io.github.dutianze.yotsuba.file.config.SpreadsheetPreviewProperties;
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.service.AesCtrFileEncryptionService.EncryptedFileOutputStream;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
-import org.apache.poi.hssf.converter.ExcelToHtmlConverter;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ooxml.util.DocumentHelper;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.util.ZipInputStreamZipEntrySource;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+/**
+ * 表格预览：基于 POI 事件模型（xlsx 为 SAX，xls 为 HSSF 记录事件）逐行读取，
+ * 每个工作表直接写成 HTML 进入加密输出流，超过行/列上限的部分不再读取或输出
+ */
 @Service
 @RequiredArgsConstructor
 public class ExcelHtmlService implements ThumbnailService {
 
   private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+  private final SpreadsheetPreviewProperties properties;
+  private final ContentCompressionService contentCompressionService;
+
+  @PostConstruct
+  public void configureZipSpooling() {
+    // OPCPackage.open(InputStream) 默认把所有条目解压到内存，大条目改为写入加密的临时文件
+    ZipInputStreamZipEntrySource.setThresholdBytesForTempFiles((int) properties.zipSpoolThreshold().toBytes());
+    ZipInputStreamZipEntrySource.setEncryptTempFiles(true);
+  }
 
   @Override
   public boolean supports(String filename) {
@@ -33,8 +70,8 @@ public class ExcelHtmlService implements ThumbnailService {
   }
 
   @Override
-  public List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion)
-      throws Exception {
+  public List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion,
+      ThumbnailListener listener) throws Exception {
 
     in = new BufferedInputStream(in);
     in.mark(10);
@@ -46,103 +83,289 @@ public class ExcelHtmlService implements ThumbnailService {
     boolean isXls = (header[0] == (byte) 0xD0 && header[1] == (byte) 0xCF);
 
     if (isXls) {
-      return handleXls(in, id, password, storageVersion);
+      return handleXls(in, id, password, storageVersion, listener);
     } else {
-      return handleXlsx(in, id, password, storageVersion);
+      return handleXlsx(in, id, password, storageVersion, listener);
     }
   }
 
   /** ========================
-   *  XLS → HTML
+   *  XLS → HTML（HSSF 事件模型）
    ========================= */
-  private List<Integer> handleXls(InputStream in, String id, String password, StorageVersion storageVersion) throws Exception {
-    List<Integer> result = new ArrayList<>();
+  private List<Integer> handleXls(InputStream in, String id, String password, StorageVersion storageVersion,
+      ThumbnailListener listener) throws Exception {
+    XlsPreviewListener xlsListener = new XlsPreviewListener(id, password, storageVersion, listener);
+    try (POIFSFileSystem fs = new POIFSFileSystem(in)) {
+      HSSFRequest request = new HSSFRequest();
+      request.addListenerForAllRecords(xlsListener.formatListener);
+      new HSSFEventFactory().processWorkbookEvents(request, fs);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      xlsListener.abortOpenPage();
+    }
+    return xlsListener.result;
+  }
 
-    HSSFWorkbook workbook = new HSSFWorkbook(in);
 
-    ExcelToHtmlConverter converter = new ExcelToHtmlConverter(
-        DocumentHelper.createDocument()
-    );
-    converter.processWorkbook(workbook);
+  /** ========================
+   *  XLSX → HTML（SAX 逐行解析）
+   ========================= */
+  private List<Integer> handleXlsx(InputStream in, String id, String password, StorageVersion storageVersion,
+      ThumbnailListener listener) throws Exception {
+
+    List<Integer> result = new ArrayList<>();
+    try (OPCPackage pkg = OPCPackage.open(in)) {
+      XSSFReader reader = new XSSFReader(pkg);
+      ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+      StylesTable styles = reader.getStylesTable();
+      listener.onStart(countSheets(reader));
+
+      Iterator<InputStream> sheets = reader.getSheetsData();
+      int index = 0;
+      while (sheets.hasNext()) {
+        index++;
+        try (InputStream sheet = sheets.next()) {
+          writePage(id, index, password, storageVersion, html -> parseSheet(sheet, styles, strings, html));
+        }
+        result.add(index);
+        listener.onGenerated(index);
+      }
+    }
+    return result;
+  }
 
-    org.w3c.dom.Document htmlDoc = converter.getDocument();
+  private static int countSheets(XSSFReader reader) throws Exception {
+    int count = 0;
+    Iterator<InputStream> sheets = reader.getSheetsData();
+    while (sheets.hasNext()) {
+      sheets.next().close();
+      count++;
+    }
+    return count;
+  }
 
-    ByteArrayOutputStream htmlOut = new ByteArrayOutputStream();
+  private void parseSheet(InputStream sheet, StylesTable styles, ReadOnlySharedStringsTable strings,
+      HtmlTablePreviewWriter html) throws Exception {
+    SheetContentsHandler handler = new SheetContentsHandler() {
+      private int currentRow;
 
-    Transformer serializer = TransformerFactory.newInstance().newTransformer();
-    serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-    serializer.setOutputProperty(OutputKeys.METHOD, "html");
-    serializer.setOutputProperty(OutputKeys.INDENT, "no");
+      @Override
+      public void startRow(int rowNum) {
+        currentRow = rowNum;
+      }
 
-    serializer.transform(new DOMSource(htmlDoc), new StreamResult(htmlOut));
+      @Override
+      public void endRow(int rowNum) {
+      }
 
-    byte[] htmlBytes = htmlOut.toByteArray();
+      @Override
+      public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+        int column = cellReference == null ? -1 : new CellReference(cellReference).getCol();
+        try {
+          if (!html.cell(currentRow, column, formattedValue)) {
+            throw new PreviewLimitReached();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
 
-    try (InputStream tin = new ByteArrayInputStream(htmlBytes)) {
-      aesCtrFileEncryptionService.encryptFile(tin, Path.of(id, "1"), password, storageVersion);
+    XMLReader parser = XMLHelper.newXMLReader();
+    parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, handler, new DataFormatter(), false));
+    try {
+      parser.parse(new InputSource(sheet));
+    } catch (PreviewLimitReached e) {
+      // 已达到行数上限，剩余内容无需解析
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
+  }
 
-    result.add(1);
-    return result;
+  /**
+   * 预览 HTML 压缩后加密保存，下载时以 Content-Encoding 原样返回
+   */
+  private ContentCoding previewCoding(StorageVersion storageVersion) {
+    return contentCompressionService.forGenerated(MediaType.TEXT_HTML_VALUE, storageVersion);
   }
 
+  private void writePage(String id, int index, String password, StorageVersion storageVersion, PageBody body)
+      throws Exception {
+    EncryptedFileOutputStream out = aesCtrFileEncryptionService.openEncryptedOutputStream(
+        Path.of(id, String.valueOf(index)), password, storageVersion, previewCoding(storageVersion));
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      HtmlTablePreviewWriter html = new HtmlTablePreviewWriter(writer, properties.maxRows(), properties.maxColumns());
+      html.begin();
+      body.write(html);
+      html.finish();
+    } catch (Exception e) {
+      out.abort();
+      throw e;
+    }
+    out.close();
+  }
 
-  /** ========================
-   *  XLSX → Very Simple HTML（POI 官方只能手写）
-   ========================= */
-  private List<Integer> handleXlsx(InputStream in, String id, String password, StorageVersion storageVersion) throws Exception {
+  @FunctionalInterface
+  private interface PageBody {
 
-    List<Integer> result = new ArrayList<>();
-    XSSFWorkbook workbook = new XSSFWorkbook(in);
+    void write(HtmlTablePreviewWriter html) throws Exception;
+  }
+
+  /**
+   * SAX 回调中无法抛出受检异常，用于在达到上限时中止解析
+   */
+  private static final class PreviewLimitReached extends RuntimeException {
 
-    for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
-      Sheet sheet = workbook.getSheetAt(sheetIndex);
+    PreviewLimitReached() {
+      super(null, null, false, false);
+    }
+  }
 
-      StringBuilder sb = new StringBuilder();
-      sb.append("<html><head><meta charset='UTF-8'></head><body>");
-      sb.append("<table border='1' cellspacing='0' cellpadding='3'>");
+  /**
+   * HSSF 记录按工作表顺序到达：遇到顶层工作表的 BOF 时打开一个预览页，与之配对的 EOF 时提交。
+   * 工作表内嵌的图表、绘图等子流有自己的 BOF/EOF，按嵌套深度区分，其中的记录不写入预览
+   */
+  private final class XlsPreviewListener implements HSSFListener {
+
+    private final String id;
+    private final String password;
+    private final StorageVersion storageVersion;
+    private final ThumbnailListener listener;
+    private final FormatTrackingHSSFListener formatListener;
+    private final List<Integer> result = new ArrayList<>();
+
+    private int sheetCount;
+    private int depth;
+    private int pageIndex;
+    private SSTRecord sst;
+    private EncryptedFileOutputStream out;
+    private HtmlTablePreviewWriter html;
+    private boolean full;
+    private int pendingFormulaRow = -1;
+    private int pendingFormulaColumn;
+
+    private XlsPreviewListener(String id, String password, StorageVersion storageVersion,
+        ThumbnailListener listener) {
+      this.id = id;
+      this.password = password;
+      this.storageVersion = storageVersion;
+      this.listener = listener;
+      this.formatListener = new FormatTrackingHSSFListener(this);
+    }
 
-      for (Row row : sheet) {
-        sb.append("<tr>");
-        for (Cell cell : row) {
-          sb.append("<td>");
-          sb.append(getCellValue(cell));
-          sb.append("</td>");
+    @Override
+    public void processRecord(Record record) {
+      try {
+        switch (record.getSid()) {
+          case BoundSheetRecord.sid -> {
+            if (isWorksheet((BoundSheetRecord) record)) {
+              sheetCount++;
+            }
+          }
+          case BOFRecord.sid -> {
+            depth++;
+            if (depth == 1 && ((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET) {
+              openPage();
+            }
+          }
+          case EOFRecord.sid -> {
+            depth--;
+            if (depth == 0) {
+              commitPage();
+            }
+          }
+          case SSTRecord.sid -> sst = (SSTRecord) record;
+          case LabelSSTRecord.sid -> {
+            LabelSSTRecord label = (LabelSSTRecord) record;
+            cell(label.getRow(), label.getColumn(), sst.getString(label.getSSTIndex()).getString());
+          }
+          case LabelRecord.sid -> {
+            LabelRecord label = (LabelRecord) record;
+            cell(label.getRow(), label.getColumn(), label.getValue());
+          }
+          case NumberRecord.sid -> {
+            NumberRecord number = (NumberRecord) record;
+            cell(number.getRow(), number.getColumn(), formatListener.formatNumberDateCell(number));
+          }
+          case BoolErrRecord.sid -> {
+            BoolErrRecord boolErr = (BoolErrRecord) record;
+            cell(boolErr.getRow(), boolErr.getColumn(),
+                boolErr.isBoolean() ? String.valueOf(boolErr.getBooleanValue()) : "#ERR");
+          }
+          case FormulaRecord.sid -> {
+            FormulaRecord formula = (FormulaRecord) record;
+            if (formula.hasCachedResultString()) {
+              // 字符串结果在紧随其后的 StringRecord 中
+              pendingFormulaRow = formula.getRow();
+              pendingFormulaColumn = formula.getColumn();
+            } else {
+              cell(formula.getRow(), formula.getColumn(), formatListener.formatNumberDateCell(formula));
+            }
+          }
+          case StringRecord.sid -> {
+            if (pendingFormulaRow >= 0) {
+              cell(pendingFormulaRow, pendingFormulaColumn, ((StringRecord) record).getString());
+              pendingFormulaRow = -1;
+            }
+          }
+          default -> {
+          }
         }
-        sb.append("</tr>");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (Exception e) {
+        throw new IllegalStateException("Failed to write spreadsheet preview", e);
       }
+    }
 
-      sb.append("</table></body></html>");
-
-      byte[] htmlBytes = sb.toString().getBytes("UTF-8");
-
-      try (InputStream tin = new ByteArrayInputStream(htmlBytes)) {
-        aesCtrFileEncryptionService.encryptFile(
-            tin,
-            Path.of(id, String.valueOf(sheetIndex + 1)),
-            password,
-            storageVersion
-        );
+    private void openPage() throws Exception {
+      if (pageIndex == 0) {
+        listener.onStart(sheetCount);
       }
-
-      result.add(sheetIndex + 1);
+      pageIndex++;
+      out = aesCtrFileEncryptionService.openEncryptedOutputStream(
+          Path.of(id, String.valueOf(pageIndex)), password, storageVersion, previewCoding(storageVersion));
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      html = new HtmlTablePreviewWriter(writer, properties.maxRows(), properties.maxColumns());
+      html.begin();
+      full = false;
     }
 
-    return result;
-  }
+    private void cell(int row, int column, String value) throws IOException {
+      if (html == null || full || depth != 1) {
+        return;
+      }
+      full = !html.cell(row, column, value);
+    }
 
+    private void commitPage() throws IOException {
+      if (out == null) {
+        // 工作簿全局区的 EOF
+        return;
+      }
+      html.finish();
+      out.close();
+      out = null;
+      html = null;
+      result.add(pageIndex);
+      listener.onGenerated(pageIndex);
+    }
 
-  private String getCellValue(Cell cell) {
-    if (cell == null) {
-      return "";
+    /**
+     * BoundSheetRecord 选项字段的高字节是工作表类型：0 为工作表（含对话框表），1 为宏表，2 为图表，6 为 VB 模块。
+     * POI 没有公开该字段，从序列化结果中读取：4 字节记录头、4 字节 BOF 位置之后是小端序的选项字段
+     */
+    private static boolean isWorksheet(BoundSheetRecord record) {
+      return record.serialize()[9] == 0;
     }
 
-    return switch (cell.getCellType()) {
-      case STRING -> cell.getStringCellValue();
-      case NUMERIC -> String.valueOf(cell.getNumericCellValue());
-      case BOOLEAN -> String.valueOf(cell.getBooleanCellValue());
-      case FORMULA -> cell.getCellFormula();
-      default -> "";
-    };
+    private void abortOpenPage() {
+      if (out != null) {
+        out.abort();
+        out = null;
+      }
+    }
   }
 }
@@ -0,0 +1,190 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType;
+import jakarta.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * 将多个文件打包为 ZIP 流式输出
+ * <p>
+ * 文件逐个解密后直接写入 {@link ZipOutputStream}，不落临时文件；
+ * 内存占用只有解密缓冲区和 Deflater 窗口，客户端读得慢时写操作阻塞，天然形成背压。
+ * <p>
+ * 写响应之前先用 {@link #prepare} 逐个打开所有文件确认可读，读不了的文件在提交响应之前就记入 {@value #MISSING_ENTRY}。
+ * 本身已压缩的格式以 DEFLATE 0 级（不压缩）写入：与 STORED 不同，不需要在条目头中预先写出 CRC，
+ * 每个文件只解密一遍。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class FileArchiveService {
+
+    private static final String MISSING_ENTRY = "_missing.txt";
+
+    /**
+     * 本身已压缩的格式，再做 DEFLATE 只会浪费 CPU
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "avif", "heic",
+            "mp4", "m4v", "mkv", "webm", "mov", "avi", "ts",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "zip", "gz", "tgz", "7z", "rar", "xz", "bz2", "zst",
+            "pdf", "docx", "xlsx", "pptx", "epub", "jar");
+
+    private final FileService fileService;
+
+    /**
+     * 确定条目名并确认每个文件都能打开读取，在提交响应之前调用
+     *
+     * @param files 待打包文件
+     */
+    public Archive prepare(List<FileResource> files) {
+        Set<String> usedNames = new HashSet<>();
+        List<Entry> entries = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (FileResource res : files) {
+            String entryName = uniqueEntryName(res, usedNames);
+            try {
+                verifyReadable(res);
+                entries.add(new Entry(res, entryName));
+            } catch (IOException | RuntimeException e) {
+                log.warn("skip unreadable file in archive: {}", res.getId().id(), e);
+                missing.add(entryName);
+            }
+        }
+        String missingEntryName = missing.isEmpty() ? null : uniqueName(MISSING_ENTRY, usedNames);
+        return new Archive(entries, missing, missingEntryName);
+    }
+
+    /**
+     * 按顺序把文件写成 ZIP，读取失败的文件记录到 {@value #MISSING_ENTRY}。
+     * 写入过程中仍然失败时抛出异常且不写 ZIP 目录，调用方不能把残缺的内容当作完整响应结束
+     *
+     * @param archive      {@link #prepare} 的结果
+     * @param outputStream 响应输出流，调用方负责关闭
+     */
+    public void writeZip(Archive archive, OutputStream outputStream) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(outputStream, StandardCharsets.UTF_8);
+        for (Entry item : archive.entries()) {
+            FileResource res = item.file();
+            ZipEntry entry = new ZipEntry(item.name());
+            FileTime modified = toFileTime(res.getUpdatedAt() != null ? res.getUpdatedAt() : res.getCreatedAt());
+            if (modified != null) {
+                entry.setLastModifiedTime(modified);
+            }
+            entry.setMethod(ZipEntry.DEFLATED);
+            zip.setLevel(isCompressed(res) ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+            zip.putNextEntry(entry);
+            fileService.downloadFile(res, null).writeTo(zip);
+            zip.closeEntry();
+        }
+
+        if (archive.missingEntryName() != null) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry(archive.missingEntryName()));
+            zip.write(String.join("\n", archive.missing()).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * 取长度并打开文件读出第一个字节：文件缺失、密钥无法解开或开头的分段校验失败都会在这里发现。
+     * 不保持打开，避免大合集同时占用大量文件句柄
+     */
+    private void verifyReadable(FileResource res) throws IOException {
+        fileService.getContentLength(res, null);
+        if (res.getResourceType() == ResourceType.DATABASE) {
+            return;
+        }
+        try (InputStream in = fileService.openContent(res)) {
+            in.read();
+        }
+    }
+
+    private static boolean isCompressed(FileResource res) {
+        String contentType = res.getContentType();
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            if (type.startsWith("video/")) {
+                return true;
+            }
+            if (type.startsWith("image/") && !type.contains("svg") && !type.contains("bmp")
+                    && !type.contains("tiff")) {
+                return true;
+            }
+            if (type.startsWith("audio/") && !type.contains("wav")) {
+                return true;
+            }
+        }
+        String extension = StringUtils.getFilenameExtension(res.getFilename());
+        return extension != null && COMPRESSED_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+    }
+
+    private static String uniqueEntryName(FileResource res, Set<String> usedNames) {
+        String name = res.getFilename();
+        if (!StringUtils.hasText(name)) {
+            name = res.getId().id();
+        }
+        // 去掉路径成分，避免解压时出现目录穿越
+        name = name.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.isBlank() || name.equals(".") || name.equals("..")) {
+            name = res.getId().id();
+        }
+        return uniqueName(name, usedNames);
+    }
+
+    private static String uniqueName(String name, Set<String> usedNames) {
+        if (usedNames.add(name.toLowerCase(Locale.ROOT))) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 2; ; i++) {
+            String candidate = base + " (" + i + ")" + ext;
+            if (usedNames.add(candidate.toLowerCase(Locale.ROOT))) {
+                return candidate;
+            }
+        }
+    }
+
+    private static FileTime toFileTime(LocalDateTime time) {
+        return time == null ? null : FileTime.from(time.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * 打包计划
+     *
+     * @param missing          无法读取的文件的条目名
+     * @param missingEntryName 记录 missing 的说明文件的条目名，没有缺失文件时为 null
+     */
+    public record Archive(List<Entry> entries, List<String> missing, @Nullable String missingEntryName) {
+
+    }
+
+    public record Entry(FileResource file, String name) {
+
+    }
+}
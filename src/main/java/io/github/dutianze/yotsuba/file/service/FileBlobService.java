@@ -0,0 +1,93 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.FileDataSourceConfig;
+import io.github.dutianze.yotsuba.file.domain.FileBlob;
+import io.github.dutianze.yotsuba.file.domain.FileBlobRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * 内容寻址 blob 的引用计数。ref_count 是指向 blob 的 FileResource 行数，是 blob 能否删除的唯一依据。
+ * <p>
+ * 获取引用与释放引用各在一个文件数据源的写事务中完成：SQLite 同一时间只允许一个写事务，
+ * 释放时以 ref_count = 0 为条件删除记录并删除文件，并发的重复上传要么先增加计数使删除失败，
+ * 要么在删除提交之后才看到记录不存在，重新写入文件。
+ */
+@Slf4j
+@Service
+public class FileBlobService {
+
+    private final FileBlobRepository fileBlobRepository;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final TransactionTemplate transactionTemplate;
+
+    public FileBlobService(FileBlobRepository fileBlobRepository,
+                           AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                           @Qualifier(FileDataSourceConfig.PLATFORM_TX_MANAGER)
+                           PlatformTransactionManager transactionManager) {
+        this.fileBlobRepository = fileBlobRepository;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * 为一个新的 FileResource 获取 blob 引用。blob 已存在时增加计数并删除暂存文件；
+     * 否则把暂存文件移动到内容寻址位置并创建计数为 1 的记录
+     *
+     * @param stagingPath 已加密写入 stagingVersion 布局的暂存文件
+     */
+    public ClaimedBlob claim(String contentHash, long size, Path stagingPath, StorageVersion stagingVersion,
+                             StorageVersion contentAddressedVersion) {
+        ClaimedBlob claimed = transactionTemplate.execute(status -> {
+            if (fileBlobRepository.acquire(contentHash) == 1) {
+                return new ClaimedBlob(fileBlobRepository.findById(contentHash).orElseThrow(), false);
+            }
+            try {
+                aesCtrFileEncryptionService.moveEncryptedFile(stagingPath, stagingVersion, Path.of(contentHash),
+                                                              contentAddressedVersion);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new ClaimedBlob(fileBlobRepository.save(
+                FileBlob.create(contentHash, size, contentAddressedVersion, List.of())), true);
+        });
+        if (!claimed.created()) {
+            log.info("Duplicate content {}, discarding staged file {}", contentHash, stagingPath);
+            aesCtrFileEncryptionService.deleteFile(stagingPath.toString(), stagingVersion);
+        }
+        return claimed;
+    }
+
+    /**
+     * 释放一个 FileResource 持有的引用，计数归零时删除记录与实际文件
+     *
+     * @return 引用已释放（文件仍被使用或已删除）
+     */
+    public boolean release(String contentHash, StorageVersion storageVersion) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            fileBlobRepository.adjustRefCount(contentHash, -1);
+            if (fileBlobRepository.deleteIfUnreferenced(contentHash) == 0) {
+                log.info("Blob {} still in use, keeping file", contentHash);
+                return true;
+            }
+            boolean deleted = aesCtrFileEncryptionService.deleteFile(contentHash, storageVersion);
+            log.info("Blob deleted: {}", contentHash);
+            return deleted;
+        }));
+    }
+
+    /**
+     * @param created 是否为本次写入的新内容，新内容需要生成预览图
+     */
+    public record ClaimedBlob(FileBlob blob, boolean created) {
+
+    }
+}
@@ -0,0 +1,195 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.IntegrityProperties;
+import io.github.dutianze.yotsuba.file.domain.FileChecksum;
+import io.github.dutianze.yotsuba.file.domain.FileChecksumRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * 维护磁盘文件的 HMAC-SHA256 校验值。
+ * <p>
+ * 校验值对落盘的字节计算，不需要解密密码，后台校验时只读不解密即可发现位翻转和截断。
+ * 校验值的写入失败只记录日志，不影响上传，没有校验值的文件由后台校验补算。
+ */
+@Slf4j
+@Service
+public class FileChecksumService {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChecksumRepository fileChecksumRepository;
+    private final SecretKeySpec macKey;
+    private final Lock[] pathLocks = new Lock[LOCK_STRIPES];
+
+    public FileChecksumService(FileChecksumRepository fileChecksumRepository, IntegrityProperties properties) {
+        if (!StringUtils.hasText(properties.macKey())) {
+            throw new IllegalStateException("modules.file.integrity.mac-key must be configured");
+        }
+        this.fileChecksumRepository = fileChecksumRepository;
+        this.macKey = new SecretKeySpec(Base64.getDecoder().decode(properties.macKey()), MAC_ALGORITHM);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            pathLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * 同一文件的内容替换与校验值更新、后台校验的判定之间互斥，持有锁时文件与记录的校验值一致
+     */
+    public Lock lock(Path path) {
+        return pathLocks[Math.floorMod(pathKey(path).hashCode(), LOCK_STRIPES)];
+    }
+
+    public Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(macKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialize " + MAC_ALGORITHM, e);
+        }
+    }
+
+    /**
+     * 读取文件计算校验值，每读取一段回调一次，供调用方限速
+     */
+    public byte[] computeMac(Path storedFile, ReadListener listener) throws IOException {
+        Mac mac = newMac();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(storedFile)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                mac.update(buffer, 0, read);
+                listener.onRead(read);
+            }
+        }
+        return mac.doFinal();
+    }
+
+    /**
+     * 比较校验值，使用常数时间比较
+     */
+    public boolean matches(FileChecksum checksum, byte[] mac) {
+        return MessageDigest.isEqual(HexFormat.of().parseHex(checksum.getMac()), mac);
+    }
+
+    /**
+     * 记录写入流时同步计算出的校验值
+     */
+    public void record(Path path, StorageVersion storageVersion, byte[] mac, long fileSize) {
+        String pathKey = pathKey(path);
+        try {
+            String hex = HexFormat.of().formatHex(mac);
+            FileChecksum checksum = fileChecksumRepository.findByPath(pathKey)
+                .map(existing -> {
+                    existing.update(storageVersion, hex, fileSize);
+                    return existing;
+                })
+                .orElseGet(() -> FileChecksum.create(pathKey, path.getName(0).toString(), storageVersion, hex,
+                                                     fileSize));
+            fileChecksumRepository.save(checksum);
+        } catch (RuntimeException e) {
+            log.warn("Failed to record checksum for {}", pathKey, e);
+        }
+    }
+
+    /**
+     * 读取已落盘的文件计算并记录校验值，用于分片上传等无法在写入时计算的场景
+     */
+    public void recordFile(Path path, StorageVersion storageVersion, Path storedFile) {
+        try {
+            byte[] mac = computeMac(storedFile, read -> {
+            });
+            record(path, storageVersion, mac, Files.size(storedFile));
+        } catch (IOException e) {
+            log.warn("Failed to compute checksum for {}", storedFile, e);
+        }
+    }
+
+    /**
+     * 文件移动到新的存储位置后同步校验值
+     *
+     * @param thumbnailsMoved 预览图目录是否随文件一起移动；否则保留目标已有的预览图校验值
+     * @return 源文件本体是否有校验值，没有时调用方需要重新计算
+     */
+    public boolean move(Path source, Path target, StorageVersion targetVersion, boolean thumbnailsMoved) {
+        String sourceKey = source.getName(0).toString();
+        String targetKey = target.getName(0).toString();
+        try {
+            boolean hasMain = fileChecksumRepository.existsByPath(pathKey(source));
+            if (sourceKey.equals(targetKey) || thumbnailsMoved) {
+                if (!sourceKey.equals(targetKey)) {
+                    fileChecksumRepository.deleteByStorageKeyAndStorageVersion(targetKey, targetVersion);
+                }
+                fileChecksumRepository.moveStorageKey(sourceKey, targetKey, targetVersion);
+            } else {
+                fileChecksumRepository.deleteByPath(pathKey(target));
+                fileChecksumRepository.movePath(pathKey(source), pathKey(target), targetKey, targetVersion);
+                // 目标预览图目录已存在，源预览图目录已被丢弃
+                deleteAll(sourceKey);
+            }
+            return hasMain;
+        } catch (RuntimeException e) {
+            log.warn("Failed to move checksums from {} to {}", source, target, e);
+            return true;
+        }
+    }
+
+    /**
+     * 只有预览图目录移动到另一个存储键下时同步校验值，目标文件本体的校验值保持不变
+     */
+    public void moveThumbnails(String sourceKey, String targetKey, StorageVersion targetVersion) {
+        try {
+            fileChecksumRepository.moveStorageKey(sourceKey, targetKey, targetVersion);
+        } catch (RuntimeException e) {
+            log.warn("Failed to move thumbnail checksums from {} to {}", sourceKey, targetKey, e);
+        }
+    }
+
+    public void delete(String storageKey, StorageVersion storageVersion) {
+        try {
+            fileChecksumRepository.deleteByStorageKeyAndStorageVersion(storageKey, storageVersion);
+        } catch (RuntimeException e) {
+            log.warn("Failed to delete checksums for {}", storageKey, e);
+        }
+    }
+
+    private void deleteAll(String storageKey) {
+        for (StorageVersion storageVersion : StorageVersion.values()) {
+            fileChecksumRepository.deleteByStorageKeyAndStorageVersion(storageKey, storageVersion);
+        }
+    }
+
+    /**
+     * 存储路径统一用 / 分隔，与操作系统无关
+     */
+    public static String pathKey(Path path) {
+        return StreamSupport.stream(path.spliterator(), false)
+            .map(Path::toString)
+            .collect(Collectors.joining("/"));
+    }
+
+    @FunctionalInterface
+    public interface ReadListener {
+
+        void onRead(int bytes) throws IOException;
+    }
+}
@@ -0,0 +1,379 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.IntegrityProperties;
+import io.github.dutianze.yotsuba.file.domain.FileChecksum;
+import io.github.dutianze.yotsuba.file.domain.FileChecksumRepository;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ChecksumStatus;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+
+/**
+ * 后台完整性校验：按限速重新读取磁盘文件，与写入时记录的 HMAC 比较。
+ * <p>
+ * 先为没有校验值的旧文件补算校验值，再按 path 顺序逐个校验。
+ * 文件缺失记为 MISSING，大小或校验值不符记为 CORRUPT，开启隔离时移入隔离目录，避免继续把损坏内容返回给用户。
+ */
+@Slf4j
+@Service
+public class FileIntegrityScrubService {
+
+    private final FileChecksumRepository fileChecksumRepository;
+    private final FileResourceRepository fileResourceRepository;
+    private final FileChecksumService fileChecksumService;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final IntegrityProperties properties;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "integrity-scrub");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong baselined = new AtomicLong();
+    private final AtomicLong corrupt = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile String phase;
+    private volatile String lastError;
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+    private long runStartNanos;
+
+    public FileIntegrityScrubService(FileChecksumRepository fileChecksumRepository,
+                                     FileResourceRepository fileResourceRepository,
+                                     FileChecksumService fileChecksumService,
+                                     AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                                     IntegrityProperties properties) {
+        this.fileChecksumRepository = fileChecksumRepository;
+        this.fileResourceRepository = fileResourceRepository;
+        this.fileChecksumService = fileChecksumService;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.properties = properties;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleScrub() {
+        if (!properties.scrubEnabled()) {
+            log.info("Scheduled integrity scrub disabled");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (running.compareAndSet(false, true)) {
+                scrub();
+            }
+        }, properties.initialDelay().toMillis(), properties.interval().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在后台立即开始一次完整校验，已在运行时不重复启动
+     *
+     * @return 是否启动了新的校验
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        scheduler.execute(this::scrub);
+        return true;
+    }
+
+    /**
+     * 请求在当前文件校验完后停止
+     */
+    public void stop() {
+        stopRequested.set(true);
+    }
+
+    public ScrubStatus status() {
+        return new ScrubStatus(running.get(), phase, checked.get(), baselined.get(), corrupt.get(), missing.get(),
+                               quarantined.get(), bytesRead.get(), lastError, startedAt, finishedAt);
+    }
+
+    /**
+     * 校验失败或文件缺失的记录
+     */
+    public List<IntegrityProblem> problems() {
+        return fileChecksumRepository.findByStatusNotOrderByUpdatedAtDesc(ChecksumStatus.OK).stream()
+            .map(checksum -> new IntegrityProblem(checksum.getPath(), checksum.getStorageVersion(),
+                                                  checksum.getStatus(), checksum.getFileSize(),
+                                                  checksum.getVerifiedAt(), checksum.getUpdatedAt()))
+            .toList();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested.set(true);
+        scheduler.shutdownNow();
+    }
+
+    private void scrub() {
+        stopRequested.set(false);
+        checked.set(0);
+        baselined.set(0);
+        corrupt.set(0);
+        missing.set(0);
+        quarantined.set(0);
+        bytesRead.set(0);
+        lastError = null;
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        runStartNanos = System.nanoTime();
+        log.info("Integrity scrub started");
+        try {
+            if (properties.backfill()) {
+                phase = "BACKFILL";
+                backfill();
+            }
+            phase = "VERIFY";
+            verifyAll();
+            log.info("Integrity scrub {}: {} checked, {} baselined, {} corrupt, {} missing",
+                     stopRequested.get() ? "stopped" : "finished", checked.get(), baselined.get(), corrupt.get(),
+                     missing.get());
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+            log.info("Integrity scrub interrupted");
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            log.error("Integrity scrub aborted", e);
+        } finally {
+            phase = null;
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 为启用校验之前上传的文件和预览图补算校验值
+     */
+    private void backfill() throws IOException {
+        String afterId = "";
+        while (!stopRequested.get()) {
+            List<FileResource> batch = fileResourceRepository.findLocalAfter(afterId, Limit.of(properties.batchSize()));
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (FileResource res : batch) {
+                if (stopRequested.get()) {
+                    return;
+                }
+                afterId = res.getId().id();
+                StorageVersion storageVersion = Objects.requireNonNullElse(res.getStorageVersion(), StorageVersion.V1);
+                String storageKey = res.getStorageKey();
+                if (storageKey == null) {
+                    continue;
+                }
+                List<Path> paths = new ArrayList<>();
+                paths.add(Path.of(storageKey));
+                for (Integer index : res.getThumbnailIndexList()) {
+                    paths.add(Path.of(storageKey, String.valueOf(index)));
+                }
+                for (Path path : paths) {
+                    baseline(path, storageVersion);
+                }
+            }
+        }
+    }
+
+    private void baseline(Path path, StorageVersion storageVersion) throws IOException {
+        if (fileChecksumRepository.existsByPath(FileChecksumService.pathKey(path))) {
+            return;
+        }
+        Path storedFile = aesCtrFileEncryptionService.resolveStoredFile(path, storageVersion);
+        if (!Files.exists(storedFile)) {
+            return;
+        }
+        byte[] mac = fileChecksumService.computeMac(storedFile, this::throttle);
+        fileChecksumService.record(path, storageVersion, mac, Files.size(storedFile));
+        baselined.incrementAndGet();
+    }
+
+    private void verifyAll() throws IOException {
+        String afterPath = "";
+        while (!stopRequested.get()) {
+            List<FileChecksum> batch = fileChecksumRepository.findByPathGreaterThanOrderByPath(
+                afterPath, Limit.of(properties.batchSize()));
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (FileChecksum checksum : batch) {
+                if (stopRequested.get()) {
+                    return;
+                }
+                afterPath = checksum.getPath();
+                if (checksum.getStatus() == ChecksumStatus.QUARANTINED) {
+                    continue;
+                }
+                try {
+                    verify(checksum);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    lastError = checksum.getPath() + ": " + e.getMessage();
+                    log.error("Failed to verify {}", checksum.getPath(), e);
+                }
+            }
+        }
+    }
+
+    private void verify(FileChecksum checksum) throws IOException {
+        Path path = toPath(checksum.getPath());
+        Path storedFile = aesCtrFileEncryptionService.resolveStoredFile(path, checksum.getStorageVersion());
+        checked.incrementAndGet();
+
+        if (!Files.exists(storedFile)) {
+            if (isStale(checksum)) {
+                return;
+            }
+            log.error("Integrity check failed, file missing: {}", storedFile);
+            missing.incrementAndGet();
+            checksum.markMissing();
+            fileChecksumRepository.save(checksum);
+            return;
+        }
+
+        // 大小不符说明文件被截断或追加，不必再读取内容
+        boolean intact = Files.size(storedFile) == checksum.getFileSize()
+            && fileChecksumService.matches(checksum, fileChecksumService.computeMac(storedFile, this::throttle));
+        if (intact) {
+            checksum.verified();
+            fileChecksumRepository.save(checksum);
+            return;
+        }
+        // 重新包装数据密钥等替换文件的操作在锁内同时更新文件与校验值，持锁后重新比较，避免把正在替换的文件判为损坏
+        Lock lock = fileChecksumService.lock(path);
+        lock.lock();
+        try {
+            if (isStale(checksum)) {
+                return;
+            }
+            if (Files.exists(storedFile) && Files.size(storedFile) == checksum.getFileSize()
+                && fileChecksumService.matches(checksum, fileChecksumService.computeMac(storedFile, this::throttle))) {
+                checksum.verified();
+                fileChecksumRepository.save(checksum);
+                return;
+            }
+
+            log.error("Integrity check failed, checksum mismatch: {}", storedFile);
+            corrupt.incrementAndGet();
+            if (properties.quarantine() && Files.exists(storedFile)) {
+                quarantine(storedFile);
+                quarantined.incrementAndGet();
+                checksum.markQuarantined();
+            } else {
+                checksum.markCorrupt();
+            }
+            fileChecksumRepository.save(checksum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取期间文件被重新写入或删除时，校验值记录已变化，本次结果作废
+     */
+    private boolean isStale(FileChecksum checksum) {
+        return fileChecksumRepository.findById(checksum.getId())
+            .map(current -> !current.getMac().equals(checksum.getMac())
+                || !Objects.equals(current.getStorageVersion(), checksum.getStorageVersion()))
+            .orElse(true);
+    }
+
+    private void quarantine(Path storedFile) throws IOException {
+        Path relative = aesCtrFileEncryptionService.getStorageRoot().relativize(storedFile);
+        Path target = aesCtrFileEncryptionService.getQuarantineRoot().resolve(relative);
+        Files.createDirectories(target.getParent());
+        Files.move(storedFile, target, StandardCopyOption.REPLACE_EXISTING);
+        log.warn("Quarantined corrupt file {} to {}", storedFile, target);
+    }
+
+    private static Path toPath(String pathKey) {
+        String[] parts = pathKey.split("/");
+        return Path.of(parts[0], Arrays.copyOfRange(parts, 1, parts.length));
+    }
+
+    /**
+     * 按 maxBytesPerSecond 限制平均读取速率
+     */
+    private void throttle(int read) throws InterruptedIOException {
+        long total = bytesRead.addAndGet(read);
+        long bytesPerSecond = properties.maxBytesPerSecond().toBytes();
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = (long) ((double) total / bytesPerSecond * 1_000_000_000L);
+        long elapsedNanos = System.nanoTime() - runStartNanos;
+        if (expectedNanos > elapsedNanos) {
+            try {
+                Thread.sleep((expectedNanos - elapsedNanos) / 1_000_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Integrity scrub interrupted");
+            }
+        }
+    }
+
+    /**
+     * 校验进度
+     *
+     * @param phase      当前阶段：BACKFILL 补算旧文件校验值，VERIFY 校验
+     * @param baselined  本次补算校验值的文件数
+     * @param bytesRead  本次读取的字节数
+     */
+    public record ScrubStatus(
+        boolean running,
+        @Nullable String phase,
+        long checked,
+        long baselined,
+        long corrupt,
+        long missing,
+        long quarantined,
+        long bytesRead,
+        @Nullable String lastError,
+        @Nullable LocalDateTime startedAt,
+        @Nullable LocalDateTime finishedAt
+    ) {
+
+    }
+
+    /**
+     * 校验失败的文件
+     */
+    public record IntegrityProblem(
+        String path,
+        StorageVersion storageVersion,
+        ChecksumStatus status,
+        long fileSize,
+        @Nullable LocalDateTime verifiedAt,
+        @Nullable LocalDateTime updatedAt
+    ) {
+
+    }
+}
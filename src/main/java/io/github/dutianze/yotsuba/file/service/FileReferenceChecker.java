@@ -0,0 +1,17 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+
+/**
+ * 由引用文件的模块实现，孤立文件回收删除记录之前据此重新确认文件确实没有被使用。
+ * <p>
+ * FileResource 的 reference_id 由无序的异步事件维护，只能作为候选依据：同一文件被多处使用、
+ * 事件乱序到达时它可能已被清空而文件仍在使用
+ */
+public interface FileReferenceChecker {
+
+    /**
+     * 文件当前是否被引用
+     */
+    boolean isReferenced(FileResourceId fileResourceId);
+}
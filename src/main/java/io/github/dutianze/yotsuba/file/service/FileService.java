@@ -1,5 +1,7 @@
 package io.github.dutianze.yotsuba.file.service;
 
+import io.github.dutianze.yotsuba.file.config.FileStorageProperties;
+import io.github.dutianze.yotsuba.file.domain.FileBlob;
 import io.github.dutianze.yotsuba.file.domain.FileResource;
 import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
 import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
@@ -8,14 +10,20 @@ import io.github.dutianze.yotsuba.file.domain.valueobject.ReferenceInfo;
 import io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType;
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
 import io.github.dutianze.yotsuba.shared.common.FileReferenceId;
+import jakarta.annotation.Nullable;
 import jakarta.annotation.PostConstruct;
 import jakarta.transaction.Transactional;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -25,8 +33,12 @@ import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
@@ -39,39 +51,215 @@ public class FileService {
     private static final Logger logger = LoggerFactory.getLogger(FileService.class);
     private static final String FILE_STORAGE_PATH = "files";
     private static final String PASSWORD = "123";
+    private static final StorageVersion STAGING_VERSION = StorageVersion.V7;
+    private static final StorageVersion CONTENT_ADDRESSED_VERSION = StorageVersion.V8;
 
     private final FileResourceRepository fileResourceRepository;
     private final PasswordEncoder passwordEncoder;
     private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
-    private final ThumbnailHandler thumbnailHandler;
+    private final ThumbnailJobService thumbnailJobService;
+    private final DatabaseBlobReader databaseBlobReader;
+    private final DecryptedContentCache decryptedContentCache;
+    private final FileStorageProperties fileStorageProperties;
+    private final ContentCompressionService contentCompressionService;
+    private final Mp4FaststartService mp4FaststartService;
+    private final FileBlobService fileBlobService;
 
     public FileResource upload(MultipartFile file, String password, String referenceId,
                                ReferenceCategory referenceCategory) throws Exception {
         logger.info("Saving file: {}", file.getName());
         FileResourceId fileResourceId = new FileResourceId();
-        StorageVersion storageVersion = StorageVersion.V3;
-        List<Integer> thumbnailIndexList;
-        try (InputStream in = new BufferedInputStream(file.getInputStream())) {
-            aesCtrFileEncryptionService.encryptFile(in, Path.of(fileResourceId.id()), password, storageVersion);
-            thumbnailIndexList = thumbnailHandler.generateThumbnail(file, fileResourceId.id(), password, storageVersion);
+        // 未提供密码或属于明文类别的文件不加密保存
+        boolean plaintext = StringUtils.isBlank(password)
+                || fileStorageProperties.plaintextCategories().contains(referenceCategory);
+
+        // moov 在末尾的 MP4 重排到开头，保存的即是可以边下边播的内容
+        InputStreamSource source = file;
+        long size = file.getSize();
+        Mp4FaststartService.Remuxed remuxed = mp4FaststartService.prepare(file, file.getContentType());
+        if (remuxed != null) {
+            source = remuxed;
+            size = remuxed.length();
         }
 
         FileResource fileResource = new FileResource();
+        fileResource.setReference(new ReferenceInfo(new FileReferenceId(referenceId), referenceCategory));
+        FileBlobService.ClaimedBlob storedBlob = null;
+        ThumbnailJobService.LiveRender live = null;
+        if (plaintext) {
+            StorageVersion storageVersion = StorageVersion.V3;
+            try (InputStream in = new BufferedInputStream(source.getInputStream())) {
+                aesCtrFileEncryptionService.storePlainFile(in, Path.of(fileResourceId.id()), storageVersion);
+            }
+            fileResource.setStorageVersion(storageVersion);
+        } else {
+            live = thumbnailJobService.startLive(file.getOriginalFilename());
+            storedBlob = storeBlob(source.getInputStream(), size, fileResourceId, password, file.getContentType(),
+                                   live);
+            FileBlob blob = storedBlob.blob();
+            fileResource.setContentHash(blob.getContentHash());
+            fileResource.setThumbnailIndexList(new ArrayList<>(blob.getThumbnailIndexList()));
+            fileResource.setStorageVersion(blob.getStorageVersion());
+            fileResource.setEncrypted(true);
+            fileResource.setPasswordHash(passwordEncoder.encode(password));
+        }
+
         String contentType =
                 Optional.ofNullable(file.getContentType()).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        FileResource saved = saveFileResource(fileResource, fileResourceId, file.getOriginalFilename(), contentType,
+                                              size, live);
+        // 预览图在后台生成，FileResource 保存之后再入队，保证进度能写回到这条记录
+        if (plaintext) {
+            thumbnailJobService.enqueue(fileResourceId.id(), saved.getStorageVersion(), false, saved.getFilename());
+        } else if (storedBlob.created()) {
+            thumbnailJobService.enqueue(saved.getContentHash(), saved.getStorageVersion(), true,
+                                        saved.getFilename(), live);
+        }
+        return saved;
+    }
+
+    /**
+     * 将长度未知的输入流（如服务端下载的内容）边读边加密保存为 FileResource，内容不经过内存或明文临时文件
+     */
+    public FileResource upload(InputStream in, String filename, String contentType, String password,
+                               String referenceId, ReferenceCategory referenceCategory) throws Exception {
+        FileResourceId fileResourceId = new FileResourceId();
+        String type = Optional.ofNullable(contentType).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        ThumbnailJobService.LiveRender live = thumbnailJobService.startLive(filename);
+        FileBlobService.ClaimedBlob storedBlob = storeBlob(in, -1, fileResourceId, password, type, live);
+        FileBlob blob = storedBlob.blob();
+
+        FileResource fileResource = new FileResource();
+        fileResource.setReference(new ReferenceInfo(new FileReferenceId(referenceId), referenceCategory));
+        fileResource.setContentHash(blob.getContentHash());
+        fileResource.setThumbnailIndexList(new ArrayList<>(blob.getThumbnailIndexList()));
+        fileResource.setStorageVersion(blob.getStorageVersion());
+        fileResource.setEncrypted(true);
+        fileResource.setPasswordHash(passwordEncoder.encode(password));
+        FileResource saved = saveFileResource(fileResource, fileResourceId, filename, type, blob.getFileSize(),
+                                              live);
+        if (storedBlob.created()) {
+            thumbnailJobService.enqueue(saved.getContentHash(), saved.getStorageVersion(), true,
+                                        saved.getFilename(), live);
+        }
+        return saved;
+    }
+
+    /**
+     * 将已加密写入 stagedVersion 布局下的文件（如分片上传的结果）登记为 FileResource。
+     * 解密读取一遍计算内容哈希：内容已存在时删除该文件并复用 blob，否则将其移动到内容寻址位置。
+     */
+    public FileResource adoptEncryptedFile(FileResourceId fileResourceId, StorageVersion stagedVersion,
+                                           String filename, String contentType, long size, String password,
+                                           String referenceId, ReferenceCategory referenceCategory)
+            throws Exception {
+        Path stagedPath = Path.of(fileResourceId.id());
+        String contentHash = sha256Hex(() -> openDecrypted(stagedPath, password, stagedVersion));
+
+        FileBlobService.ClaimedBlob claimed = fileBlobService.claim(contentHash, size, stagedPath, stagedVersion,
+                                                                    CONTENT_ADDRESSED_VERSION);
+        FileBlob blob = claimed.blob();
+
+        FileResource fileResource = new FileResource();
+        fileResource.setReference(new ReferenceInfo(new FileReferenceId(referenceId), referenceCategory));
+        fileResource.setContentHash(blob.getContentHash());
+        fileResource.setThumbnailIndexList(new ArrayList<>(blob.getThumbnailIndexList()));
+        fileResource.setStorageVersion(blob.getStorageVersion());
+        fileResource.setEncrypted(true);
+        fileResource.setPasswordHash(passwordEncoder.encode(password));
+        FileResource saved = saveFileResource(
+                fileResource, fileResourceId, filename,
+                Optional.ofNullable(contentType).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE), size, null);
+        if (claimed.created()) {
+            thumbnailJobService.enqueue(contentHash, saved.getStorageVersion(), true, filename);
+        }
+        return saved;
+    }
+
+    /**
+     * @param live 上传时进行的预览图渲染，保存失败时一并丢弃
+     */
+    private FileResource saveFileResource(FileResource fileResource, FileResourceId fileResourceId, String filename,
+                                          String contentType, long size,
+                                          @Nullable ThumbnailJobService.LiveRender live) {
         fileResource.setId(fileResourceId);
-        fileResource.setFilename(file.getOriginalFilename());
+        fileResource.setFilename(filename);
         fileResource.setResourceType(ResourceType.LOCAL);
-        fileResource.setFileSize(file.getSize());
+        fileResource.setFileSize(size);
         fileResource.setContentType(contentType);
-        fileResource.setThumbnailIndexList(thumbnailIndexList);
-        fileResource.setStorageVersion(storageVersion);
-        fileResource.setReference(new ReferenceInfo(new FileReferenceId(referenceId), referenceCategory));
-        if (StringUtils.isNotBlank(password)) {
-            fileResource.setEncrypted(true);
-            fileResource.setPasswordHash(passwordEncoder.encode(password));
+        try {
+            return fileResourceRepository.save(fileResource);
+        } catch (RuntimeException e) {
+            // 记录没有保存，归还获取的 blob 引用
+            if (fileResource.getContentHash() != null) {
+                fileBlobService.release(fileResource.getContentHash(), fileResource.getStorageVersion());
+            }
+            thumbnailJobService.discardLive(live);
+            throw e;
+        }
+    }
+
+    /**
+     * 按内容哈希保存文件。上传流只读取一次：加密写入以 fileResourceId 为键的暂存位置的同时计算哈希，
+     * 并把同一份内容送给上传时的预览图渲染（live 不为空时）；
+     * 内容已存在时丢弃暂存文件和渲染结果直接复用 blob，否则将其移动到内容寻址位置。
+     * 可压缩的内容先压缩再加密，估算压缩率读取的样本经缓冲区重放，哈希仍按原始内容计算
+     */
+    private FileBlobService.ClaimedBlob storeBlob(InputStream source, long size, FileResourceId stagingId, String password,
+                                 String contentType, @Nullable ThumbnailJobService.LiveRender live) throws Exception {
+        Path stagingPath = Path.of(stagingId.id());
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = new BufferedInputStream(
+                new TeeInputStream(source, digest, live == null ? null : live.pipe()))) {
+            ContentCoding coding = contentCompressionService.forUpload(contentType, size, STAGING_VERSION, in);
+            aesCtrFileEncryptionService.encryptFile(in, stagingPath, password, STAGING_VERSION, coding);
+        } catch (Exception e) {
+            thumbnailJobService.discardLive(live);
+            aesCtrFileEncryptionService.deleteFile(stagingId, STAGING_VERSION);
+            throw e;
+        }
+        if (live != null) {
+            live.finish();
+        }
+
+        String contentHash = HexFormat.of().formatHex(digest.digest());
+        // 长度未知时以写入的明文长度为准
+        long storedSize = size >= 0 ? size
+            : aesCtrFileEncryptionService.getPlaintextLength(stagingPath, STAGING_VERSION);
+        FileBlobService.ClaimedBlob claimed;
+        try {
+            claimed = fileBlobService.claim(contentHash, storedSize, stagingPath, STAGING_VERSION,
+                                            CONTENT_ADDRESSED_VERSION);
+        } catch (RuntimeException e) {
+            thumbnailJobService.discardLive(live);
+            throw e;
+        }
+        if (!claimed.created()) {
+            thumbnailJobService.discardLive(live);
+        }
+        return claimed;
+    }
+
+    private InputStream openDecrypted(Path path, String password, StorageVersion storageVersion) throws IOException {
+        try {
+            return aesCtrFileEncryptionService.decryptFile(path, password, storageVersion);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to decrypt " + path, e);
+        }
+    }
+
+    private static String sha256Hex(InputStreamSource source) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = source.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
         }
-        return fileResourceRepository.save(fileResource);
+        return HexFormat.of().formatHex(digest.digest());
     }
 
     @Transactional
@@ -83,7 +271,15 @@ public class FileService {
 
         FileResource localFileResource = referenceById.get();
         fileResourceRepository.delete(localFileResource);
-        return deleteFileFromFileSystem(localFileResource.getId());
+        return deleteStoredFile(localFileResource);
+    }
+
+    /**
+     * 记录删除之后清理其缓存和实际文件，内容寻址的文件只释放 blob 引用
+     */
+    public boolean deleteStoredFile(FileResource fileResource) {
+        decryptedContentCache.invalidate(fileResource.getId());
+        return deleteFileFromFileSystem(fileResource);
     }
 
     @PostConstruct
@@ -97,11 +293,14 @@ public class FileService {
         }
     }
 
-    private boolean deleteFileFromFileSystem(FileResourceId id) {
+    private boolean deleteFileFromFileSystem(FileResource fileResource) {
+        FileResourceId id = fileResource.getId();
         try {
-            Optional<FileResource> fileResource = fileResourceRepository.findById(id);
-            StorageVersion storageVersion = fileResource.map(FileResource::getStorageVersion)
+            StorageVersion storageVersion = Optional.ofNullable(fileResource.getStorageVersion())
                 .orElse(StorageVersion.V1);
+            if (storageVersion.isContentAddressed()) {
+                return releaseBlob(fileResource);
+            }
             boolean deleted = aesCtrFileEncryptionService.deleteFile(id, storageVersion);
             if (deleted) {
                 logger.info("File deleted: {}", id.id());
@@ -113,48 +312,221 @@ public class FileService {
         }
     }
 
+    /**
+     * 释放 blob 引用，没有任何 FileResource 指向时才删除实际文件
+     */
+    private boolean releaseBlob(FileResource fileResource) {
+        return fileBlobService.release(fileResource.getContentHash(), fileResource.getStorageVersion());
+    }
+
+    /**
+     * 打开文件本体的明文输入流，由调用方关闭
+     */
+    public InputStream openContent(FileResource res) throws IOException {
+        return switch (res.getResourceType()) {
+            case DATABASE -> databaseBlobReader.open(res.getId());
+            case LOCAL -> isPlainFile(res, null)
+                    ? Files.newInputStream(getPlainFile(res))
+                    : openDecrypted(resolvePath(res, null), PASSWORD, res.getStorageVersion());
+        };
+    }
+
     public StreamingResponseBody downloadFile(FileResource res, String index) {
+        return downloadFile(res, index, false);
+    }
+
+    /**
+     * @param encoded 是否原样输出压缩保存的内容（响应带 Content-Encoding），见 {@link #getContentEncoding}
+     */
+    public StreamingResponseBody downloadFile(FileResource res, String index, boolean encoded) {
+        return outputStream -> streamRange(res, index, 0, Long.MAX_VALUE, encoded, outputStream);
+    }
+
+    /**
+     * 只输出 [range.start, range.end] 区间的明文，encoded 时区间针对压缩后的内容
+     */
+    public StreamingResponseBody downloadFileRange(FileResource res, String index, ByteRange range,
+                                                   boolean encoded) {
+        return outputStream -> streamRange(res, index, range.start(), range.length(), encoded, outputStream);
+    }
+
+    /**
+     * 以 multipart/byteranges 格式输出多个区间
+     */
+    public StreamingResponseBody downloadFileRanges(FileResource res, String index, List<ByteRange> ranges,
+                                                    String contentType, String boundary, long totalLength,
+                                                    boolean encoded) {
         return outputStream -> {
-            InputStream inputStream = null;
-            try {
-                switch (res.getResourceType()) {
-                    case DATABASE -> {
-                        byte[] data = res.getData();
-                        if (data == null || data.length == 0) {
-                            return;
+            for (ByteRange range : ranges) {
+                outputStream.write(multipartHeader(range, contentType, boundary, totalLength));
+                streamRange(res, index, range.start(), range.length(), encoded, outputStream);
+            }
+            outputStream.write(multipartTrailer(boundary));
+            outputStream.flush();
+        };
+    }
+
+    /**
+     * 计算 multipart/byteranges 响应体的总长度，用于 Content-Length
+     */
+    public long multipartContentLength(List<ByteRange> ranges, String contentType, String boundary,
+                                       long totalLength) {
+        long length = multipartTrailer(boundary).length;
+        for (ByteRange range : ranges) {
+            length += multipartHeader(range, contentType, boundary, totalLength).length + range.length();
+        }
+        return length;
+    }
+
+    /**
+     * 获取明文长度
+     */
+    public long getContentLength(FileResource res, String index) throws IOException {
+        return getContentLength(res, index, false);
+    }
+
+    /**
+     * 获取明文长度，encoded 时为压缩后的长度
+     */
+    public long getContentLength(FileResource res, String index, boolean encoded) throws IOException {
+        if (encoded) {
+            return aesCtrFileEncryptionService.getEncodedLength(resolvePath(res, index), res.getStorageVersion());
+        }
+        if (res.getResourceType() == ResourceType.LOCAL && !isPlainFile(res, index)) {
+            byte[] cached = decryptedContentCache.peek(DecryptedContentCache.ContentKey.of(res.getId(), index));
+            if (cached != null) {
+                return cached.length;
+            }
+        }
+        return switch (res.getResourceType()) {
+            case DATABASE -> databaseBlobReader.length(res.getId());
+            case LOCAL -> isPlainFile(res, index)
+                    ? Files.size(getPlainFile(res))
+                    : aesCtrFileEncryptionService.getPlaintextLength(resolvePath(res, index),
+                                                                     res.getStorageVersion());
+        };
+    }
+
+    /**
+     * 内容可能压缩保存时返回可能的 Content-Encoding（gzip），否则返回 null。只依赖元数据，不读取文件
+     */
+    public String getCandidateEncoding(FileResource res, String index, String contentType) {
+        StorageVersion storageVersion = res.getStorageVersion();
+        if (res.getResourceType() != ResourceType.LOCAL || isPlainFile(res, index) || storageVersion == null
+            || !storageVersion.isSegmented() || !contentCompressionService.isCompressible(contentType)) {
+            return null;
+        }
+        return ContentCoding.GZIP.contentEncoding();
+    }
+
+    /**
+     * 压缩保存的加密文件返回其 Content-Encoding（如 gzip），否则返回 null。
+     * 只有 {@link #getCandidateEncoding} 不为 null 时才读取文件头部，其余情况不产生磁盘读取
+     */
+    public String getContentEncoding(FileResource res, String index, String contentType) throws IOException {
+        if (getCandidateEncoding(res, index, contentType) == null) {
+            return null;
+        }
+        return aesCtrFileEncryptionService.getContentCoding(resolvePath(res, index), res.getStorageVersion())
+            .contentEncoding();
+    }
+
+    /**
+     * 是否为明文保存的本地文件（预览图始终加密）
+     */
+    public boolean isPlainFile(FileResource res, String index) {
+        return index == null && res.getResourceType() == ResourceType.LOCAL && !res.isEncrypted();
+    }
+
+    /**
+     * 明文文件在磁盘上的路径，可交给容器 sendfile 直接输出
+     */
+    public Path getPlainFile(FileResource res) {
+        return aesCtrFileEncryptionService.getPlainFilePath(resolvePath(res, null), res.getStorageVersion());
+    }
+
+    private void streamRange(FileResource res, String index, long offset, long length, boolean encoded,
+                             OutputStream outputStream) {
+        try {
+            switch (res.getResourceType()) {
+                case DATABASE -> databaseBlobReader.transfer(res.getId(), offset, length, outputStream);
+                case LOCAL -> {
+                    if (isPlainFile(res, index)) {
+                        aesCtrFileEncryptionService.transferPlain(resolvePath(res, index), res.getStorageVersion(),
+                                                                  offset, length, outputStream);
+                    } else if (encoded) {
+                        // 压缩后的内容原样输出，由客户端解压；缓存中保存的是解压后的内容，不经过缓存
+                        aesCtrFileEncryptionService.transferEncoded(resolvePath(res, index), PASSWORD,
+                                                                    res.getStorageVersion(), offset, length,
+                                                                    outputStream);
+                    } else {
+                        byte[] cached = cachedContent(res, index);
+                        if (cached != null) {
+                            writeSlice(cached, offset, length, outputStream);
+                        } else {
+                            aesCtrFileEncryptionService.transferDecrypted(resolvePath(res, index), PASSWORD,
+                                                                          res.getStorageVersion(), offset, length,
+                                                                          outputStream);
                         }
-                        inputStream = new ByteArrayInputStream(data);
-                    }
-                    case LOCAL -> {
-                        Path path = (index == null)
-                            ? Path.of(res.getId().id())
-                            : Path.of(res.getId().id(), index);
-                        inputStream = aesCtrFileEncryptionService.decryptFile(path, PASSWORD, res.getStorageVersion());
                     }
                 }
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            logger.error("Error streaming file: {}", res.getId().id(), e);
+            throw new UncheckedIOException("Failed to stream file", e);
+        } catch (Exception e) {
+            logger.error("Error streaming file: {}", res.getId().id(), e);
+            throw new RuntimeException("Failed to stream file", e);
+        }
+    }
 
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
+    /**
+     * 小文件整体解密后放入缓存，之后的请求不再打开和解密文件；大文件返回 null 走流式解密
+     */
+    private byte[] cachedContent(FileResource res, String index) throws IOException {
+        return decryptedContentCache.get(
+            DecryptedContentCache.ContentKey.of(res.getId(), index),
+            () -> aesCtrFileEncryptionService.getPlaintextLength(resolvePath(res, index), res.getStorageVersion()),
+            () -> {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try {
+                    aesCtrFileEncryptionService.transferDecrypted(resolvePath(res, index), PASSWORD,
+                                                                  res.getStorageVersion(), 0, Long.MAX_VALUE, buffer);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Failed to decrypt " + res.getId().id(), e);
                 }
-                outputStream.flush();
-            } catch (java.io.IOException e) {
-                logger.error("Error streaming file: {}", res.getId().id(), e);
-                throw new java.io.UncheckedIOException("Failed to stream file", e);
-            } catch (Exception e) {
-                logger.error("Error streaming file: {}", res.getId().id(), e);
-                throw new RuntimeException("Failed to stream file", e);
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (java.io.IOException e) {
-                        logger.warn("Failed to close input stream", e);
-                    }
-                }
-            }
-        };
+                return buffer.toByteArray();
+            });
+    }
+
+    private static void writeSlice(byte[] content, long offset, long length, OutputStream outputStream)
+            throws IOException {
+        if (offset >= content.length) {
+            return;
+        }
+        int count = (int) Math.min(content.length - offset, length);
+        outputStream.write(content, (int) offset, count);
+    }
+
+    private static Path resolvePath(FileResource res, String index) {
+        return (index == null)
+            ? Path.of(res.getStorageKey())
+            : Path.of(res.getStorageKey(), index);
+    }
+
+    private static byte[] multipartHeader(ByteRange range, String contentType, String boundary,
+                                          long totalLength) {
+        return ("\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(totalLength) + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] multipartTrailer(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
     }
 
     public boolean checkFilePassword(FileResourceId id, String password) {
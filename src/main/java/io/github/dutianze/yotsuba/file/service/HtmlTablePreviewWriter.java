@@ -0,0 +1,86 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import org.springframework.web.util.HtmlUtils;
+
+/**
+ * 把按行、列顺序到达的单元格直接写成 HTML 表格，超过行/列上限的内容被丢弃，内存占用与表格大小无关
+ */
+class HtmlTablePreviewWriter {
+
+  private final Writer writer;
+  private final int maxRows;
+  private final int maxColumns;
+
+  private int rows;
+  private int currentRow = -1;
+  private int nextColumn;
+  private boolean rowOpen;
+  private boolean rowsTruncated;
+  private boolean columnsTruncated;
+
+  HtmlTablePreviewWriter(Writer writer, int maxRows, int maxColumns) {
+    this.writer = writer;
+    this.maxRows = maxRows;
+    this.maxColumns = maxColumns;
+  }
+
+  void begin() throws IOException {
+    writer.write("<html><head><meta charset='UTF-8'></head><body>");
+    writer.write("<table border='1' cellspacing='0' cellpadding='3'>");
+  }
+
+  /**
+   * 写入一个单元格。column 为 -1 时紧接上一个单元格
+   *
+   * @return 行数已达上限时返回 false，调用方可以停止读取
+   */
+  boolean cell(int row, int column, String value) throws IOException {
+    if (row != currentRow) {
+      if (rows >= maxRows) {
+        rowsTruncated = true;
+        return false;
+      }
+      endRow();
+      writer.write("<tr>");
+      rowOpen = true;
+      currentRow = row;
+      nextColumn = 0;
+      rows++;
+    }
+
+    int target = column < 0 ? nextColumn : column;
+    if (target >= maxColumns) {
+      columnsTruncated = true;
+      return true;
+    }
+    // 稀疏行中缺失的单元格补空，保持列对齐
+    while (nextColumn < target) {
+      writer.write("<td></td>");
+      nextColumn++;
+    }
+    writer.write("<td>");
+    writer.write(HtmlUtils.htmlEscape(value == null ? "" : value));
+    writer.write("</td>");
+    nextColumn = target + 1;
+    return true;
+  }
+
+  void finish() throws IOException {
+    endRow();
+    writer.write("</table>");
+    if (rowsTruncated || columnsTruncated) {
+      writer.write("<p>仅显示前 " + maxRows + " 行、前 " + maxColumns + " 列</p>");
+    }
+    writer.write("</body></html>");
+    writer.flush();
+  }
+
+  private void endRow() throws IOException {
+    if (rowOpen) {
+      writer.write("</tr>");
+      rowOpen = false;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.ImageDerivativeProperties;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType;
+import io.github.dutianze.yotsuba.file.service.AesCtrFileEncryptionService.EncryptedFileOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import org.springframework.stereotype.Service;
+
+/**
+ * 按请求生成图片的缩放、转码变体，例如卡片网格只需要 320px 宽的封面。
+ * <p>
+ * 变体以 {@code 存储键/w320-q80.jpeg} 的形式加密保存在原图的预览图目录中，与预览图一样随原图移动和删除，
+ * 读取时走解密内容缓存。同一变体的并发请求只生成一次，其余请求等待同一个结果。
+ */
+@Slf4j
+@Service
+public class ImageDerivativeService {
+
+    private static final String PASSWORD = "123";
+    private static final String JPEG = "jpeg";
+    private static final String PNG = "png";
+
+    private final FileService fileService;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final ImageDerivativeProperties properties;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    public ImageDerivativeService(FileService fileService,
+                                  AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                                  ImageDerivativeProperties properties) {
+        this.fileService = fileService;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.properties = properties;
+        this.permits = new Semaphore(properties.maxConcurrent() > 0
+                                         ? properties.maxConcurrent()
+                                         : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 把请求参数规范化为变体：宽度向上取到允许的一档，JPEG 质量取最接近的一档，格式只支持 jpeg 和 png
+     *
+     * @return 文件不是图片或不是本地文件时为空，调用方直接返回原图。
+     * 旧版 DATABASE 文件的读取不区分预览图序号，不生成变体
+     * @throws IllegalArgumentException 不支持的格式
+     */
+    public Optional<Variant> resolveVariant(FileResource res, Integer width, String format, Integer quality) {
+        String contentType = res.getContentType();
+        if (res.getResourceType() != ResourceType.LOCAL || contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("image/")) {
+            return Optional.empty();
+        }
+        String normalizedFormat = format == null ? JPEG : format.toLowerCase(Locale.ROOT);
+        if (normalizedFormat.equals("jpg")) {
+            normalizedFormat = JPEG;
+        }
+        if (!normalizedFormat.equals(JPEG) && !normalizedFormat.equals(PNG)) {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+
+        int snappedWidth = 0;
+        if (width != null) {
+            if (width <= 0) {
+                throw new IllegalArgumentException("Invalid width: " + width);
+            }
+            List<Integer> widths = properties.widths().stream().sorted().toList();
+            snappedWidth = widths.stream()
+                .filter(allowed -> allowed >= width)
+                .findFirst()
+                .orElse(widths.getLast());
+        }
+        int normalizedQuality = 0;
+        if (normalizedFormat.equals(JPEG)) {
+            int requested = quality == null ? properties.defaultQuality() : quality;
+            normalizedQuality = properties.qualities().stream()
+                .min(Comparator.comparingInt((Integer allowed) -> Math.abs(allowed - requested))
+                         .thenComparing(Comparator.reverseOrder()))
+                .orElseThrow();
+        }
+        return Optional.of(new Variant(snappedWidth, normalizedFormat, normalizedQuality));
+    }
+
+    /**
+     * 确保变体已生成
+     *
+     * @return 变体是否可用；原图无法解码或超过像素上限时返回 false，调用方改为返回原图
+     */
+    public boolean ensure(FileResource res, Variant variant) throws IOException {
+        Path path = Path.of(res.getStorageKey(), variant.name());
+        if (exists(res, path)) {
+            return true;
+        }
+
+        String jobKey = res.getStorageKey() + "/" + variant.name();
+        CompletableFuture<Boolean> job = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = inFlight.putIfAbsent(jobKey, job);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            // 上一个任务可能恰好在 putIfAbsent 之前完成
+            boolean available = exists(res, path) || generate(res, variant, path);
+            job.complete(available);
+            return available;
+        } catch (IOException | RuntimeException e) {
+            job.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(jobKey, job);
+        }
+    }
+
+    private boolean exists(FileResource res, Path path) {
+        return Files.exists(aesCtrFileEncryptionService.resolveStoredFile(path, res.getStorageVersion()));
+    }
+
+    private boolean generate(FileResource res, Variant variant, Path path) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to generate " + path);
+        }
+        try (InputStream in = fileService.openContent(res);
+             ImageInputStream imageInput = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                log.info("No image reader for {}, serving original", res.getId().id());
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > properties.maxSourcePixels()) {
+                    log.info("Image {} has {} pixels, too large for derivatives", res.getId().id(), pixels);
+                    return false;
+                }
+                BufferedImage source = reader.read(0);
+                write(source, variant, path, res);
+                log.info("Generated image derivative {} for {}", variant.name(), res.getId().id());
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void write(BufferedImage source, Variant variant, Path path, FileResource res) throws IOException {
+        BufferedImage image = variant.format().equals(JPEG) && source.getColorModel().hasAlpha()
+            ? flatten(source)
+            : source;
+        int targetWidth = variant.width() == 0 ? image.getWidth() : Math.min(variant.width(), image.getWidth());
+
+        EncryptedFileOutputStream out;
+        try {
+            out = aesCtrFileEncryptionService.openEncryptedOutputStream(path, PASSWORD, res.getStorageVersion());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to open " + path, e);
+        }
+        try {
+            Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image)
+                .width(targetWidth)
+                .outputFormat(variant.format());
+            if (variant.format().equals(JPEG)) {
+                builder.outputQuality(variant.quality() / 100.0);
+            }
+            builder.toOutputStream(out);
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * JPEG 不支持透明通道，透明部分以白色填充
+     */
+    private static BufferedImage flatten(BufferedImage source) {
+        BufferedImage rgb = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, source.getWidth(), source.getHeight());
+            graphics.drawImage(source, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
+
+    private static boolean await(CompletableFuture<Boolean> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 图片变体
+     *
+     * @param width   输出宽度，0 表示保持原图宽度；不会放大
+     * @param format  jpeg 或 png
+     * @param quality JPEG 质量，png 为 0
+     */
+    public record Variant(int width, String format, int quality) {
+
+        /**
+         * 在预览图目录中的文件名，同时作为读取时的 index
+         */
+        public String name() {
+            String size = width == 0 ? "orig" : "w" + width;
+            return quality > 0 ? size + "-q" + quality + "." + format : size + "." + format;
+        }
+
+        public String contentType() {
+            return "image/" + format;
+        }
+    }
+}
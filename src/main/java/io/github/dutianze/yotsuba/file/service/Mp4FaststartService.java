@@ -0,0 +1,335 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import jakarta.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+/**
+ * 上传时将 MP4 的 moov 移到第一个 mdat 之前（faststart），浏览器读到开头的几百 KB 即可开始播放，不必先取文件末尾。
+ * <p>
+ * 先扫描一遍顶层 box，只把 moov 读入内存；输出时顺序读取原内容，在第一个 mdat 前插入修正了 stco/co64 偏移的 moov，
+ * 并跳过原位置的 moov，整个过程不产生临时文件。偏移超出 32 位时 stco 升级为 co64。
+ * 分片 MP4（moof）、moov 已在前面或结构无法识别的文件原样保存。
+ */
+@Slf4j
+@Service
+public class Mp4FaststartService {
+
+    /**
+     * moov 需要整个读入内存修正，超过该大小的文件不处理
+     */
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    private static final long MAX_UINT32 = 0xFFFF_FFFFL;
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl");
+
+    /**
+     * 需要移动 moov 时返回重排后的内容，否则返回 null
+     *
+     * @param source 可以多次打开的原内容，如 MultipartFile
+     */
+    @Nullable
+    public Remuxed prepare(InputStreamSource source, @Nullable String contentType) throws IOException {
+        if (contentType == null || !(contentType.startsWith("video/") || contentType.startsWith("audio/"))) {
+            return null;
+        }
+        Layout layout = scan(source);
+        if (layout == null) {
+            return null;
+        }
+        byte[] moov;
+        try {
+            moov = relocate(layout);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.warn("Skip faststart for malformed moov: {}", e.getMessage());
+            return null;
+        }
+        long length = layout.length() + moov.length - layout.moov().length;
+        log.debug("Moving moov ({} bytes) from {} to {}", moov.length, layout.moovOffset(), layout.mdatOffset());
+        return new Remuxed(source, layout.mdatOffset(), layout.moovOffset(), layout.moov().length, moov, length);
+    }
+
+    /**
+     * 扫描顶层 box，记录第一个 mdat 与 moov 的位置并读入 moov。不需要或不能处理时返回 null
+     */
+    @Nullable
+    private static Layout scan(InputStreamSource source) throws IOException {
+        long offset = 0;
+        long mdatOffset = -1;
+        long moovOffset = -1;
+        byte[] moov = null;
+        byte[] header = new byte[16];
+        try (InputStream in = new BufferedInputStream(source.getInputStream())) {
+            while (true) {
+                int n = in.readNBytes(header, 0, 8);
+                if (n == 0) {
+                    break;
+                }
+                if (n < 8) {
+                    return null;
+                }
+                long size = Integer.toUnsignedLong(ByteBuffer.wrap(header).getInt(0));
+                String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+                int headerSize = 8;
+                if (size == 1) {
+                    in.readNBytes(header, 8, 8);
+                    size = ByteBuffer.wrap(header).getLong(8);
+                    headerSize = 16;
+                }
+                // size 为 0 表示延伸到文件末尾，只会出现在最后一个 box，此时 moov 不可能在 mdat 之后
+                if (size < headerSize) {
+                    return null;
+                }
+                switch (type) {
+                    case "moof" -> {
+                        return null;
+                    }
+                    case "mdat" -> mdatOffset = mdatOffset < 0 ? offset : mdatOffset;
+                    case "moov" -> {
+                        if (moov != null || size > MAX_MOOV_SIZE) {
+                            return null;
+                        }
+                        moovOffset = offset;
+                        moov = new byte[(int) size];
+                        System.arraycopy(header, 0, moov, 0, headerSize);
+                        if (in.readNBytes(moov, headerSize, moov.length - headerSize) < moov.length - headerSize) {
+                            return null;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                if (!"moov".equals(type)) {
+                    in.skipNBytes(size - headerSize);
+                }
+                offset += size;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        if (moov == null || mdatOffset < 0 || moovOffset < mdatOffset) {
+            return null;
+        }
+        return new Layout(mdatOffset, moovOffset, moov, offset);
+    }
+
+    /**
+     * 修正 moov 中的块偏移：原位于第一个 mdat 与 moov 之间的数据后移新 moov 的长度，
+     * 原 moov 之后的数据后移 moov 长度的变化量
+     */
+    private static byte[] relocate(Layout layout) {
+        Box moov = parse(ByteBuffer.wrap(layout.moov())).getFirst();
+        boolean co64 = false;
+        while (true) {
+            long newSize = moov.size(co64);
+            OffsetShift shift = new OffsetShift(layout.mdatOffset(), layout.moovOffset(), layout.moov().length,
+                                                newSize);
+            if (!co64 && moov.overflows(shift)) {
+                co64 = true;
+                continue;
+            }
+            ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(newSize));
+            moov.write(out, shift, co64);
+            return out.array();
+        }
+    }
+
+    private static List<Box> parse(ByteBuffer buffer) {
+        List<Box> boxes = new ArrayList<>();
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            long size = Integer.toUnsignedLong(buffer.getInt());
+            String type = new String(new byte[]{buffer.get(), buffer.get(), buffer.get(), buffer.get()},
+                                     StandardCharsets.ISO_8859_1);
+            if (size == 1) {
+                size = buffer.getLong();
+            } else if (size == 0) {
+                size = buffer.limit() - start;
+            }
+            int headerSize = buffer.position() - start;
+            if (size < headerSize || size > buffer.limit() - start) {
+                throw new IllegalArgumentException("Invalid " + type + " box size " + size);
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), (int) size - headerSize);
+            boxes.add(CONTAINERS.contains(type) ? new Box(type, null, parse(payload))
+                          : new Box(type, payload, List.of()));
+            buffer.position(start + (int) size);
+        }
+        return boxes;
+    }
+
+    /**
+     * 修正前后的偏移映射
+     */
+    private record OffsetShift(long mdatOffset, long moovOffset, long oldMoovSize, long newMoovSize) {
+
+        long apply(long offset) {
+            if (offset < mdatOffset) {
+                return offset;
+            }
+            if (offset < moovOffset) {
+                return offset + newMoovSize;
+            }
+            return offset + newMoovSize - oldMoovSize;
+        }
+    }
+
+    /**
+     * moov 中的 box，容器 box 只有子 box，其余保留原始内容
+     */
+    private record Box(String type, @Nullable ByteBuffer payload, List<Box> children) {
+
+        boolean isChunkOffsets() {
+            return "stco".equals(type) || "co64".equals(type);
+        }
+
+        int entryCount() {
+            return payload.getInt(4);
+        }
+
+        long entry(int i) {
+            return "stco".equals(type) ? Integer.toUnsignedLong(payload.getInt(8 + i * 4))
+                : payload.getLong(8 + i * 8);
+        }
+
+        long size(boolean co64) {
+            if (payload == null) {
+                return 8 + children.stream().mapToLong(child -> child.size(co64)).sum();
+            }
+            if (co64 && "stco".equals(type)) {
+                return 8 + 8 + (long) entryCount() * 8;
+            }
+            return 8 + payload.remaining();
+        }
+
+        boolean overflows(OffsetShift shift) {
+            if (payload == null) {
+                return children.stream().anyMatch(child -> child.overflows(shift));
+            }
+            if ("stco".equals(type)) {
+                for (int i = 0; i < entryCount(); i++) {
+                    if (shift.apply(entry(i)) > MAX_UINT32) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void write(ByteBuffer out, OffsetShift shift, boolean co64) {
+            boolean wide = "co64".equals(type) || co64 && "stco".equals(type);
+            out.putInt(Math.toIntExact(size(co64)));
+            out.put((isChunkOffsets() ? (wide ? "co64" : "stco") : type).getBytes(StandardCharsets.ISO_8859_1));
+            if (payload == null) {
+                children.forEach(child -> child.write(out, shift, co64));
+            } else if (isChunkOffsets()) {
+                // version/flags 与 entry_count
+                out.put(payload.slice(0, 8));
+                for (int i = 0; i < entryCount(); i++) {
+                    long offset = shift.apply(entry(i));
+                    if (wide) {
+                        out.putLong(offset);
+                    } else {
+                        out.putInt((int) offset);
+                    }
+                }
+            } else {
+                out.put(payload.duplicate());
+            }
+        }
+    }
+
+    private record Layout(long mdatOffset, long moovOffset, byte[] moov, long length) {
+
+    }
+
+    /**
+     * 重排后的内容：原内容中第一个 mdat 之前的部分、修正后的 moov、原 moov 之前的其余部分、原 moov 之后的部分
+     *
+     * @param length 重排后的长度，stco 升级为 co64 时比原文件长
+     */
+    public record Remuxed(InputStreamSource source, long mdatOffset, long moovOffset, long oldMoovSize,
+                          byte[] moov, long length) implements InputStreamSource {
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new RemuxedInputStream(this, new BufferedInputStream(source.getInputStream()));
+        }
+    }
+
+    private static final class RemuxedInputStream extends InputStream {
+
+        private final Remuxed remuxed;
+        private final InputStream source;
+        private int phase;
+        /**
+         * 当前阶段剩余的字节数，最后一个阶段读到原内容末尾为止
+         */
+        private long remaining;
+        private int moovPosition;
+
+        private RemuxedInputStream(Remuxed remuxed, InputStream source) {
+            this.remuxed = remuxed;
+            this.source = source;
+            this.remaining = remuxed.mdatOffset();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                switch (phase) {
+                    case 0, 2 -> {
+                        if (remaining > 0) {
+                            int n = source.read(b, off, (int) Math.min(len, remaining));
+                            if (n < 0) {
+                                throw new EOFException("Source ended before moov");
+                            }
+                            remaining -= n;
+                            return n;
+                        }
+                        if (phase == 2) {
+                            source.skipNBytes(remuxed.oldMoovSize());
+                        }
+                        remaining = remuxed.moovOffset() - remuxed.mdatOffset();
+                        phase++;
+                    }
+                    case 1 -> {
+                        if (moovPosition < remuxed.moov().length) {
+                            int n = Math.min(len, remuxed.moov().length - moovPosition);
+                            System.arraycopy(remuxed.moov(), moovPosition, b, off, n);
+                            moovPosition += n;
+                            return n;
+                        }
+                        phase++;
+                    }
+                    default -> {
+                        return source.read(b, off, len);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.FileDataSourceConfig;
+import io.github.dutianze.yotsuba.file.config.OrphanGcProperties;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ResourceType;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * 回收孤立文件的标记-清除收集器。
+ * <p>
+ * 清除分两步：先按 ID 游标分批删除引用已移除且超过宽限期的记录（连同其文件）。reference_id 由异步事件维护，
+ * 只用来挑选候选记录，删除前在同一个文件数据源事务中向各模块的 {@link FileReferenceChecker} 重新确认，
+ * 并以 reference 仍为空为条件删除；
+ * 再逐个目录扫描 files/，把找不到任何记录、上传会话或 blob 的存储键视为孤立并删除。
+ * 每次删除后按 maxDeletesPerSecond 限速，批次之间停顿，随时可以停止，下次从头重新标记。
+ */
+@Slf4j
+@Service
+public class OrphanFileGcService {
+
+    private static final int SAMPLE_LIMIT = 50;
+    private static final Pattern STORAGE_KEY = Pattern.compile("[0-9A-Za-z]+");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final FileResourceRepository fileResourceRepository;
+    private final FileService fileService;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final DatabaseBlobReader databaseBlobReader;
+    private final OrphanGcProperties properties;
+    private final List<FileReferenceChecker> referenceCheckers;
+    private final TransactionTemplate transactionTemplate;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "orphan-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicLong orphanRows = new AtomicLong();
+    private final AtomicLong orphanFiles = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalBytesReclaimed = new AtomicLong();
+    private final List<String> samples = new CopyOnWriteArrayList<>();
+    private volatile boolean dryRun;
+    private volatile String lastError;
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+
+    public OrphanFileGcService(@Qualifier(FileDataSourceConfig.JDBC_TEMPLATE) JdbcTemplate jdbcTemplate,
+                               FileResourceRepository fileResourceRepository,
+                               FileService fileService,
+                               AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                               DatabaseBlobReader databaseBlobReader,
+                               OrphanGcProperties properties,
+                               List<FileReferenceChecker> referenceCheckers,
+                               @Qualifier(FileDataSourceConfig.PLATFORM_TX_MANAGER)
+                               PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.fileResourceRepository = fileResourceRepository;
+        this.fileService = fileService;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.databaseBlobReader = databaseBlobReader;
+        this.properties = properties;
+        this.referenceCheckers = referenceCheckers;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleCollection() {
+        if (!properties.enabled()) {
+            log.info("Scheduled orphan file collection disabled");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (running.compareAndSet(false, true)) {
+                collect(false);
+            }
+        }, properties.initialDelay().toMillis(), properties.interval().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在后台立即执行一次回收，已在运行时不重复启动
+     *
+     * @param dryRun 只统计将被回收的记录和文件，不做删除
+     * @return 是否启动了新的回收
+     */
+    public boolean start(boolean dryRun) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        scheduler.execute(() -> collect(dryRun));
+        return true;
+    }
+
+    /**
+     * 请求在当前文件处理完后停止
+     */
+    public void stop() {
+        stopRequested.set(true);
+    }
+
+    public GcStatus status() {
+        return new GcStatus(running.get(), dryRun, orphanRows.get(), orphanFiles.get(), bytesReclaimed.get(),
+                            failed.get(), totalBytesReclaimed.get(), List.copyOf(samples), lastError, startedAt,
+                            finishedAt);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested.set(true);
+        scheduler.shutdownNow();
+    }
+
+    private void collect(boolean dryRun) {
+        this.dryRun = dryRun;
+        stopRequested.set(false);
+        orphanRows.set(0);
+        orphanFiles.set(0);
+        bytesReclaimed.set(0);
+        failed.set(0);
+        samples.clear();
+        lastError = null;
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        log.info("Orphan file collection started, dryRun={}", dryRun);
+        try {
+            LocalDateTime cutoff = startedAt.minus(properties.gracePeriod());
+            sweepRows(cutoff);
+            sweepStorage(cutoff.atZone(ZoneId.systemDefault()).toInstant());
+            log.info("Orphan file collection {}: {} rows, {} files, {} bytes, {} failed",
+                     stopRequested.get() ? "stopped" : "finished", orphanRows.get(), orphanFiles.get(),
+                     bytesReclaimed.get(), failed.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Orphan file collection interrupted");
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            log.error("Orphan file collection aborted", e);
+        } finally {
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 删除 reference 为空且超过宽限期的记录
+     */
+    private void sweepRows(LocalDateTime cutoff) throws InterruptedException {
+        String afterId = "";
+        while (!stopRequested.get()) {
+            List<String> ids = fileResourceRepository.findUnreferencedIds(afterId, cutoff,
+                                                                          Limit.of(properties.batchSize()));
+            if (ids.isEmpty()) {
+                return;
+            }
+            for (String id : ids) {
+                if (stopRequested.get()) {
+                    return;
+                }
+                afterId = id;
+                collectRow(id);
+            }
+            Thread.sleep(properties.batchPause().toMillis());
+        }
+    }
+
+    private void collectRow(String id) throws InterruptedException {
+        try {
+            if (dryRun) {
+                FileResource res = findOrphan(new FileResourceId(id));
+                if (res != null) {
+                    boolean shared = res.getStorageKey().equals(res.getContentHash())
+                        && fileResourceRepository.countByContentHash(res.getContentHash()) > 1;
+                    record(orphanRows, "row " + id, shared ? 0 : storedSize(res));
+                }
+                return;
+            }
+            FileResource candidate = fileResourceRepository.findById(new FileResourceId(id)).orElse(null);
+            if (candidate == null || candidate.hasReference()) {
+                return;
+            }
+            // DATABASE 记录的内容随记录一起删除，先取大小
+            long before = storedSize(candidate);
+            FileResource res = transactionTemplate.execute(status -> {
+                FileResource orphan = findOrphan(new FileResourceId(id));
+                return orphan != null && fileResourceRepository.deleteIfUnreferenced(id) == 1 ? orphan : null;
+            });
+            if (res == null) {
+                return;
+            }
+            // 记录已提交删除之后才删除文件，事务回滚不会留下指向已删除文件的记录
+            fileService.deleteStoredFile(res);
+            long after = res.getResourceType() == ResourceType.DATABASE ? 0 : storedSize(res);
+            record(orphanRows, "row " + id, before - after);
+            throttle();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            lastError = id + ": " + e.getMessage();
+            log.error("Failed to collect orphan file resource {}", id, e);
+        }
+    }
+
+    /**
+     * 重新读取记录并向各模块确认文件没有被使用，标记之后被删除、重新引用或实际仍在使用时返回 null
+     */
+    @Nullable
+    private FileResource findOrphan(FileResourceId id) {
+        FileResource res = fileResourceRepository.findById(id).orElse(null);
+        if (res == null || res.hasReference()) {
+            return null;
+        }
+        for (FileReferenceChecker checker : referenceCheckers) {
+            if (checker.isReferenced(id)) {
+                log.warn("File resource {} has no reference_id but is still used, skipping", id.id());
+                return null;
+            }
+        }
+        return res;
+    }
+
+    private long storedSize(FileResource res) throws IOException {
+        if (res.getResourceType() == ResourceType.DATABASE) {
+            return databaseBlobReader.length(res.getId());
+        }
+        StorageVersion storageVersion = res.getStorageVersion() == null ? StorageVersion.V1 : res.getStorageVersion();
+        return aesCtrFileEncryptionService.getStoredSize(res.getStorageKey(), storageVersion);
+    }
+
+    /**
+     * 按 AesCtrFileEncryptionService 的目录布局扫描磁盘：
+     * files/ 下的文件为 V1，单字符目录为 V2，四字符目录为 V3，cas/xx/yy 为 V4
+     */
+    private void sweepStorage(Instant cutoff) throws IOException, InterruptedException {
+        Path root = aesCtrFileEncryptionService.getStorageRoot();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        sweepDirectory(root, StorageVersion.V1, "", cutoff);
+
+        Path casRoot = aesCtrFileEncryptionService.getContentAddressedRoot();
+        for (Path child : listDirectories(root)) {
+            if (stopRequested.get()) {
+                return;
+            }
+            String name = child.getFileName().toString();
+            if (child.equals(casRoot)) {
+                for (Path first : listDirectories(child)) {
+                    for (Path second : listDirectories(first)) {
+                        sweepDirectory(second, StorageVersion.V4,
+                                       first.getFileName().toString() + second.getFileName(), cutoff);
+                    }
+                }
+            } else if (name.length() == 1) {
+                sweepDirectory(child, StorageVersion.V2, name, cutoff);
+            } else if (name.length() == 4) {
+                sweepDirectory(child, StorageVersion.V3, name, cutoff);
+            }
+        }
+    }
+
+    /**
+     * 清除一个目录中的孤立存储键。同一存储键的加密文件、明文文件与预览图目录中最新的修改时间超过宽限期才会被清除
+     */
+    private void sweepDirectory(Path dir, StorageVersion storageVersion, String prefix, Instant cutoff)
+            throws IOException, InterruptedException {
+        Map<String, Instant> lastModified = new LinkedHashMap<>();
+        List<Path> staleTempFiles = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                boolean directory = Files.isDirectory(entry);
+                if (storageVersion == StorageVersion.V1 && directory && isLayoutDirectory(name)) {
+                    continue;
+                }
+                String key = directory ? name : name.substring(0, name.indexOf('.') < 0 ? 0 : name.indexOf('.'));
+                if (!STORAGE_KEY.matcher(key).matches() || !key.startsWith(prefix)) {
+                    continue;
+                }
+                Instant modified = Files.getLastModifiedTime(entry).toInstant();
+                if (name.endsWith(".tmp")) {
+                    // 写入中途崩溃留下的临时文件
+                    if (modified.isBefore(cutoff)) {
+                        staleTempFiles.add(entry);
+                    }
+                    continue;
+                }
+                if (directory || name.endsWith(".encrypted") || name.endsWith(".plain")) {
+                    lastModified.merge(key, modified, (a, b) -> a.isAfter(b) ? a : b);
+                }
+            }
+        }
+
+        List<String> candidates = lastModified.entrySet().stream()
+            .filter(entry -> entry.getValue().isBefore(cutoff))
+            .map(Map.Entry::getKey)
+            .toList();
+        for (int i = 0; i < candidates.size() && !stopRequested.get(); i += properties.batchSize()) {
+            List<String> batch = candidates.subList(i, Math.min(i + properties.batchSize(), candidates.size()));
+            Set<String> live = findLiveKeys(batch, storageVersion);
+            for (String key : batch) {
+                if (stopRequested.get()) {
+                    return;
+                }
+                if (!live.contains(key)) {
+                    collectStorageKey(key, storageVersion);
+                }
+            }
+            Thread.sleep(properties.batchPause().toMillis());
+        }
+        for (Path tempFile : staleTempFiles) {
+            if (stopRequested.get()) {
+                return;
+            }
+            collectTempFile(tempFile);
+        }
+    }
+
+    private void collectStorageKey(String key, StorageVersion storageVersion) throws InterruptedException {
+        try {
+            long before = aesCtrFileEncryptionService.getStoredSize(key, storageVersion);
+            if (dryRun) {
+                record(orphanFiles, storageVersion + " " + key, before);
+                return;
+            }
+            aesCtrFileEncryptionService.deleteFile(key, storageVersion);
+            long after = aesCtrFileEncryptionService.getStoredSize(key, storageVersion);
+            record(orphanFiles, storageVersion + " " + key, before - after);
+            throttle();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            lastError = key + ": " + e.getMessage();
+            log.error("Failed to collect orphan storage key {}", key, e);
+        }
+    }
+
+    private void collectTempFile(Path tempFile) throws InterruptedException {
+        try {
+            long size = Files.size(tempFile);
+            if (!dryRun) {
+                Files.deleteIfExists(tempFile);
+                log.info("Deleted stale temp file: {}", tempFile);
+            }
+            record(orphanFiles, tempFile.toString(), size);
+            if (!dryRun) {
+                throttle();
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            lastError = tempFile + ": " + e.getMessage();
+            log.error("Failed to delete stale temp file {}", tempFile, e);
+        }
+    }
+
+    /**
+     * 存储键仍被使用时视为存活：V4 的内容哈希被文件记录或 blob 引用；其余版本的文件 ID 对应的记录仍在该存储版本，
+     * 或是未完成的上传会话。记录迁移到其他布局后旧位置的残留视为孤立
+     */
+    private Set<String> findLiveKeys(List<String> keys, StorageVersion storageVersion) {
+        String placeholders = String.join(",", Collections.nCopies(keys.size(), "?"));
+        List<Object> args = new ArrayList<>(keys.size() * 2 + 1);
+        String sql;
+        if (storageVersion.isContentAddressed()) {
+            sql = "SELECT content_hash FROM file_resource WHERE content_hash IN (" + placeholders + ")"
+                + " UNION SELECT content_hash FROM file_blob WHERE content_hash IN (" + placeholders + ")";
+            args.addAll(keys);
+            args.addAll(keys);
+        } else {
+            // 信封加密的版本与对应的旧版本共用目录
+            List<String> versions = storageVersion.sharingLayout().stream().map(StorageVersion::name).toList();
+            String versionPlaceholders = String.join(",", Collections.nCopies(versions.size(), "?"));
+            sql = "SELECT id FROM file_resource WHERE id IN (" + placeholders + ")"
+                + " AND COALESCE(storage_version, 'V1') IN (" + versionPlaceholders + ")"
+                + " UNION SELECT id FROM file_upload_session WHERE id IN (" + placeholders + ")";
+            args.addAll(keys);
+            args.addAll(versions);
+            args.addAll(keys);
+        }
+        return new HashSet<>(jdbcTemplate.queryForList(sql, String.class, args.toArray()));
+    }
+
+    private List<Path> listDirectories(Path dir) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            entries.forEach(directories::add);
+        }
+        return directories;
+    }
+
+    /**
+     * V2/V3 的前缀目录、V4 的 cas 目录和隔离目录，不是 V1 文件的预览图目录
+     */
+    private boolean isLayoutDirectory(String name) {
+        return name.length() == 1 || name.length() == 4
+            || aesCtrFileEncryptionService.getContentAddressedRoot().getFileName().toString().equals(name)
+            || aesCtrFileEncryptionService.getQuarantineRoot().getFileName().toString().equals(name);
+    }
+
+    private void record(AtomicLong counter, String sample, long bytes) {
+        counter.incrementAndGet();
+        bytesReclaimed.addAndGet(bytes);
+        if (!dryRun) {
+            totalBytesReclaimed.addAndGet(bytes);
+        }
+        if (samples.size() < SAMPLE_LIMIT) {
+            samples.add(sample);
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        if (properties.maxDeletesPerSecond() > 0) {
+            Thread.sleep(1000L / properties.maxDeletesPerSecond());
+        }
+    }
+
+    /**
+     * 回收进度。dryRun 时各项计数表示将被回收的数量
+     *
+     * @param totalBytesReclaimed 服务启动以来实际回收的字节数
+     * @param samples             前若干个被回收的记录或存储键
+     */
+    public record GcStatus(
+        boolean running,
+        boolean dryRun,
+        long orphanRows,
+        long orphanFiles,
+        long bytesReclaimed,
+        long failed,
+        long totalBytesReclaimed,
+        List<String> samples,
+        @Nullable String lastError,
+        @Nullable LocalDateTime startedAt,
+        @Nullable LocalDateTime finishedAt
+    ) {
+
+    }
+}
@@ -1,6 +1,8 @@
 package io.github.dutianze.yotsuba.file.service;
 
+import io.github.dutianze.yotsuba.file.config.ThumbnailRenderProperties;
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.PreDestroy;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
@@ -9,67 +11,270 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import javax.imageio.ImageIO;
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.poi.xslf.usermodel.XMLSlideShow;
 import org.apache.poi.xslf.usermodel.XSLFSlide;
 import org.springframework.stereotype.Service;
 
+@Slf4j
 @Service
-@RequiredArgsConstructor
 public class PptThumbnailService implements ThumbnailService {
 
+  private static final double ZOOM = 2.0;
+  private static final long BYTES_PER_PIXEL = 4;
+  private static final long MEMORY_PERMIT_BYTES = 1024 * 1024;
+  /**
+   * 解析后的文档模型相对于 pptx 文件大小的估计倍数，用于按内存预算计算文档副本占用的许可
+   */
+  private static final long DOCUMENT_MODEL_FACTOR = 4;
+
   private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+  /**
+   * 所有文档共享的渲染线程池，线程数为 1 时为 null，逐张串行渲染
+   */
+  private final ExecutorService renderPool;
+  private final int renderThreads;
+  /**
+   * 文档模型与位图的内存预算，以 1MB 为一个许可。每个线程只在不持有许可时一次性申请所需的全部许可，不会互相等待
+   */
+  private final Semaphore memoryPermits;
+  private final int maxMemoryPermits;
+  private final long maxDocumentSize;
+
+  public PptThumbnailService(AesCtrFileEncryptionService aesCtrFileEncryptionService,
+      ThumbnailRenderProperties properties) {
+    this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+    this.maxMemoryPermits = (int) Math.max(1, properties.memoryBudget().toBytes() / MEMORY_PERMIT_BYTES);
+    this.memoryPermits = new Semaphore(maxMemoryPermits, true);
+    this.maxDocumentSize = properties.maxDocumentSize().toBytes();
+    int threads = properties.resolvedThreads();
+    this.renderThreads = threads;
+    this.renderPool = threads > 1 ? Executors.newFixedThreadPool(threads, new RenderThreadFactory()) : null;
+    log.info("Slide rendering uses {} thread(s), memory budget {}", threads, properties.memoryBudget());
+  }
 
   @Override
   public boolean supports(String filename) {
     return filename.endsWith(".pptx") || filename.endsWith(".ppt");
   }
 
+  /**
+   * 先在预算内解析一次文档得到页面大小与页数，随即释放；之后由一个或多个渲染线程各自打开文档副本渲染，
+   * 每个副本连同一张位图一起计入内存预算
+   */
   @Override
-  public List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion)
-      throws Exception {
-    List<Integer> result = new ArrayList<>();
-    try (XMLSlideShow ppt = new XMLSlideShow(in)) {
+  public List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion,
+      ThumbnailListener listener) throws Exception {
+    byte[] document = in.readNBytes((int) Math.min(maxDocumentSize + 1, Integer.MAX_VALUE - 8));
+    if (document.length > maxDocumentSize) {
+      throw new IOException("Presentation is larger than " + maxDocumentSize + " bytes");
+    }
+    int documentPermits = permitsFor(document.length * DOCUMENT_MODEL_FACTOR);
+    int width;
+    int height;
+    int slideCount;
+    memoryPermits.acquire(documentPermits);
+    try (XMLSlideShow ppt = new XMLSlideShow(new ByteArrayInputStream(document))) {
       Dimension pgsize = ppt.getPageSize();
+      width = (int) (pgsize.width * ZOOM);
+      height = (int) (pgsize.height * ZOOM);
+      slideCount = ppt.getSlides().size();
+    } finally {
+      memoryPermits.release(documentPermits);
+    }
+    listener.onStart(slideCount);
 
-      int index = 1;
-      for (XSLFSlide slide : ppt.getSlides()) {
-        double zoom = 2.0;
-        int width = (int) (pgsize.width * zoom);
-        int height = (int) (pgsize.height * zoom);
-
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = img.createGraphics();
-
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-            RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        graphics.setRenderingHint(RenderingHints.KEY_RENDERING,
-            RenderingHints.VALUE_RENDER_QUALITY);
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-            RenderingHints.VALUE_ANTIALIAS_ON);
-
-        graphics.setPaint(Color.WHITE);
-        graphics.fill(new Rectangle(0, 0, width, height));
-
-        graphics.scale(zoom, zoom);
-        slide.draw(graphics);
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ImageIO.write(img, "png", bos);
-        byte[] pngBytes = bos.toByteArray();
-        try (InputStream tin = new ByteArrayInputStream(pngBytes)) {
-          aesCtrFileEncryptionService.encryptFile(tin, Path.of(id, String.valueOf(index)),
-              password, storageVersion);
+    RenderTask task = new RenderTask(document, slideCount, width, height, id, password, storageVersion,
+        listener);
+    if (renderPool == null || slideCount < 2) {
+      List<Integer> result = new ArrayList<>();
+      task.run(index -> {
+        result.add(index);
+        listener.onGenerated(index);
+      });
+      return result;
+    }
+    return renderInParallel(task);
+  }
+
+  /**
+   * XSLF 对象模型不是线程安全的，每个渲染线程从同一份字节各自打开一个文档副本，按顺序领取下一张未渲染的页。
+   * 副本数不超过线程数、页数以及内存预算能同时容纳的副本数
+   */
+  private List<Integer> renderInParallel(RenderTask task) throws Exception {
+    int workerCount = Math.max(1, Math.min(Math.min(renderThreads, task.slideCount),
+        maxMemoryPermits / task.workerPermits()));
+    List<Future<?>> workers = new ArrayList<>();
+    for (int w = 0; w < workerCount; w++) {
+      workers.add(renderPool.submit(() -> {
+        try {
+          task.run(index -> {
+          });
+        } catch (Exception e) {
+          task.pages.forEach(page -> page.completeExceptionally(e));
         }
+      }));
+    }
+
+    // 按页码顺序收集结果，保证 thumbnailIndexList 与进度回调有序
+    List<Integer> result = new ArrayList<>();
+    try {
+      for (CompletableFuture<Integer> page : task.pages) {
+        int index = page.get();
         result.add(index);
-        index++;
+        task.listener.onGenerated(index);
       }
+    } catch (ExecutionException e) {
+      workers.forEach(f -> f.cancel(true));
+      throw e.getCause() instanceof Exception cause ? cause : e;
+    } catch (InterruptedException e) {
+      workers.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw e;
     }
     return result;
   }
+
+  private int permitsFor(long bytes) {
+    return (int) Math.clamp((bytes + MEMORY_PERMIT_BYTES - 1) / MEMORY_PERMIT_BYTES, 1, maxMemoryPermits);
+  }
+
+  /**
+   * 一份文档的渲染任务，可由多个线程同时执行 {@link #run()}，各线程领取不同的页
+   */
+  private final class RenderTask {
+
+    private final byte[] document;
+    private final int slideCount;
+    private final int width;
+    private final int height;
+    private final String id;
+    private final String password;
+    private final StorageVersion storageVersion;
+    private final ThumbnailListener listener;
+    private final List<CompletableFuture<Integer>> pages;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private RenderTask(byte[] document, int slideCount, int width, int height, String id, String password,
+        StorageVersion storageVersion, ThumbnailListener listener) {
+      this.document = document;
+      this.slideCount = slideCount;
+      this.width = width;
+      this.height = height;
+      this.id = id;
+      this.password = password;
+      this.storageVersion = storageVersion;
+      this.listener = listener;
+      this.pages = new ArrayList<>(slideCount);
+      for (int i = 0; i < slideCount; i++) {
+        pages.add(listener.isGenerated(i + 1) ? CompletableFuture.completedFuture(i + 1) : new CompletableFuture<>());
+      }
+    }
+
+    /**
+     * 一个文档副本与一张位图所需的许可
+     */
+    int workerPermits() {
+      return Math.min(maxMemoryPermits,
+          permitsFor(document.length * DOCUMENT_MODEL_FACTOR) + permitsFor(width * (long) height * BYTES_PER_PIXEL));
+    }
+
+    /**
+     * 申请许可后打开文档副本，渲染领取到的页直到没有剩余的页。所有页都已生成时不打开文档
+     *
+     * @param onPage 本线程领取的页处理完成后按页码调用
+     */
+    void run(IntConsumer onPage) throws Exception {
+      if (pages.stream().allMatch(CompletableFuture::isDone)) {
+        int i;
+        while ((i = next.getAndIncrement()) < slideCount) {
+          onPage.accept(i + 1);
+        }
+        return;
+      }
+      int permits = workerPermits();
+      memoryPermits.acquire(permits);
+      try (XMLSlideShow copy = new XMLSlideShow(new ByteArrayInputStream(document))) {
+        List<XSLFSlide> slides = copy.getSlides();
+        int i;
+        while ((i = next.getAndIncrement()) < slideCount) {
+          if (!pages.get(i).isDone()) {
+            renderSlide(slides.get(i), width, height, i + 1, id, password, storageVersion);
+            pages.get(i).complete(i + 1);
+          }
+          onPage.accept(i + 1);
+        }
+      } finally {
+        memoryPermits.release(permits);
+      }
+    }
+  }
+
+  /**
+   * 渲染单页并加密保存，调用方保证同一文档对象只在一个线程中渲染，并已为位图申请许可
+   */
+  private void renderSlide(XSLFSlide slide, int width, int height, int index, String id, String password,
+      StorageVersion storageVersion) throws Exception {
+    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = img.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING,
+          RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+          RenderingHints.VALUE_ANTIALIAS_ON);
+
+      graphics.setPaint(Color.WHITE);
+      graphics.fill(new Rectangle(0, 0, width, height));
+
+      graphics.scale(ZOOM, ZOOM);
+      slide.draw(graphics);
+    } finally {
+      graphics.dispose();
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ImageIO.write(img, "png", bos);
+    byte[] pngBytes = bos.toByteArray();
+
+    try (InputStream tin = new ByteArrayInputStream(pngBytes)) {
+      aesCtrFileEncryptionService.encryptFile(tin, Path.of(id, String.valueOf(index)),
+          password, storageVersion);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (renderPool != null) {
+      renderPool.shutdownNow();
+    }
+  }
+
+  private static class RenderThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "slide-render-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
 }
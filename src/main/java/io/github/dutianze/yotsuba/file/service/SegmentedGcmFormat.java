@@ -0,0 +1,455 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * 分段认证加密格式（V7/V8）：明文按固定大小分段，每段以 AES-GCM 独立加密和认证。
+ * <p>
+ * 文件头部为 主密钥 ID(4) + 包装后的数据密钥(40) + 分段大小(4)，之后依次是各段的 12 字节随机 nonce、密文及 16 字节标签。
+ * 每次加密都使用新的随机 nonce，分片上传重传同一分段时不会以相同的 nonce 加密不同内容。
+ * 每段的附加认证数据为头部中的分段大小字段 + 分段序号 i（4 字节大端）+ 是否最后一段（1 字节），
+ * 调换、删除或截断分段以及篡改分段大小字段都会导致认证失败。
+ * 主密钥 ID 与包装后的数据密钥不参与认证，轮换主密钥时可以只改写这部分，被篡改时解包数据密钥会失败。
+ * 任意分段在文件中的位置可以直接算出，读取时只需读取并校验涉及的分段。
+ * 空文件也有一个只包含标签的最后一段。
+ * <p>
+ * 分段大小字段的最高字节记录加密前的压缩编码（{@link ContentCoding}），低 3 字节为分段大小，
+ * 压缩时分段切分的是压缩后的字节，压缩内容之后再追加 8 字节大端的原始长度，与内容一起加密和认证，
+ * 读取原始长度不需要解压。
+ */
+final class SegmentedGcmFormat {
+
+    static final int TAG_LENGTH = 16;
+    static final int NONCE_LENGTH = 12;
+    /**
+     * 每段密文比明文多出的字节数：nonce 与标签
+     */
+    static final int SEGMENT_OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+    /**
+     * 分段大小在头部中的位置，主密钥 ID 与包装后的数据密钥与 V5/V6 相同，轮换主密钥时同样只改写这部分
+     */
+    static final int SEGMENT_SIZE_OFFSET = Integer.BYTES + EnvelopeKeyService.WRAPPED_KEY_LENGTH;
+    static final int HEADER_LENGTH = SEGMENT_SIZE_OFFSET + Integer.BYTES;
+    static final int MAX_SEGMENT_SIZE = 0xFF_FFFF;
+    /**
+     * 压缩内容之后记录原始长度的字节数
+     */
+    static final int DECODED_LENGTH_TRAILER = Long.BYTES;
+    private static final int CODING_SHIFT = 24;
+
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /**
+     * 加密与解密复用线程内的 Cipher；nonce 每次随机生成，JCE 对同一实例重复使用 nonce 加密的检查仍然有效
+     */
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CIPHER_ALGORITHM + " is not available", e);
+        }
+    });
+
+    private SegmentedGcmFormat() {
+    }
+
+    /**
+     * 文件的数据密钥、分段大小与压缩编码
+     */
+    record Params(SecretKey key, int segmentSize, ContentCoding coding) {
+
+        long cipherSegmentSize() {
+            return (long) segmentSize + SEGMENT_OVERHEAD;
+        }
+
+        /**
+         * 头部之后的密文长度对应的分段数
+         */
+        long segmentCount(long cipherTextLength) {
+            return Math.max(1, Math.ceilDiv(cipherTextLength, cipherSegmentSize()));
+        }
+
+        long plaintextLength(long cipherTextLength) {
+            return SegmentedGcmFormat.plaintextLength(segmentSize, cipherTextLength);
+        }
+
+        /**
+         * 编码后内容的长度，即分段明文去掉压缩时追加的原始长度
+         */
+        long encodedLength(long cipherTextLength) {
+            return Math.max(0, plaintextLength(cipherTextLength) - trailerLength(coding));
+        }
+
+        /**
+         * 第 index 段在文件中的位置
+         */
+        long position(long index) {
+            return HEADER_LENGTH + index * cipherSegmentSize();
+        }
+
+        /**
+         * 第 index 段的附加认证数据：头部中的分段大小字段（含压缩编码）、分段序号与是否最后一段
+         */
+        byte[] associatedData(long index, boolean last) {
+            if (index > 0xFFFF_FFFFL) {
+                throw new IllegalArgumentException("Segment index out of range: " + index);
+            }
+            return ByteBuffer.allocate(Integer.BYTES + Integer.BYTES + 1)
+                .putInt(segmentField(segmentSize, coding))
+                .putInt((int) index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+        }
+    }
+
+    static long plaintextLength(int segmentSize, long cipherTextLength) {
+        long segments = Math.max(1, Math.ceilDiv(cipherTextLength, (long) segmentSize + SEGMENT_OVERHEAD));
+        return Math.max(0, cipherTextLength - segments * SEGMENT_OVERHEAD);
+    }
+
+    private static int trailerLength(ContentCoding coding) {
+        return coding == ContentCoding.IDENTITY ? 0 : DECODED_LENGTH_TRAILER;
+    }
+
+    /**
+     * 由头部与文件大小得到编码后内容的长度，不需要解密
+     */
+    static long readEncodedLength(FileChannel channel) throws IOException {
+        int segmentField = readSegmentField(channel);
+        long cipherTextLength = channel.size() - HEADER_LENGTH;
+        return Math.max(0, plaintextLength(segmentSize(segmentField), cipherTextLength)
+            - trailerLength(coding(segmentField)));
+    }
+
+    /**
+     * 原始内容的长度：未压缩时即编码后的长度，压缩时读取并校验最后记录的原始长度
+     */
+    static long readDecodedLength(FileChannel channel, Params params) throws IOException {
+        long encodedLength = params.encodedLength(channel.size() - HEADER_LENGTH);
+        if (params.coding() == ContentCoding.IDENTITY) {
+            return encodedLength;
+        }
+        return ByteBuffer.wrap(readRange(channel, params, encodedLength, DECODED_LENGTH_TRAILER)).getLong();
+    }
+
+    /**
+     * 读取头部中的压缩编码，无需解包数据密钥
+     */
+    static ContentCoding readCoding(FileChannel channel) throws IOException {
+        return coding(readSegmentField(channel));
+    }
+
+    /**
+     * 头部中分段大小字段的值：最高字节为压缩编码，低 3 字节为分段大小
+     */
+    static int segmentField(int segmentSize, ContentCoding coding) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size out of range: " + segmentSize);
+        }
+        return coding.id() << CODING_SHIFT | segmentSize;
+    }
+
+    static int segmentSize(int segmentField) {
+        return segmentField & MAX_SEGMENT_SIZE;
+    }
+
+    static ContentCoding coding(int segmentField) {
+        return ContentCoding.of(segmentField >>> CODING_SHIFT);
+    }
+
+    private static int readSegmentField(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, buffer, SEGMENT_SIZE_OFFSET);
+        return buffer.flip().getInt();
+    }
+
+    /**
+     * 以新的随机 nonce 加密 plain[from, from + length) 作为第 index 段，
+     * nonce、密文与标签写入 out[outOffset, outOffset + length + SEGMENT_OVERHEAD)
+     */
+    static void encrypt(Params params, long index, boolean last, byte[] plain, int from, int length, byte[] out,
+                        int outOffset) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, params.key(), new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(params.associatedData(index, last));
+        System.arraycopy(nonce, 0, out, outOffset, NONCE_LENGTH);
+        cipher.doFinal(plain, from, length, out, outOffset + NONCE_LENGTH);
+    }
+
+    /**
+     * 加密连续的若干段明文，返回拼接后的密文。offset 必须按分段大小对齐
+     *
+     * @param last 这批明文是否包含最后一段
+     */
+    static byte[] encryptSegments(Params params, long offset, byte[] plain, int length, boolean last)
+        throws GeneralSecurityException {
+        int segmentSize = params.segmentSize();
+        int segments = Math.max(1, Math.ceilDiv(length, segmentSize));
+        byte[] cipherText = new byte[length + segments * SEGMENT_OVERHEAD];
+        long firstIndex = offset / segmentSize;
+        for (int i = 0; i < segments; i++) {
+            int from = i * segmentSize;
+            encrypt(params, firstIndex + i, last && i == segments - 1, plain, from,
+                    Math.min(segmentSize, length - from), cipherText, from + i * SEGMENT_OVERHEAD);
+        }
+        return cipherText;
+    }
+
+    /**
+     * 读取并校验第 index 段，返回明文
+     *
+     * @throws IOException 分段被截断或认证失败
+     */
+    static byte[] readSegment(FileChannel channel, Params params, long index, long segmentCount) throws IOException {
+        long position = params.position(index);
+        int length = (int) Math.min(params.cipherSegmentSize(), channel.size() - position);
+        if (length < SEGMENT_OVERHEAD) {
+            throw new EOFException("Segment " + index + " is truncated");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, buffer, position);
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, params.key(),
+                        new GCMParameterSpec(TAG_LENGTH * 8, buffer.array(), 0, NONCE_LENGTH));
+            cipher.updateAAD(params.associatedData(index, index == segmentCount - 1));
+            return cipher.doFinal(buffer.array(), NONCE_LENGTH, length - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Segment " + index + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt segment " + index, e);
+        }
+    }
+
+    /**
+     * 读取并校验分段明文 [offset, offset + length) 所在的分段，返回这段明文
+     *
+     * @throws EOFException 区间超出明文长度
+     */
+    static byte[] readRange(FileChannel channel, Params params, long offset, int length) throws IOException {
+        long cipherTextLength = channel.size() - HEADER_LENGTH;
+        if (offset < 0 || offset + length > params.plaintextLength(cipherTextLength)) {
+            throw new EOFException("Range " + offset + "+" + length + " is out of bounds");
+        }
+        long segmentCount = params.segmentCount(cipherTextLength);
+        byte[] range = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long position = offset + copied;
+            byte[] plainText = readSegment(channel, params, position / params.segmentSize(), segmentCount);
+            int from = (int) (position % params.segmentSize());
+            int count = Math.min(plainText.length - from, length - copied);
+            System.arraycopy(plainText, from, range, copied, count);
+            copied += count;
+        }
+        return range;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    /**
+     * 以 params 中的压缩编码压缩后逐段加密写出的输出流。压缩时关闭流会在压缩内容之后追加原始长度
+     */
+    static OutputStream openEncodingStream(OutputStream out, Params params) throws IOException {
+        SegmentOutputStream segments = new SegmentOutputStream(out, params);
+        if (params.coding() == ContentCoding.IDENTITY) {
+            return segments;
+        }
+        return new DecodedLengthOutputStream(segments, params.coding());
+    }
+
+    /**
+     * 统计写入的原始字节数，关闭时结束压缩并追加原始长度，再写出最后一段
+     */
+    private static final class DecodedLengthOutputStream extends OutputStream {
+
+        private final SegmentOutputStream segments;
+        private final OutputStream encoder;
+        private long decodedLength;
+        private boolean closed;
+
+        private DecodedLengthOutputStream(SegmentOutputStream segments, ContentCoding coding) throws IOException {
+            this.segments = segments;
+            // 压缩流关闭时只结束压缩，不关闭分段输出流
+            this.encoder = coding.encode(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    segments.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    segments.write(b, off, len);
+                }
+            });
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            encoder.write(b);
+            decodedLength++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            encoder.write(b, off, len);
+            decodedLength += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                encoder.close();
+                segments.write(ByteBuffer.allocate(DECODED_LENGTH_TRAILER).putLong(decodedLength).array());
+            } finally {
+                segments.close();
+            }
+        }
+    }
+
+    /**
+     * 逐段加密写出的输出流。缓冲区写满后要等到有后续数据时才能确定它不是最后一段，因此满段延迟到下一次写入时输出
+     */
+    static final class SegmentOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Params params;
+        private final byte[] buffer;
+        private final byte[] cipherText;
+        private int count;
+        private long index;
+        private boolean closed;
+
+        SegmentOutputStream(OutputStream out, Params params) {
+            this.out = out;
+            this.params = params;
+            this.buffer = new byte[params.segmentSize()];
+            this.cipherText = new byte[params.segmentSize() + SEGMENT_OVERHEAD];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    writeSegment(false);
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            try {
+                encrypt(params, index++, last, buffer, 0, count, cipherText, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to encrypt segment " + (index - 1), e);
+            }
+            out.write(cipherText, 0, count + SEGMENT_OVERHEAD);
+            count = 0;
+        }
+    }
+
+    /**
+     * 从编码后内容的偏移量开始逐段解密并校验的输入流，不包含压缩时追加的原始长度，关闭时关闭 channel
+     */
+    static final class SegmentInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final Params params;
+        private final long segmentCount;
+        private long nextIndex;
+        private byte[] current = new byte[0];
+        private int position;
+        private long remaining;
+
+        SegmentInputStream(FileChannel channel, Params params, long offset) throws IOException {
+            this.channel = channel;
+            this.params = params;
+            long cipherTextLength = channel.size() - HEADER_LENGTH;
+            this.segmentCount = params.segmentCount(cipherTextLength);
+            this.remaining = Math.max(0, params.encodedLength(cipherTextLength) - offset);
+            this.nextIndex = offset / params.segmentSize();
+            if (nextIndex < segmentCount) {
+                current = readSegment(channel, params, nextIndex++, segmentCount);
+                position = (int) Math.min(offset % params.segmentSize(), current.length);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            while (position == current.length) {
+                if (nextIndex >= segmentCount) {
+                    return -1;
+                }
+                current = readSegment(channel, params, nextIndex++, segmentCount);
+                position = 0;
+            }
+            int n = (int) Math.min(Math.min(len, current.length - position), remaining);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.ThumbnailRenderProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.poi.sl.usermodel.ShapeType;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFAutoShape;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.apache.poi.xslf.usermodel.XSLFTextBox;
+import org.springframework.stereotype.Service;
+
+/**
+ * 比较幻灯片预览图串行渲染与各线程使用独立文档副本并行渲染的速度。
+ * <p>
+ * 用 POI 生成一份包含文字与图形的演示文稿，以不同线程数的 {@link PptThumbnailService} 完整生成预览图（含 PNG 编码和加密写入），
+ * 每种线程数先预热一轮，再取两轮中最快的一轮，生成的预览图写入临时存储键，测试后删除。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SlideRenderBenchmarkService {
+
+    private static final int MAX_SLIDES = 200;
+    private static final int ROUNDS = 2;
+    private static final int SHAPES_PER_SLIDE = 40;
+    private static final StorageVersion BENCHMARK_VERSION = StorageVersion.V3;
+
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final ThumbnailRenderProperties properties;
+
+    public List<BenchmarkResult> run(int slideCount) throws Exception {
+        int slides = Math.clamp(slideCount, 2, MAX_SLIDES);
+        byte[] document = createDocument(slides);
+        String password = UUID.randomUUID().toString();
+
+        List<BenchmarkResult> results = new ArrayList<>();
+        long serialNanos = 0;
+        for (int threads : threadCounts()) {
+            PptThumbnailService service = new PptThumbnailService(
+                aesCtrFileEncryptionService, new ThumbnailRenderProperties(threads, properties.memoryBudget(),
+                                                                           properties.maxDocumentSize()));
+            try {
+                long best = Long.MAX_VALUE;
+                boolean complete = true;
+                for (int round = 0; round <= ROUNDS; round++) {
+                    String storageKey = "benchmark-" + UUID.randomUUID();
+                    try {
+                        long start = System.nanoTime();
+                        List<Integer> generated = service.generateThumbnail(new ByteArrayInputStream(document),
+                                                                            storageKey, password,
+                                                                            BENCHMARK_VERSION);
+                        long elapsed = System.nanoTime() - start;
+                        complete &= generated.size() == slides;
+                        if (round > 0) {
+                            best = Math.min(best, elapsed);
+                        }
+                    } finally {
+                        aesCtrFileEncryptionService.deleteFile(storageKey, BENCHMARK_VERSION);
+                    }
+                }
+                if (threads == 1) {
+                    serialNanos = best;
+                }
+                results.add(new BenchmarkResult(threads, slides / (best / 1_000_000_000.0),
+                                                (double) serialNanos / best, complete));
+            } finally {
+                service.shutdown();
+            }
+        }
+        log.info("Slide render benchmark ({} slides): {}", slides, results);
+        return results;
+    }
+
+    private static byte[] createDocument(int slides) throws Exception {
+        try (XMLSlideShow ppt = new XMLSlideShow()) {
+            for (int i = 0; i < slides; i++) {
+                XSLFSlide slide = ppt.createSlide();
+                XSLFTextBox title = slide.createTextBox();
+                title.setAnchor(new Rectangle(40, 20, 640, 60));
+                title.setText("Slide " + (i + 1));
+                for (int s = 0; s < SHAPES_PER_SLIDE; s++) {
+                    XSLFAutoShape shape = slide.createAutoShape();
+                    shape.setShapeType(s % 2 == 0 ? ShapeType.ELLIPSE : ShapeType.ROUND_RECT);
+                    shape.setAnchor(new Rectangle(20 + s * 15 % 600, 100 + s * 37 % 380, 80, 60));
+                    shape.setFillColor(new Color((i * 31 + s * 17) % 256, (s * 53) % 256, (i * 7) % 256));
+                    shape.setText("Shape " + s);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ppt.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * 1、2、4……直到 CPU 核数，核数不是 2 的幂时最后追加核数
+     */
+    private static List<Integer> threadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        return counts;
+    }
+
+    /**
+     * 基准测试结果
+     *
+     * @param slidesPerSecond 每秒生成的预览图数
+     * @param speedup         相对串行渲染的加速比
+     * @param complete        是否生成了全部页的预览图
+     */
+    public record BenchmarkResult(
+        int threads,
+        double slidesPerSecond,
+        double speedup,
+        boolean complete
+    ) {
+
+    }
+}
@@ -0,0 +1,252 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.config.FileDataSourceConfig;
+import io.github.dutianze.yotsuba.file.config.LayoutMigrationProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * 在线把 V1（根目录平铺）和 V2（按首字符分目录）布局的本地文件迁移到 V3（按前 4 个字符分目录）布局。
+ * <p>
+ * 每个文件按以下顺序迁移，任何一步中断都不会丢失可读的副本：
+ * <ol>
+ *   <li>以硬链接在 V3 位置建立加密文件、明文文件和预览图目录，旧位置保持可读；</li>
+ *   <li>一条带旧版本条件的 UPDATE 把记录切换到 V3，这是迁移的提交点；</li>
+ *   <li>延迟 unlinkDelay 后删除旧位置，已读取旧记录的请求可以读完。</li>
+ * </ol>
+ * 第 1 步后中断时记录仍指向旧位置，重新迁移会替换 V3 位置的残留；第 2 步后中断时旧位置的残留由孤立文件回收清理。
+ * 记录按 ID 顺序分批读取，每批由固定大小的线程池并行迁移。
+ */
+@Slf4j
+@Service
+public class StorageLayoutMigrationService {
+
+    private static final StorageVersion TARGET_VERSION = StorageVersion.V3;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final FileChecksumService fileChecksumService;
+    private final LayoutMigrationProperties properties;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "layout-migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final ScheduledExecutorService unlinkScheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "layout-migration-unlink");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private final AtomicInteger pendingUnlinks = new AtomicInteger();
+    private volatile String lastError;
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+
+    public StorageLayoutMigrationService(@Qualifier(FileDataSourceConfig.JDBC_TEMPLATE) JdbcTemplate jdbcTemplate,
+                                         AesCtrFileEncryptionService aesCtrFileEncryptionService,
+                                         FileChecksumService fileChecksumService,
+                                         LayoutMigrationProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.aesCtrFileEncryptionService = aesCtrFileEncryptionService;
+        this.fileChecksumService = fileChecksumService;
+        this.properties = properties;
+    }
+
+    /**
+     * 在后台启动迁移，已在运行时不重复启动
+     *
+     * @return 是否启动了新的迁移
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        stopRequested.set(false);
+        migrated.set(0);
+        failed.set(0);
+        bytesMoved.set(0);
+        lastError = null;
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        executor.execute(this::run);
+        return true;
+    }
+
+    /**
+     * 请求在当前批次完成后停止，已迁移的文件保持迁移状态
+     */
+    public void stop() {
+        stopRequested.set(true);
+    }
+
+    public MigrationStatus status() {
+        return new MigrationStatus(running.get(), countRemaining(), migrated.get(), failed.get(), bytesMoved.get(),
+                                   pendingUnlinks.get(), properties.threads(), lastError, startedAt, finishedAt);
+    }
+
+    /**
+     * 未执行的延迟删除直接丢弃，旧位置的残留由孤立文件回收清理
+     */
+    @PreDestroy
+    public void shutdown() {
+        stopRequested.set(true);
+        executor.shutdownNow();
+        unlinkScheduler.shutdownNow();
+    }
+
+    private void run() {
+        log.info("Storage layout migration started with {} threads", properties.threads());
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, properties.threads()), runnable -> {
+            Thread thread = new Thread(runnable, "layout-migration-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            String afterId = "";
+            while (!stopRequested.get()) {
+                List<Map<String, Object>> rows = jdbcTemplate.queryForList("""
+                    SELECT id, COALESCE(storage_version, 'V1') AS storage_version FROM file_resource
+                    WHERE resource_type = 'LOCAL'
+                      AND (storage_version IS NULL OR storage_version IN ('V1', 'V2'))
+                      AND id > ?
+                    ORDER BY id
+                    LIMIT ?
+                    """, afterId, properties.batchSize());
+                if (rows.isEmpty()) {
+                    break;
+                }
+                List<Callable<Void>> tasks = new ArrayList<>(rows.size());
+                for (Map<String, Object> row : rows) {
+                    String id = (String) row.get("id");
+                    StorageVersion sourceVersion = StorageVersion.valueOf((String) row.get("storage_version"));
+                    tasks.add(() -> {
+                        if (!stopRequested.get()) {
+                            migrateOne(id, sourceVersion);
+                        }
+                        return null;
+                    });
+                    afterId = id;
+                }
+                workers.invokeAll(tasks);
+                Thread.sleep(properties.batchPause().toMillis());
+            }
+
+            if (stopRequested.get()) {
+                log.info("Storage layout migration stopped: {} migrated, {} failed", migrated.get(), failed.get());
+            } else {
+                log.info("Storage layout migration finished: {} migrated, {} failed", migrated.get(), failed.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Storage layout migration interrupted");
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            log.error("Storage layout migration aborted", e);
+        } finally {
+            workers.shutdownNow();
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 迁移单个文件，失败时记录错误并跳过，旧位置不受影响
+     */
+    private void migrateOne(String id, StorageVersion sourceVersion) {
+        if (id.length() < 4) {
+            // V3 目录名与 V1 的预览图目录重合，删除旧位置会删掉新位置
+            return;
+        }
+        try {
+            aesCtrFileEncryptionService.linkStorage(id, sourceVersion, TARGET_VERSION);
+            int updated = jdbcTemplate.update("""
+                UPDATE file_resource SET storage_version = ?
+                WHERE id = ? AND COALESCE(storage_version, 'V1') = ?
+                """, TARGET_VERSION.name(), id, sourceVersion.name());
+            if (updated == 0) {
+                // 迁移过程中记录被删除或改写，V3 位置的链接不再被引用
+                String current = jdbcTemplate.queryForList(
+                    "SELECT storage_version FROM file_resource WHERE id = ?", String.class, id)
+                    .stream().findFirst().orElse(null);
+                if (!TARGET_VERSION.name().equals(current)) {
+                    aesCtrFileEncryptionService.deleteFile(id, TARGET_VERSION);
+                }
+                return;
+            }
+            fileChecksumService.move(Path.of(id), Path.of(id), TARGET_VERSION, true);
+            migrated.incrementAndGet();
+            bytesMoved.addAndGet(aesCtrFileEncryptionService.getStoredSize(id, TARGET_VERSION));
+            scheduleUnlink(id, sourceVersion);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            lastError = id + ": " + e.getMessage();
+            log.error("Failed to migrate {} from {} to {}", id, sourceVersion, TARGET_VERSION, e);
+        }
+    }
+
+    private void scheduleUnlink(String id, StorageVersion sourceVersion) {
+        pendingUnlinks.incrementAndGet();
+        unlinkScheduler.schedule(() -> {
+            try {
+                aesCtrFileEncryptionService.deleteFile(id, sourceVersion);
+            } finally {
+                pendingUnlinks.decrementAndGet();
+            }
+        }, properties.unlinkDelay().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private long countRemaining() {
+        Long remaining = jdbcTemplate.queryForObject("""
+            SELECT COUNT(*) FROM file_resource
+            WHERE resource_type = 'LOCAL' AND (storage_version IS NULL OR storage_version IN ('V1', 'V2'))
+            """, Long.class);
+        return remaining == null ? 0 : remaining;
+    }
+
+    /**
+     * 迁移进度
+     *
+     * @param remaining      仍在 V1/V2 布局的本地文件数
+     * @param pendingUnlinks 已切换到 V3、等待删除旧位置的文件数
+     */
+    public record MigrationStatus(
+        boolean running,
+        long remaining,
+        long migrated,
+        long failed,
+        long bytesMoved,
+        int pendingUnlinks,
+        int threads,
+        @Nullable String lastError,
+        @Nullable LocalDateTime startedAt,
+        @Nullable LocalDateTime finishedAt
+    ) {
+
+    }
+}
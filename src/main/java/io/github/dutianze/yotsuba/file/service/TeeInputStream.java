@@ -0,0 +1,65 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * 读取时把同一份字节同时送入摘要计算和（可选的）旁路管道，使上传流只需读取一次
+ */
+final class TeeInputStream extends FilterInputStream {
+
+    private final MessageDigest digest;
+    private final BoundedPipe branch;
+
+    TeeInputStream(InputStream in, MessageDigest digest, BoundedPipe branch) {
+        super(in);
+        this.digest = digest;
+        this.branch = branch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            digest.update((byte) b);
+            if (branch != null) {
+                branch.write(new byte[]{(byte) b}, 0, 1);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            digest.update(b, off, n);
+            if (branch != null) {
+                branch.write(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // 跳过的字节同样需要经过摘要和旁路，因此按普通读取处理
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
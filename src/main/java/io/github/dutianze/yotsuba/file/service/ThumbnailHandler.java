@@ -1,10 +1,12 @@
 package io.github.dutianze.yotsuba.file.service;
 
 import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.service.ThumbnailService.ThumbnailListener;
+import java.io.InputStream;
 import java.util.List;
 import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 @Service
 @RequiredArgsConstructor
@@ -12,11 +14,15 @@ public class ThumbnailHandler {
 
   private final List<ThumbnailService> services;
 
-  public List<Integer> generateThumbnail(MultipartFile file, String id, String password, StorageVersion storageVersion)
-      throws Exception {
+  public boolean supports(String filename) {
+    return filename != null && services.stream().anyMatch(s -> s.supports(filename));
+  }
+
+  public List<Integer> generateThumbnail(String filename, InputStreamSource source, String id, String password,
+      StorageVersion storageVersion, ThumbnailListener listener) throws Exception {
 
     ThumbnailService service = services.stream()
-        .filter(s -> s.supports(file.getOriginalFilename()))
+        .filter(s -> s.supports(filename))
         .findFirst()
         .orElse(null);
 
@@ -24,7 +30,9 @@ public class ThumbnailHandler {
       return List.of();
     }
 
-    return service.generateThumbnail(file.getInputStream(), id, password, storageVersion);
+    try (InputStream in = source.getInputStream()) {
+      return service.generateThumbnail(in, id, password, storageVersion, listener);
+    }
   }
 }
 
@@ -0,0 +1,345 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import io.github.dutianze.yotsuba.file.domain.FileBlobRepository;
+import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
+import io.github.dutianze.yotsuba.file.domain.ThumbnailJob;
+import io.github.dutianze.yotsuba.file.domain.ThumbnailJobRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.domain.valueobject.ThumbnailJobStatus;
+import io.github.dutianze.yotsuba.file.dto.ThumbnailJobDto;
+import io.github.dutianze.yotsuba.file.service.ThumbnailService.ThumbnailListener;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+/**
+ * 预览图后台任务队列。任务持久化在文件数据源中，由与 CPU 核数相同的工作线程执行，失败后按退避时间重试，
+ * 每生成一张预览图就写回 thumbnailIndexList 并推送进度。
+ * <p>
+ * 加密上传时预览图可以在读取上传流的同时生成（{@link #startLive}），任务第一次执行直接接收其结果，
+ * 不必再解密读取刚写入的文件；渲染跟不上上传、失败或重试时任务从存储读取源文件。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ThumbnailJobService {
+
+    private static final String PASSWORD = "123";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_SECONDS = 30;
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * 上传时生成的预览图先写入临时存储键，与内容寻址版本（V8）使用相同的加密格式，可以直接移动
+     */
+    private static final StorageVersion LIVE_VERSION = StorageVersion.V7;
+    /**
+     * 上传流与渲染之间最多缓冲的字节数，渲染落后超过该值时放弃，改由任务从存储读取
+     */
+    private static final long LIVE_BUFFER_BYTES = 32L * 1024 * 1024;
+
+    private final ThumbnailJobRepository thumbnailJobRepository;
+    private final FileResourceRepository fileResourceRepository;
+    private final FileBlobRepository fileBlobRepository;
+    private final AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private final ThumbnailHandler thumbnailHandler;
+
+    private final ScheduledExecutorService workers =
+        Executors.newScheduledThreadPool(WORKER_COUNT, new WorkerFactory());
+    private final Sinks.Many<ThumbnailJobDto> progressSink = Sinks.many().multicast().directBestEffort();
+
+    /**
+     * 为已写入存储的文件创建预览图任务，不支持预览的文件类型直接忽略
+     */
+    public Optional<ThumbnailJob> enqueue(String storageKey, StorageVersion storageVersion, boolean encrypted,
+                                          String filename) {
+        return enqueue(storageKey, storageVersion, encrypted, filename, null);
+    }
+
+    /**
+     * 为已写入存储的文件创建预览图任务。live 不为空时任务等待上传时的渲染结束，成功则直接采用其预览图
+     */
+    public Optional<ThumbnailJob> enqueue(String storageKey, StorageVersion storageVersion, boolean encrypted,
+                                          String filename, @Nullable LiveRender live) {
+        if (!thumbnailHandler.supports(filename)) {
+            discardLive(live);
+            return Optional.empty();
+        }
+        ThumbnailJob job = thumbnailJobRepository.save(
+            ThumbnailJob.create(storageKey, storageVersion, encrypted, filename));
+        log.info("Thumbnail job {} queued for {}", job.getId(), storageKey);
+        emit(job);
+        if (live == null) {
+            workers.execute(() -> run(job.getId()));
+        } else {
+            live.result.whenCompleteAsync((thumbnailIndexList, failure) ->
+                                              adoptLive(job.getId(), live, thumbnailIndexList, failure), workers);
+        }
+        return Optional.of(job);
+    }
+
+    /**
+     * 开始在读取上传流的同时生成预览图，预览图写入一个临时存储键，由 {@link #enqueue} 接收或 {@link #discardLive} 丢弃
+     *
+     * @return 不支持预览的文件类型返回 null
+     */
+    @Nullable
+    public LiveRender startLive(@Nullable String filename) {
+        if (!thumbnailHandler.supports(filename)) {
+            return null;
+        }
+        String storageKey = new FileResourceId().id();
+        BoundedPipe pipe = new BoundedPipe(LIVE_BUFFER_BYTES);
+        CompletableFuture<List<Integer>> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return thumbnailHandler.generateThumbnail(filename, () -> pipe, storageKey, PASSWORD, LIVE_VERSION,
+                                                          ThumbnailListener.NONE);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, workers);
+        return new LiveRender(storageKey, pipe, result);
+    }
+
+    /**
+     * 上传失败或内容已存在时停止上传时的渲染，结束后删除已生成的预览图
+     */
+    public void discardLive(@Nullable LiveRender live) {
+        if (live == null) {
+            return;
+        }
+        live.cancel();
+        live.result.whenComplete((thumbnailIndexList, failure) ->
+                                     aesCtrFileEncryptionService.deleteFile(live.storageKey, LIVE_VERSION));
+    }
+
+    public Optional<ThumbnailJobDto> findLatest(String storageKey) {
+        return thumbnailJobRepository.findFirstByStorageKeyOrderByCreatedAtDesc(storageKey)
+            .map(ThumbnailJobDto::fromEntity);
+    }
+
+    public Flux<ThumbnailJobDto> subscribe(String storageKey) {
+        return progressSink.asFlux().filter(dto -> dto.storageKey().equals(storageKey));
+    }
+
+    /**
+     * 启动时恢复上次未完成的任务
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePendingJobs() {
+        int requeued = thumbnailJobRepository.requeueRunningJobs();
+        List<ThumbnailJob> pending = thumbnailJobRepository.findByStatusOrderByCreatedAtAsc(ThumbnailJobStatus.PENDING);
+        if (!pending.isEmpty()) {
+            log.info("Resuming {} thumbnail jobs ({} interrupted)", pending.size(), requeued);
+        }
+        pending.forEach(job -> workers.execute(() -> run(job.getId())));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * 以 PENDING 为条件原子地取得任务后执行，同一任务被重复调度（入队、启动恢复、重试）时只有一次生效
+     */
+    private void run(String jobId) {
+        if (thumbnailJobRepository.claim(jobId) == 0) {
+            return;
+        }
+        thumbnailJobRepository.findById(jobId).ifPresent(this::render);
+    }
+
+    /**
+     * 从存储读取源文件生成预览图。之前的尝试已生成的页不再渲染
+     */
+    private void render(ThumbnailJob job) {
+        String jobId = job.getId();
+        emit(job);
+        SortedSet<Integer> generated = new TreeSet<>(job.getThumbnailIndexList());
+        ThumbnailListener listener = new ThumbnailListener() {
+            @Override
+            public void onStart(int total) {
+                job.updateTotalCount(total);
+                save(job);
+            }
+
+            @Override
+            public void onGenerated(int index) {
+                generated.add(index);
+                publishThumbnails(job, new ArrayList<>(generated));
+            }
+
+            @Override
+            public boolean isGenerated(int index) {
+                return generated.contains(index);
+            }
+        };
+
+        try {
+            List<Integer> thumbnailIndexList = thumbnailHandler.generateThumbnail(
+                job.getFilename(), () -> openSource(job), job.getStorageKey(), PASSWORD, job.getStorageVersion(),
+                listener);
+            generated.addAll(thumbnailIndexList);
+            job.succeed();
+            publishThumbnails(job, new ArrayList<>(generated));
+            log.info("Thumbnail job {} finished with {} thumbnails", jobId, generated.size());
+        } catch (NoSuchFileException e) {
+            // 源文件已被删除，重试没有意义
+            job.abandon("Source file not found: " + e.getMessage());
+            save(job);
+            log.warn("Thumbnail job {} abandoned, source {} is gone", jobId, job.getStorageKey());
+        } catch (Exception e) {
+            boolean retry = job.fail(e.toString(), MAX_ATTEMPTS);
+            save(job);
+            if (retry) {
+                long delay = RETRY_BACKOFF_SECONDS * job.getAttempts();
+                log.warn("Thumbnail job {} failed (attempt {}), retrying in {}s", jobId, job.getAttempts(), delay, e);
+                workers.schedule(() -> run(jobId), delay, TimeUnit.SECONDS);
+            } else {
+                log.error("Thumbnail job {} failed after {} attempts", jobId, job.getAttempts(), e);
+            }
+        }
+    }
+
+    /**
+     * 上传时的渲染结束后取得任务并接收其预览图：成功时把预览图目录移动到任务的存储键并完成任务，
+     * 否则作为第一次尝试从存储读取
+     */
+    private void adoptLive(String jobId, LiveRender live, @Nullable List<Integer> thumbnailIndexList,
+                           @Nullable Throwable failure) {
+        ThumbnailJob job = thumbnailJobRepository.claim(jobId) == 0 ? null
+            : thumbnailJobRepository.findById(jobId).orElse(null);
+        if (job == null) {
+            discardLive(live);
+            return;
+        }
+        if (failure != null || !job.getStorageVersion().isSegmented()) {
+            log.info("Thumbnail job {} falls back to reading storage: {}", jobId,
+                     failure == null ? job.getStorageVersion() : failure.toString());
+            discardLive(live);
+            render(job);
+            return;
+        }
+        try {
+            if (!aesCtrFileEncryptionService.moveThumbnails(live.storageKey, LIVE_VERSION, job.getStorageKey(),
+                                                            job.getStorageVersion())
+                && !thumbnailIndexList.isEmpty()) {
+                throw new IOException("Thumbnail directory of " + job.getStorageKey() + " already exists");
+            }
+        } catch (IOException e) {
+            log.warn("Failed to adopt live thumbnails for job {}", jobId, e);
+            discardLive(live);
+            render(job);
+            return;
+        }
+        job.updateTotalCount(thumbnailIndexList.size());
+        job.succeed();
+        publishThumbnails(job, thumbnailIndexList);
+        log.info("Thumbnail job {} adopted {} thumbnails rendered during upload", jobId, thumbnailIndexList.size());
+    }
+
+    private InputStream openSource(ThumbnailJob job) throws IOException {
+        Path path = Path.of(job.getStorageKey());
+        if (!job.isEncrypted()) {
+            return Files.newInputStream(aesCtrFileEncryptionService.getPlainFilePath(path, job.getStorageVersion()));
+        }
+        try {
+            return aesCtrFileEncryptionService.decryptFile(path, PASSWORD, job.getStorageVersion());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to decrypt " + path, e);
+        }
+    }
+
+    /**
+     * 将当前已生成的预览图写回任务、blob 和所有指向该存储键的 FileResource
+     */
+    private void publishThumbnails(ThumbnailJob job, List<Integer> thumbnailIndexList) {
+        job.updateThumbnailIndexList(thumbnailIndexList);
+        save(job);
+        if (job.getStorageVersion().isContentAddressed()) {
+            fileBlobRepository.updateThumbnailIndexList(job.getStorageKey(), thumbnailIndexList);
+        }
+        fileResourceRepository.updateThumbnailIndexListByStorageKey(job.getStorageKey(), thumbnailIndexList);
+    }
+
+    private void save(ThumbnailJob job) {
+        emit(thumbnailJobRepository.save(job));
+    }
+
+    private void emit(ThumbnailJob job) {
+        // 多个工作线程并发推送，Sinks 要求串行调用
+        synchronized (progressSink) {
+            progressSink.tryEmitNext(ThumbnailJobDto.fromEntity(job));
+        }
+    }
+
+    /**
+     * 上传时进行的预览图渲染。上传方通过 {@link #pipe} 输送读到的内容，读完后调用 {@link #finish}
+     */
+    public static final class LiveRender {
+
+        private final String storageKey;
+        private final BoundedPipe pipe;
+        private final CompletableFuture<List<Integer>> result;
+
+        private LiveRender(String storageKey, BoundedPipe pipe, CompletableFuture<List<Integer>> result) {
+            this.storageKey = storageKey;
+            this.pipe = pipe;
+            this.result = result;
+        }
+
+        BoundedPipe pipe() {
+            return pipe;
+        }
+
+        /**
+         * 上传流已完整读取
+         */
+        void finish() {
+            pipe.finish(null);
+        }
+
+        private void cancel() {
+            // 关闭管道后渲染读到 EOF 尽快结束，之后的写入直接丢弃
+            pipe.close();
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "thumbnail-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
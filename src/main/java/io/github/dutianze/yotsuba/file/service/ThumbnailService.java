@@ -6,5 +6,34 @@ import java.util.List;
 
 public interface ThumbnailService {
   boolean supports(String filename);
-  List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion) throws Exception;
+
+  default List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion)
+      throws Exception {
+    return generateThumbnail(in, id, password, storageVersion, ThumbnailListener.NONE);
+  }
+
+  List<Integer> generateThumbnail(InputStream in, String id, String password, StorageVersion storageVersion,
+      ThumbnailListener listener) throws Exception;
+
+  /**
+   * 逐张预览图生成进度回调
+   */
+  interface ThumbnailListener {
+
+    ThumbnailListener NONE = new ThumbnailListener() {
+    };
+
+    default void onStart(int total) {
+    }
+
+    default void onGenerated(int index) {
+    }
+
+    /**
+     * 该页的预览图在之前的尝试中已经生成，重试时不必再渲染
+     */
+    default boolean isGenerated(int index) {
+      return false;
+    }
+  }
 }
@@ -0,0 +1,275 @@
+package io.github.dutianze.yotsuba.management;
+
+import com.vaadin.hilla.Endpoint;
+import io.github.dutianze.yotsuba.file.service.DatabaseBlobMigrationService;
+import io.github.dutianze.yotsuba.file.service.DecryptedContentCache;
+import io.github.dutianze.yotsuba.file.service.DerivedKeyCache;
+import io.github.dutianze.yotsuba.file.service.EncryptionBenchmarkService;
+import io.github.dutianze.yotsuba.file.service.EnvelopeKeyRotationService;
+import io.github.dutianze.yotsuba.file.service.FileIntegrityScrubService;
+import io.github.dutianze.yotsuba.file.service.OrphanFileGcService;
+import io.github.dutianze.yotsuba.file.service.SlideRenderBenchmarkService;
+import io.github.dutianze.yotsuba.file.service.StorageLayoutMigrationService;
+import jakarta.annotation.security.PermitAll;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+@Endpoint
+@PermitAll
+@RequiredArgsConstructor
+public class FileManagementService {
+
+    private final DerivedKeyCache derivedKeyCache;
+    private final DecryptedContentCache decryptedContentCache;
+    private final DatabaseBlobMigrationService databaseBlobMigrationService;
+    private final OrphanFileGcService orphanFileGcService;
+    private final FileIntegrityScrubService fileIntegrityScrubService;
+    private final StorageLayoutMigrationService storageLayoutMigrationService;
+    private final EnvelopeKeyRotationService envelopeKeyRotationService;
+    private final EncryptionBenchmarkService encryptionBenchmarkService;
+    private final SlideRenderBenchmarkService slideRenderBenchmarkService;
+
+    /**
+     * 获取派生密钥缓存的命中、未命中与淘汰统计
+     *
+     * @return 缓存统计信息
+     */
+    public DerivedKeyCache.Stats getKeyCacheStats() {
+        return derivedKeyCache.stats();
+    }
+
+    /**
+     * 清空派生密钥缓存，被清除的密钥会被清零
+     *
+     * @return 操作结果消息
+     */
+    public String clearKeyCache() {
+        derivedKeyCache.invalidateAll();
+        return "密钥缓存已清空";
+    }
+
+    /**
+     * 获取解密内容缓存的命中率与内存占用
+     *
+     * @return 缓存统计信息
+     */
+    public DecryptedContentCache.Stats getContentCacheStats() {
+        return decryptedContentCache.stats();
+    }
+
+    /**
+     * 清空解密内容缓存
+     *
+     * @return 操作结果消息
+     */
+    public String clearContentCache() {
+        decryptedContentCache.invalidateAll();
+        return "解密内容缓存已清空";
+    }
+
+    /**
+     * 在后台启动数据库内文件到磁盘的迁移，可随时停止并重新启动继续
+     *
+     * @return 操作结果消息
+     */
+    public String startBlobMigration() {
+        boolean started = databaseBlobMigrationService.start();
+        String message = started ? "数据库文件迁移已在后台启动" : "数据库文件迁移正在运行中";
+        log.info(message);
+        return message;
+    }
+
+    /**
+     * 请求停止迁移，当前文件处理完后停止
+     *
+     * @return 操作结果消息
+     */
+    public String stopBlobMigration() {
+        databaseBlobMigrationService.stop();
+        return "已请求停止数据库文件迁移";
+    }
+
+    /**
+     * 获取数据库文件迁移进度
+     *
+     * @return 迁移状态
+     */
+    public DatabaseBlobMigrationService.MigrationStatus getBlobMigrationStatus() {
+        return databaseBlobMigrationService.status();
+    }
+
+    /**
+     * 立即在后台回收孤立的文件记录和磁盘文件
+     *
+     * @return 操作结果消息
+     */
+    public String runOrphanGc() {
+        boolean started = orphanFileGcService.start(false);
+        String message = started ? "孤立文件回收已在后台启动" : "孤立文件回收正在运行中";
+        log.info(message);
+        return message;
+    }
+
+    /**
+     * 试运行孤立文件回收，只统计将被回收的记录、文件和空间，不做删除
+     *
+     * @return 操作结果消息
+     */
+    public String dryRunOrphanGc() {
+        boolean started = orphanFileGcService.start(true);
+        return started ? "孤立文件回收试运行已在后台启动" : "孤立文件回收正在运行中";
+    }
+
+    /**
+     * 请求停止孤立文件回收，当前文件处理完后停止
+     *
+     * @return 操作结果消息
+     */
+    public String stopOrphanGc() {
+        orphanFileGcService.stop();
+        return "已请求停止孤立文件回收";
+    }
+
+    /**
+     * 获取孤立文件回收进度与回收的空间
+     *
+     * @return 回收状态
+     */
+    public OrphanFileGcService.GcStatus getOrphanGcStatus() {
+        return orphanFileGcService.status();
+    }
+
+    /**
+     * 在后台立即开始一次完整性校验
+     *
+     * @return 操作结果消息
+     */
+    public String startIntegrityScrub() {
+        boolean started = fileIntegrityScrubService.start();
+        String message = started ? "完整性校验已在后台启动" : "完整性校验正在运行中";
+        log.info(message);
+        return message;
+    }
+
+    /**
+     * 请求停止完整性校验，当前文件校验完后停止
+     *
+     * @return 操作结果消息
+     */
+    public String stopIntegrityScrub() {
+        fileIntegrityScrubService.stop();
+        return "已请求停止完整性校验";
+    }
+
+    /**
+     * 获取完整性校验进度
+     *
+     * @return 校验状态
+     */
+    public FileIntegrityScrubService.ScrubStatus getIntegrityScrubStatus() {
+        return fileIntegrityScrubService.status();
+    }
+
+    /**
+     * 获取校验失败、缺失或已隔离的文件
+     *
+     * @return 问题文件列表
+     */
+    public List<FileIntegrityScrubService.IntegrityProblem> getIntegrityProblems() {
+        return fileIntegrityScrubService.problems();
+    }
+
+    /**
+     * 在后台把 V1/V2 布局的文件迁移到 V3 布局，迁移期间文件照常可读，可随时停止并重新启动继续
+     *
+     * @return 操作结果消息
+     */
+    public String startLayoutMigration() {
+        boolean started = storageLayoutMigrationService.start();
+        String message = started ? "存储布局迁移已在后台启动" : "存储布局迁移正在运行中";
+        log.info(message);
+        return message;
+    }
+
+    /**
+     * 请求停止存储布局迁移，当前批次处理完后停止
+     *
+     * @return 操作结果消息
+     */
+    public String stopLayoutMigration() {
+        storageLayoutMigrationService.stop();
+        return "已请求停止存储布局迁移";
+    }
+
+    /**
+     * 获取存储布局迁移进度
+     *
+     * @return 迁移状态
+     */
+    public StorageLayoutMigrationService.MigrationStatus getLayoutMigrationStatus() {
+        return storageLayoutMigrationService.status();
+    }
+
+    /**
+     * 在后台以当前主密钥重新包装所有信封加密文件的数据密钥，只改写文件头部
+     *
+     * @return 操作结果消息
+     */
+    public String startKeyRotation() {
+        boolean started = envelopeKeyRotationService.start();
+        String message = started ? "主密钥轮换已在后台启动" : "主密钥轮换正在运行中";
+        log.info(message);
+        return message;
+    }
+
+    /**
+     * 请求停止主密钥轮换，当前文件处理完后停止
+     *
+     * @return 操作结果消息
+     */
+    public String stopKeyRotation() {
+        envelopeKeyRotationService.stop();
+        return "已请求停止主密钥轮换";
+    }
+
+    /**
+     * 获取主密钥轮换进度
+     *
+     * @return 轮换状态
+     */
+    public EnvelopeKeyRotationService.RotationStatus getKeyRotationStatus() {
+        return envelopeKeyRotationService.status();
+    }
+
+    /**
+     * 在内存中比较顺序加密与不同线程数的分段并行加密的吞吐量
+     *
+     * @param sizeMb 测试数据大小（MB），最大 512
+     * @return 各线程数的吞吐量、加速比以及输出是否与顺序加密一致
+     */
+    public List<EncryptionBenchmarkService.BenchmarkResult> benchmarkEncryption(int sizeMb) throws Exception {
+        return encryptionBenchmarkService.run(sizeMb);
+    }
+
+    /**
+     * 比较下载时 CipherInputStream 旧路径与 FileChannel 解密路径的吞吐量
+     *
+     * @param sizeMb 测试文件大小（MB），最大 512
+     * @return 两种路径的吞吐量、加速比以及解密结果是否与原始内容一致
+     */
+    public List<EncryptionBenchmarkService.BenchmarkResult> benchmarkDownload(int sizeMb) throws Exception {
+        return encryptionBenchmarkService.runDownload(sizeMb);
+    }
+
+    /**
+     * 比较幻灯片预览图在不同线程数下的渲染速度
+     *
+     * @param slides 测试文稿的页数，最大 200
+     * @return 各线程数的渲染速度、相对串行渲染的加速比以及是否生成了全部预览图
+     */
+    public List<SlideRenderBenchmarkService.BenchmarkResult> benchmarkSlideRendering(int slides) throws Exception {
+        return slideRenderBenchmarkService.run(slides);
+    }
+}
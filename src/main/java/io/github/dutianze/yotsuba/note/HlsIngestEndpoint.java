@@ -0,0 +1,39 @@
+package io.github.dutianze.yotsuba.note;
+
+import com.vaadin.hilla.Endpoint;
+import io.github.dutianze.yotsuba.note.dto.HlsIngestProgress;
+import io.github.dutianze.yotsuba.note.service.HlsIngestService;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.security.PermitAll;
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+
+/**
+ * HLS 服务端下载端点
+ */
+@Endpoint
+@PermitAll
+@RequiredArgsConstructor
+public class HlsIngestEndpoint {
+
+    private final HlsIngestService hlsIngestService;
+
+    /**
+     * 在服务端后台下载 HLS 视频并保存为笔记附件
+     *
+     * @param playlistUrl m3u8 地址，主播放列表会选择码率最高的变体
+     * @param noteId      Note ID，用于关联文件
+     * @param filename    保存的文件名，为空时取播放列表的文件名
+     * @return 任务 ID
+     */
+    public String start(String playlistUrl, String noteId, @Nullable String filename) {
+        return hlsIngestService.start(playlistUrl, noteId, filename);
+    }
+
+    /**
+     * 订阅下载进度，任务结束后完成
+     */
+    public Flux<HlsIngestProgress> subscribe(String jobId) {
+        return hlsIngestService.subscribe(jobId);
+    }
+}
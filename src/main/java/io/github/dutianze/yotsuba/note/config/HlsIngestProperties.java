@@ -0,0 +1,19 @@
+package io.github.dutianze.yotsuba.note.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * HLS 下载配置
+ *
+ * @param maxPlaylistSize 播放列表响应体的大小上限
+ * @param maxSegmentSize  单个分片响应体的大小上限，预读窗口内的分片都在内存中，超过上限的响应中止下载
+ */
+@ConfigurationProperties(prefix = "modules.note.hls-ingest")
+public record HlsIngestProperties(
+    @DefaultValue("4MB") DataSize maxPlaylistSize,
+    @DefaultValue("32MB") DataSize maxSegmentSize
+) {
+
+}
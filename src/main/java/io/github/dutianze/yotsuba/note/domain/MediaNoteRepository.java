@@ -1,8 +1,23 @@
 package io.github.dutianze.yotsuba.note.domain;
 
 import io.github.dutianze.yotsuba.note.domain.valueobject.NoteId;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface MediaNoteRepository extends CrudRepository<MediaNote, NoteId> {
+
+  /**
+   * 剧集封面引用该文件的媒体笔记数。seasons 以 JSON 保存，逐个展开季与剧集，只比较 episodes[].cover.id，
+   * 不会把 ID 的前缀或其他字段中的文本当作引用。无法解析的 seasons 视为空列表
+   */
+  @Query(value = """
+    SELECT COUNT(DISTINCT m.id)
+    FROM media_note m,
+         json_each(CASE WHEN json_valid(m.seasons) THEN m.seasons ELSE '[]' END) season,
+         json_each(season.value, '$.episodes') episode
+    WHERE json_extract(episode.value, '$.cover.id') = :fileId
+    """, nativeQuery = true)
+  long countReferencingFile(@Param("fileId") String fileId);
 }
 
@@ -161,13 +161,16 @@ public class Note extends AbstractAggregateRoot<Note> implements Comparable<Note
     this.content = newContent;
 
     FileResourceId newCover = newRefs.isEmpty() ? null : newRefs.getFirst();
-    this.updateCover(newCover);
+    this.updateCover(newCover, newRefs);
 
     this.syncFileReferences(oldRefs, newRefs);
     this.registerEvent(new NoteUpdatedEvent(this.id));
   }
 
-  private void updateCover(@Nullable FileResourceId newCover) {
+  /**
+   * @param contentRefs 正文仍在使用的文件，旧封面仍在其中时不发送引用移除事件
+   */
+  private void updateCover(@Nullable FileResourceId newCover, Set<FileResourceId> contentRefs) {
     if (Objects.equals(this.cover, newCover)) {
       return;
     }
@@ -175,6 +178,7 @@ public class Note extends AbstractAggregateRoot<Note> implements Comparable<Note
 
     Optional.ofNullable(this.cover)
         .filter(c -> !c.id().isEmpty())
+        .filter(c -> !contentRefs.contains(c))
         .ifPresent(c -> registerEvent(new FileResourceReferenceRemovedEvent(ref, c)));
 
     Optional.ofNullable(newCover)
@@ -19,6 +19,13 @@ public interface NoteRepository extends CrudRepository<Note, NoteId> {
    """)
   Page<Note> findAllByCollectionId(String collectionId, Pageable pageable);
 
+  @Query("""
+    SELECT n.id.id
+    FROM Note n
+    WHERE n.collection.id.id = :collectionId
+   """)
+  List<String> findIdsByCollectionId(@Param("collectionId") String collectionId);
+
   @Query("""
     SELECT n
     FROM Note n
@@ -36,6 +43,17 @@ public interface NoteRepository extends CrudRepository<Note, NoteId> {
                                           @Param("tagIds") List<TagId> tagIds,
                                           Pageable pageable);
 
+  /**
+   * 封面或正文中引用该文件的笔记数，正文中的文件以 ID 出现在链接中
+   */
+  @Query("""
+    SELECT COUNT(n)
+    FROM Note n
+    WHERE n.cover.id = :fileId
+       OR n.content.content LIKE CONCAT('%', :fileId, '%')
+    """)
+  long countReferencingFile(@Param("fileId") String fileId);
+
   @Modifying
   @Query("""
     UPDATE Note n
@@ -46,6 +46,13 @@ public interface TagRepository extends JpaRepository<Tag, TagId> {
 
   Optional<Tag> findByIdAndCollectionId(TagId tagId, CollectionId collectionId);
 
+  @Query("""
+    SELECT COUNT(t)
+    FROM Tag t
+    WHERE t.cover.id = :fileId
+    """)
+  long countByCoverId(@Param("fileId") String fileId);
+
   @Query("""
     SELECT t
     FROM Tag t
@@ -0,0 +1,32 @@
+package io.github.dutianze.yotsuba.note.dto;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * HLS 下载任务进度
+ *
+ * @param totalSegments      需要下载的分片数（含 fMP4 初始化分片），解析播放列表之前为 0
+ * @param downloadedSegments 已按顺序写入的分片数
+ * @param fileResourceId     完成后保存的 FileResource ID
+ */
+public record HlsIngestProgress(
+        String jobId,
+        State state,
+        int totalSegments,
+        int downloadedSegments,
+        long downloadedBytes,
+        @Nullable String fileResourceId,
+        @Nullable String error
+) {
+
+    public enum State {
+        RESOLVING,
+        DOWNLOADING,
+        COMPLETED,
+        FAILED
+    }
+
+    public boolean finished() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+}
@@ -14,6 +14,9 @@ import org.springframework.stereotype.Component;
 @Component
 public class NoteAssembler {
 
+  /** 卡片封面请求的宽度，按 2 倍像素密度覆盖网格中的卡片 */
+  public static final int CARD_COVER_WIDTH = 640;
+
   private NoteAssembler() {
   }
 
@@ -22,7 +25,8 @@ public class NoteAssembler {
     return NoteCardDto.builder()
         .id(note.getId().id())
         .title(note.getTitle().title())
-        .cover(Optional.ofNullable(note.getCover()).map(FileResourceId::getUrl).orElse(""))
+        .cover(Optional.ofNullable(note.getCover()).map(cover -> cover.getUrl(CARD_COVER_WIDTH))
+            .orElse(""))
         .author("匿名作者")
         .snippet(summarize(note.getContent()))
         .likes(0)
@@ -0,0 +1,709 @@
+package io.github.dutianze.yotsuba.note.service;
+
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.service.FileService;
+import io.github.dutianze.yotsuba.note.config.HlsIngestProperties;
+import io.github.dutianze.yotsuba.note.domain.NoteRepository;
+import io.github.dutianze.yotsuba.note.domain.valueobject.NoteId;
+import io.github.dutianze.yotsuba.note.dto.HlsIngestProgress;
+import io.github.dutianze.yotsuba.note.dto.HlsIngestProgress.State;
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+/**
+ * 服务端下载 HLS 播放列表并保存为附加到笔记的单个 FileResource。
+ * <p>
+ * 主播放列表选择码率最高的变体；分片在虚拟线程上并发下载（信号量限制并发数，失败重试），
+ * 按播放列表顺序拼接后直接进入 {@link FileService} 的加密写入，整个视频不会放进内存或写成明文临时文件。
+ * 预读窗口限制已下载但尚未写入的分片数。任务在后台运行，与发起请求的浏览器标签页无关，进度可随时重新订阅。
+ * <p>
+ * 支持 AES-128 加密的分片与 fMP4 的初始化分片（EXT-X-MAP），不支持 SAMPLE-AES 与 EXT-X-BYTERANGE。
+ * 直播播放列表只下载当前列出的分片。
+ * <p>
+ * URL 由用户提供，每次请求前解析主机名，拒绝回环、链路本地、私有等非公网地址；重定向手动跟随，每一跳重新检查。
+ * HttpClient 不支持指定连接地址，连接时会再次解析主机名，这里依赖 JVM 的 DNS 缓存（networkaddress.cache.ttl，默认 30 秒）
+ * 让两次解析得到同一组地址。缓存被关闭或恰好在两次解析之间过期时，DNS 重绑定仍可能让连接落到内网地址，
+ * 部署时应同时在网络层限制出站访问。
+ * <p>
+ * 响应体按播放列表、密钥与分片分别限制大小，超过上限时中止下载且不重试，预读窗口占用的内存因此有上限。
+ */
+@Slf4j
+@Service
+public class HlsIngestService {
+
+    private static final int MAX_RETRY = 3;
+    private static final int MAX_CONCURRENT = 8;
+    private static final int READ_AHEAD = MAX_CONCURRENT * 2;
+    private static final int MAX_PLAYLIST_DEPTH = 3;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int KEY_LENGTH = 16;
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration FINISHED_RETENTION = Duration.ofMinutes(10);
+    private static final String USER_AGENT = "Mozilla/5.0 Chrome/120 Safari/537.36";
+    private static final String PASSWORD = "123";
+    private static final Pattern ATTRIBUTE = Pattern.compile("([A-Z0-9-]+)=(\"[^\"]*\"|[^,]*)");
+
+    private final FileService fileService;
+    private final NoteRepository noteRepository;
+    private final long maxPlaylistSize;
+    private final long maxSegmentSize;
+    private final Predicate<InetAddress> addressAllowed;
+    private final HttpClient client = HttpClient.newBuilder()
+                                                .connectTimeout(Duration.ofSeconds(10))
+                                                .version(HttpClient.Version.HTTP_1_1)
+                                                .followRedirects(HttpClient.Redirect.NEVER)
+                                                .build();
+    private final ExecutorService jobs = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Job> jobsById = new ConcurrentHashMap<>();
+
+    @Autowired
+    public HlsIngestService(FileService fileService, NoteRepository noteRepository, HlsIngestProperties properties) {
+        this(fileService, noteRepository, properties, HlsIngestService::isPublicAddress);
+    }
+
+    /**
+     * @param addressAllowed 允许请求的地址，测试中放行本地的 HTTP 服务
+     */
+    HlsIngestService(FileService fileService, NoteRepository noteRepository, HlsIngestProperties properties,
+                     Predicate<InetAddress> addressAllowed) {
+        this.fileService = fileService;
+        this.noteRepository = noteRepository;
+        this.maxPlaylistSize = properties.maxPlaylistSize().toBytes();
+        this.maxSegmentSize = properties.maxSegmentSize().toBytes();
+        this.addressAllowed = addressAllowed;
+    }
+
+    /**
+     * 在后台开始下载
+     *
+     * @param playlistUrl 主播放列表或媒体播放列表的 URL
+     * @param noteId      附加到的笔记
+     * @param filename    保存的文件名，为空时取播放列表的文件名
+     * @return 任务 ID，用于订阅进度
+     * @throws IllegalArgumentException URL 不是 http(s)、指向非公网地址或笔记不存在
+     */
+    public String start(String playlistUrl, String noteId, @Nullable String filename) {
+        URI playlistUri = URI.create(playlistUrl.trim());
+        if (noteId == null || noteId.isBlank() || !noteRepository.existsById(new NoteId(noteId))) {
+            throw new IllegalArgumentException("Note not found: " + noteId);
+        }
+        try {
+            checkTarget(playlistUri);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        purgeFinished();
+        Job job = new Job(UUID.randomUUID().toString());
+        jobsById.put(job.id, job);
+        jobs.execute(() -> run(job, playlistUri, noteId, filename));
+        log.info("HLS ingest {} started for {}", job.id, playlistUri);
+        return job.id;
+    }
+
+    /**
+     * 订阅任务进度：立即收到当前状态，任务结束后 Flux 完成。任务不存在（或结束已久）时返回空 Flux
+     */
+    public Flux<HlsIngestProgress> subscribe(String jobId) {
+        Job job = jobsById.get(jobId);
+        return job == null ? Flux.empty() : job.sink.asFlux();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.shutdownNow();
+    }
+
+    private void run(Job job, URI playlistUri, String noteId, @Nullable String filename) {
+        try {
+            MediaPlaylist playlist = resolvePlaylist(playlistUri);
+            Map<URI, byte[]> keys = fetchKeys(playlist.parts());
+            job.downloading(playlist.parts().size());
+
+            String name = filename == null || filename.isBlank() ? defaultFilename(playlistUri, playlist)
+                : filename.trim();
+            FileResource fileResource;
+            try (ExecutorService downloads = Executors.newVirtualThreadPerTaskExecutor();
+                 InputStream in = new OrderedSegmentStream(playlist.parts(), keys, downloads, job)) {
+                fileResource = fileService.upload(in, name, playlist.contentType(), PASSWORD, noteId,
+                                                  ReferenceCategory.NOTE_ATTACHMENT);
+            }
+            job.completed(fileResource.getId().id());
+            log.info("HLS ingest {} saved {} segments ({} bytes) as {}", job.id, playlist.parts().size(),
+                     job.downloadedBytes, fileResource.getId().id());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            job.failed(e);
+            log.error("HLS ingest {} failed for {}", job.id, playlistUri, e);
+        }
+    }
+
+    /**
+     * 读取播放列表，主播放列表选择码率最高的变体，直到得到媒体播放列表
+     */
+    private MediaPlaylist resolvePlaylist(URI uri) throws IOException, InterruptedException {
+        for (int depth = 0; depth < MAX_PLAYLIST_DEPTH; depth++) {
+            HttpResponse<byte[]> response = fetchWithRetry(uri, maxPlaylistSize);
+            // 经过重定向时，播放列表中的相对地址相对最终地址解析
+            uri = response.uri();
+            String text = new String(response.body(), StandardCharsets.UTF_8);
+            List<String> lines = text.lines().map(String::trim).filter(line -> !line.isEmpty()).toList();
+            if (lines.isEmpty() || !lines.getFirst().startsWith("#EXTM3U")) {
+                throw new IOException("Not an HLS playlist: " + uri);
+            }
+            if (lines.stream().noneMatch(line -> line.startsWith("#EXT-X-STREAM-INF:"))) {
+                return parseMediaPlaylist(uri, lines);
+            }
+            uri = selectVariant(uri, lines);
+            log.debug("Selected variant {}", uri);
+        }
+        throw new IOException("Too many nested playlists: " + uri);
+    }
+
+    private static URI selectVariant(URI base, List<String> lines) throws IOException {
+        URI best = null;
+        long bestBandwidth = -1;
+        for (int i = 0; i < lines.size() - 1; i++) {
+            String next = lines.get(i + 1);
+            if (!lines.get(i).startsWith("#EXT-X-STREAM-INF:") || next.startsWith("#")) {
+                continue;
+            }
+            Map<String, String> attributes = attributes(lines.get(i));
+            long bandwidth = parseLong(attributes.get("BANDWIDTH"));
+            if (bandwidth > bestBandwidth) {
+                bestBandwidth = bandwidth;
+                best = base.resolve(next);
+            }
+        }
+        if (best == null) {
+            throw new IOException("Master playlist has no variants: " + base);
+        }
+        return best;
+    }
+
+    private static MediaPlaylist parseMediaPlaylist(URI base, List<String> lines) throws IOException {
+        long mediaSequence = 0;
+        SegmentKey key = null;
+        Part map = null;
+        List<Part> segments = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                mediaSequence = parseLong(line.substring("#EXT-X-MEDIA-SEQUENCE:".length()));
+            } else if (line.startsWith("#EXT-X-KEY:")) {
+                key = parseKey(base, attributes(line));
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                Map<String, String> attributes = attributes(line);
+                URI mapUri = base.resolve(attributes.get("URI"));
+                if (attributes.containsKey("BYTERANGE") || map != null && !map.uri().equals(mapUri)) {
+                    throw new IOException("Unsupported EXT-X-MAP in " + base);
+                }
+                map = new Part(mapUri, key, 0);
+            } else if (line.startsWith("#EXT-X-BYTERANGE")) {
+                throw new IOException("EXT-X-BYTERANGE is not supported: " + base);
+            } else if (!line.startsWith("#")) {
+                segments.add(new Part(base.resolve(line), key, mediaSequence + segments.size()));
+            }
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("Playlist has no segments: " + base);
+        }
+        List<Part> parts = new ArrayList<>();
+        if (map != null) {
+            parts.add(map);
+        }
+        parts.addAll(segments);
+        return new MediaPlaylist(base, parts, map != null);
+    }
+
+    @Nullable
+    private static SegmentKey parseKey(URI base, Map<String, String> attributes) throws IOException {
+        String method = attributes.getOrDefault("METHOD", "NONE");
+        if ("NONE".equals(method)) {
+            return null;
+        }
+        if (!"AES-128".equals(method) || !attributes.containsKey("URI")) {
+            throw new IOException("Unsupported segment encryption " + method + " in " + base);
+        }
+        String iv = attributes.get("IV");
+        byte[] explicitIv = null;
+        if (iv != null) {
+            explicitIv = HexFormat.of().parseHex(iv.substring(iv.startsWith("0x") || iv.startsWith("0X") ? 2 : 0));
+        }
+        return new SegmentKey(base.resolve(attributes.get("URI")), explicitIv);
+    }
+
+    /**
+     * 解析标签的属性列表，去掉字符串值的引号
+     */
+    private static Map<String, String> attributes(String line) {
+        Map<String, String> attributes = new HashMap<>();
+        Matcher matcher = ATTRIBUTE.matcher(line.substring(line.indexOf(':') + 1));
+        while (matcher.find()) {
+            String value = matcher.group(2);
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            attributes.put(matcher.group(1), value);
+        }
+        return attributes;
+    }
+
+    private static long parseLong(@Nullable String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 下载所有分片用到的密钥，每个密钥只下载一次
+     */
+    private Map<URI, byte[]> fetchKeys(List<Part> parts) throws IOException, InterruptedException {
+        Set<URI> keyUris = new LinkedHashSet<>();
+        for (Part part : parts) {
+            if (part.key() != null) {
+                keyUris.add(part.key().uri());
+            }
+        }
+        Map<URI, byte[]> keys = new HashMap<>();
+        for (URI keyUri : keyUris) {
+            byte[] key = fetchWithRetry(keyUri, KEY_LENGTH).body();
+            if (key.length != KEY_LENGTH) {
+                throw new IOException("Invalid AES-128 key length " + key.length + " from " + keyUri);
+            }
+            keys.put(keyUri, key);
+        }
+        return keys;
+    }
+
+    /**
+     * @param maxBytes 响应体的大小上限
+     */
+    private HttpResponse<byte[]> fetchWithRetry(URI uri, long maxBytes) throws IOException, InterruptedException {
+        IOException failure = null;
+        for (int t = 1; t <= MAX_RETRY; t++) {
+            try {
+                HttpResponse<byte[]> r = send(uri, maxBytes);
+                if (r.statusCode() == 200) {
+                    return r;
+                }
+                failure = new IOException("HTTP " + r.statusCode() + " for " + uri);
+                if (r.statusCode() == 404) {
+                    break;
+                }
+            } catch (BlockedTargetException e) {
+                throw e;
+            } catch (IOException e) {
+                // HttpClient 把响应体订阅方的异常包装为新的 IOException
+                if (e.getCause() instanceof BlockedTargetException blocked) {
+                    throw blocked;
+                }
+                failure = e;
+            }
+            if (t < MAX_RETRY) {
+                Thread.sleep(300L * t);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * 发送 GET 请求并手动跟随重定向，每一跳请求前都检查目标地址，避免经重定向访问内网
+     */
+    private HttpResponse<byte[]> send(URI uri, long maxBytes) throws IOException, InterruptedException {
+        for (int redirects = 0; ; redirects++) {
+            checkTarget(uri);
+            HttpRequest req = HttpRequest.newBuilder()
+                                         .uri(uri)
+                                         .timeout(TIMEOUT)
+                                         .header("User-Agent", USER_AGENT)
+                                         .GET().build();
+            URI target = uri;
+            HttpResponse<byte[]> r = client.send(req, responseInfo -> new LimitedBodySubscriber(
+                target, maxBytes, responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1)));
+            if (!isRedirect(r.statusCode())) {
+                return r;
+            }
+            if (redirects == MAX_REDIRECTS) {
+                throw new IOException("Too many redirects for " + uri);
+            }
+            URI from = uri;
+            uri = from.resolve(r.headers().firstValue("Location")
+                                   .orElseThrow(() -> new IOException("Redirect without Location from " + from)));
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307
+            || statusCode == 308;
+    }
+
+    /**
+     * 只允许 http(s)，且主机名解析出的所有地址都必须被允许
+     *
+     * @throws BlockedTargetException 目标不允许访问，不重试
+     */
+    private void checkTarget(URI uri) throws IOException {
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+            throw new BlockedTargetException("Only http(s) URLs are supported: " + uri);
+        }
+        if (uri.getHost() == null) {
+            throw new BlockedTargetException("URL has no host: " + uri);
+        }
+        for (InetAddress address : InetAddress.getAllByName(uri.getHost())) {
+            if (!addressAllowed.test(address)) {
+                throw new BlockedTargetException("Refusing to fetch " + uri + ": " + address.getHostAddress()
+                                                     + " is not a public address");
+            }
+        }
+    }
+
+    /**
+     * 是否为公网地址：排除通配、回环、链路本地、私有（含 IPv6 唯一本地 fc00::/7）、组播、0.0.0.0/8 与运营商级 NAT 地址
+     */
+    static boolean isPublicAddress(InetAddress address) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+            || address.isSiteLocalAddress() || address.isMulticastAddress()) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address) {
+            return (bytes[0] & 0xFE) != 0xFC;
+        }
+        return bytes[0] != 0 && !((bytes[0] & 0xFF) == 100 && (bytes[1] & 0xC0) == 64);
+    }
+
+    /**
+     * 下载分片，AES-128 加密的分片解密后返回。未指定 IV 时以媒体序号作为 IV
+     */
+    private byte[] fetchPart(Part part, Map<URI, byte[]> keys) throws IOException, InterruptedException {
+        byte[] data = fetchWithRetry(part.uri(), maxSegmentSize).body();
+        SegmentKey key = part.key();
+        if (key == null) {
+            return data;
+        }
+        byte[] iv = key.iv() != null ? key.iv()
+            : ByteBuffer.allocate(16).putLong(8, part.sequence()).array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.get(key.uri()), "AES"), new IvParameterSpec(iv));
+            return cipher.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt segment " + part.uri(), e);
+        }
+    }
+
+    private static String defaultFilename(URI playlistUri, MediaPlaylist playlist) {
+        String path = playlistUri.getPath() == null ? "" : playlistUri.getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        name = dot > 0 ? name.substring(0, dot) : name;
+        return (name.isBlank() ? "video" : name) + (playlist.fragmentedMp4() ? ".mp4" : ".ts");
+    }
+
+    private void purgeFinished() {
+        Instant threshold = Instant.now().minus(FINISHED_RETENTION);
+        jobsById.values().removeIf(job -> job.finishedAt != null && job.finishedAt.isBefore(threshold));
+    }
+
+    /**
+     * 按顺序拼接分片的输入流：保持最多 READ_AHEAD 个分片在下载，信号量限制同时进行的请求数。
+     * 读取方按顺序取出分片，某个分片最终失败时 read 抛出 IOException
+     */
+    private final class OrderedSegmentStream extends InputStream {
+
+        private final List<Part> parts;
+        private final Map<URI, byte[]> keys;
+        private final ExecutorService downloads;
+        private final Job job;
+        private final Semaphore sem = new Semaphore(MAX_CONCURRENT);
+        private final Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+        private int next;
+        private byte[] current = new byte[0];
+        private int position;
+
+        private OrderedSegmentStream(List<Part> parts, Map<URI, byte[]> keys, ExecutorService downloads, Job job) {
+            this.parts = parts;
+            this.keys = keys;
+            this.downloads = downloads;
+            this.job = job;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == current.length) {
+                fill();
+                if (window.isEmpty()) {
+                    return -1;
+                }
+                current = await(window.removeFirst());
+                position = 0;
+                job.segmentWritten(current.length);
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            window.forEach(future -> future.cancel(true));
+            window.clear();
+            // 中断仍在进行的请求
+            downloads.shutdownNow();
+        }
+
+        private void fill() {
+            while (window.size() < READ_AHEAD && next < parts.size()) {
+                Part part = parts.get(next++);
+                window.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        sem.acquire();
+                        try {
+                            return fetchPart(part, keys);
+                        } finally {
+                            sem.release();
+                        }
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, downloads));
+            }
+        }
+
+        private byte[] await(CompletableFuture<byte[]> future) throws IOException {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof InterruptedException) {
+                    throw new InterruptedIOException("Segment download interrupted");
+                }
+                throw new IOException("Segment download failed", e.getCause());
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Segment download cancelled");
+            }
+        }
+    }
+
+    /**
+     * 一个任务的状态，进度以 replay().latest() 推送，后订阅的客户端立即收到当前状态
+     */
+    private static final class Job {
+
+        private final String id;
+        private final Sinks.Many<HlsIngestProgress> sink = Sinks.many().replay().latest();
+        private volatile State state = State.RESOLVING;
+        private volatile int totalSegments;
+        private volatile int downloadedSegments;
+        private volatile long downloadedBytes;
+        private volatile Instant finishedAt;
+
+        private Job(String id) {
+            this.id = id;
+            emit(null, null);
+        }
+
+        private void downloading(int totalSegments) {
+            this.totalSegments = totalSegments;
+            this.state = State.DOWNLOADING;
+            emit(null, null);
+        }
+
+        private void segmentWritten(int bytes) {
+            downloadedSegments++;
+            downloadedBytes += bytes;
+            emit(null, null);
+        }
+
+        private void completed(String fileResourceId) {
+            state = State.COMPLETED;
+            finish(fileResourceId, null);
+        }
+
+        private void failed(Exception e) {
+            state = State.FAILED;
+            finish(null, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+
+        private void finish(@Nullable String fileResourceId, @Nullable String error) {
+            finishedAt = Instant.now();
+            emit(fileResourceId, error);
+            synchronized (sink) {
+                sink.tryEmitComplete();
+            }
+        }
+
+        private void emit(@Nullable String fileResourceId, @Nullable String error) {
+            synchronized (sink) {
+                sink.tryEmitNext(new HlsIngestProgress(id, state, totalSegments, downloadedSegments,
+                                                       downloadedBytes, fileResourceId, error));
+            }
+        }
+    }
+
+    /**
+     * 把响应体读成字节数组，超过 maxBytes（或 Content-Length 已声明超过）时取消订阅并以
+     * {@link BlockedTargetException} 结束，已接收的数据不再保留
+     */
+    private static final class LimitedBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+
+        private final URI uri;
+        private final long maxBytes;
+        private final long declaredLength;
+        private final HttpResponse.BodySubscriber<byte[]> delegate = HttpResponse.BodySubscribers.ofByteArray();
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long received;
+
+        private LimitedBodySubscriber(URI uri, long maxBytes, long declaredLength) {
+            this.uri = uri;
+            this.maxBytes = maxBytes;
+            this.declaredLength = declaredLength;
+            delegate.getBody().whenComplete((bytes, failure) -> {
+                if (failure != null) {
+                    body.completeExceptionally(failure);
+                } else {
+                    body.complete(bytes);
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (declaredLength > maxBytes) {
+                abort(declaredLength);
+                return;
+            }
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (body.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                received += item.remaining();
+            }
+            if (received > maxBytes) {
+                abort(received);
+                return;
+            }
+            delegate.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+
+        private void abort(long length) {
+            subscription.cancel();
+            body.completeExceptionally(new BlockedTargetException(
+                "Response from " + uri + " exceeds " + maxBytes + " bytes (" + length + ")"));
+        }
+    }
+
+    /**
+     * 目标地址不允许访问或响应超过大小上限，重试也不会改变结果
+     */
+    private static final class BlockedTargetException extends IOException {
+
+        private BlockedTargetException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 下载单元：分片或 fMP4 初始化分片
+     *
+     * @param sequence 媒体序号，未指定 IV 时作为 AES-128 的 IV
+     */
+    private record Part(URI uri, @Nullable SegmentKey key, long sequence) {
+
+    }
+
+    private record SegmentKey(URI uri, @Nullable byte[] iv) {
+
+    }
+
+    private record MediaPlaylist(URI uri, List<Part> parts, boolean fragmentedMp4) {
+
+        String contentType() {
+            return fragmentedMp4 ? "video/mp4" : "video/mp2t";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package io.github.dutianze.yotsuba.note.service;
+
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.service.FileReferenceChecker;
+import io.github.dutianze.yotsuba.note.domain.MediaNoteRepository;
+import io.github.dutianze.yotsuba.note.domain.NoteRepository;
+import io.github.dutianze.yotsuba.note.domain.TagRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * 笔记模块中文件的实际引用：笔记正文与封面、标签封面、媒体笔记剧集封面
+ */
+@Component
+@RequiredArgsConstructor
+public class NoteFileReferenceChecker implements FileReferenceChecker {
+
+    private final NoteRepository noteRepository;
+    private final TagRepository tagRepository;
+    private final MediaNoteRepository mediaNoteRepository;
+
+    @Override
+    public boolean isReferenced(FileResourceId fileResourceId) {
+        String id = fileResourceId.id();
+        return noteRepository.countReferencingFile(id) > 0
+            || tagRepository.countByCoverId(id) > 0
+            || mediaNoteRepository.countReferencingFile(id) > 0;
+    }
+}
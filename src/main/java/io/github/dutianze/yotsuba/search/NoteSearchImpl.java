@@ -1,6 +1,6 @@
 package io.github.dutianze.yotsuba.search;
 
-import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.note.dto.NoteAssembler;
 import io.github.dutianze.yotsuba.note.dto.NoteCardDto;
 import io.github.dutianze.yotsuba.note.domain.Note;
 import io.github.dutianze.yotsuba.note.domain.Tag;
@@ -73,7 +73,8 @@ public class NoteSearchImpl extends HibernateSearchImpl<Note> implements NoteSea
       return NoteCardDto.builder()
           .id(p.note().getId().id())
           .title(p.note().getTitle().title())
-          .cover(Optional.ofNullable(p.note().getCover()).map(FileResourceId::getUrl).orElse(""))
+          .cover(Optional.ofNullable(p.note().getCover())
+              .map(cover -> cover.getUrl(NoteAssembler.CARD_COVER_WIDTH)).orElse(""))
           .author("匿名作者")
           .snippet(highlight)
           .likes(1)
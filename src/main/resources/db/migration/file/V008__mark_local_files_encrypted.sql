@@ -0,0 +1,4 @@
+-- 本地文件此前全部以 AES 加密保存，明确标记后 encrypted = 0 的本地文件即为明文存储
+UPDATE file_resource
+SET encrypted = 1
+WHERE resource_type = 'LOCAL';
@@ -0,0 +1,15 @@
+create table file_blob (
+    content_hash varchar(64) not null,
+    file_size bigint,
+    -- 指向该 blob 的 FileResource 行数，不随引用添加/移除事件变化
+    ref_count bigint not null default 0,
+    storage_version varchar(50) not null,
+    thumbnail_index_list text,
+    created_at timestamp,
+    primary key (content_hash)
+);
+
+ALTER TABLE file_resource
+    ADD COLUMN content_hash VARCHAR(64) NULL;
+
+CREATE INDEX idx_file_resource_content_hash ON file_resource (content_hash);
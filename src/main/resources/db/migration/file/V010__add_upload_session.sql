@@ -0,0 +1,17 @@
+create table file_upload_session (
+    id varchar(255) not null,
+    filename varchar(255),
+    content_type text,
+    total_size bigint not null,
+    chunk_size integer not null,
+    reference_id varchar(255),
+    reference_category varchar(255),
+    created_at timestamp,
+    primary key (id)
+);
+
+create table file_upload_chunk (
+    upload_id varchar(255) not null,
+    chunk_index integer not null,
+    primary key (upload_id, chunk_index)
+);
@@ -0,0 +1,18 @@
+create table file_thumbnail_job (
+    id varchar(255) not null,
+    storage_key varchar(255) not null,
+    storage_version varchar(255),
+    encrypted boolean not null,
+    filename varchar(255),
+    status varchar(255) not null,
+    attempts integer not null default 0,
+    total_count integer,
+    thumbnail_index_list text,
+    last_error text,
+    created_at timestamp,
+    updated_at timestamp,
+    primary key (id)
+);
+
+create index idx_file_thumbnail_job_status on file_thumbnail_job (status);
+create index idx_file_thumbnail_job_storage_key on file_thumbnail_job (storage_key);
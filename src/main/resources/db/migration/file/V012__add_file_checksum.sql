@@ -0,0 +1,17 @@
+create table file_checksum (
+    id varchar(255) not null,
+    path varchar(255) not null,
+    storage_key varchar(255) not null,
+    storage_version varchar(255),
+    mac varchar(64) not null,
+    file_size bigint not null,
+    status varchar(255) not null,
+    verified_at timestamp,
+    created_at timestamp,
+    updated_at timestamp,
+    primary key (id)
+);
+
+create unique index idx_file_checksum_path on file_checksum (path);
+create index idx_file_checksum_storage_key on file_checksum (storage_key);
+create index idx_file_checksum_status on file_checksum (status);
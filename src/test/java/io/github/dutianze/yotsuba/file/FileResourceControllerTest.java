@@ -0,0 +1,177 @@
+package io.github.dutianze.yotsuba.file;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.FileResourceRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.service.ByteRange;
+import io.github.dutianze.yotsuba.file.service.FileService;
+import io.github.dutianze.yotsuba.file.service.ImageDerivativeService;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Range / If-Range 的解析，以及经 download 返回的 206、416 响应
+ */
+class FileResourceControllerTest {
+
+    private static final String FILE_ID = "file-1";
+    private static final String ETAG = "\"file-1-V1\"";
+    private static final long LENGTH = 1000;
+    private static final LocalDateTime UPDATED_AT = LocalDateTime.of(2024, 1, 2, 3, 4, 5);
+
+    private FileService fileService;
+    private FileResourceRepository fileResourceRepository;
+    private FileResourceController controller;
+    private FileResource res;
+
+    @BeforeEach
+    void setUp() {
+        fileService = mock(FileService.class);
+        fileResourceRepository = mock(FileResourceRepository.class);
+        controller = new FileResourceController(fileService, fileResourceRepository,
+                                                mock(ImageDerivativeService.class));
+
+        res = new FileResource();
+        res.setId(new FileResourceId(FILE_ID));
+        res.setFilename("a.txt");
+        res.setContentType("text/plain");
+        res.setUpdatedAt(UPDATED_AT);
+    }
+
+    @Test
+    void resolvesSuffixRange() {
+        assertThat(controller.resolveRanges(range("bytes=-100"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(900, 999));
+        // 后缀长度超过文件长度时返回整个文件
+        assertThat(controller.resolveRanges(range("bytes=-5000"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(0, 999));
+    }
+
+    @Test
+    void resolvesOpenEndedRange() {
+        assertThat(controller.resolveRanges(range("bytes=500-"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(500, 999));
+        // 结束位置超出文件长度时截断到最后一个字节
+        assertThat(controller.resolveRanges(range("bytes=900-2000"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(900, 999));
+    }
+
+    @Test
+    void returnsEmptyListWhenUnsatisfiable() {
+        assertThat(controller.resolveRanges(range("bytes=1000-"), res, ETAG, LENGTH)).isEmpty();
+        assertThat(controller.resolveRanges(range("bytes=0-"), res, ETAG, 0)).isEmpty();
+    }
+
+    @Test
+    void resolvesMultipleRangesAndDropsUnsatisfiableOnes() {
+        assertThat(controller.resolveRanges(range("bytes=0-9,20-29"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(0, 9), new ByteRange(20, 29));
+        assertThat(controller.resolveRanges(range("bytes=0-9,5000-"), res, ETAG, LENGTH))
+            .containsExactly(new ByteRange(0, 9));
+    }
+
+    @Test
+    void ignoresMissingOrInvalidRange() {
+        assertThat(controller.resolveRanges(new HttpHeaders(), res, ETAG, LENGTH)).isNull();
+        assertThat(controller.resolveRanges(range("bytes=abc"), res, ETAG, LENGTH)).isNull();
+    }
+
+    @Test
+    void ifRangeMatchesStrongETagOnly() {
+        assertThat(controller.isIfRangeSatisfied(ifRange(ETAG), res, ETAG)).isTrue();
+        assertThat(controller.isIfRangeSatisfied(ifRange("\"other\""), res, ETAG)).isFalse();
+        // If-Range 使用强比较，弱标签即使值相同也不匹配
+        assertThat(controller.isIfRangeSatisfied(ifRange("W/" + ETAG), res, ETAG)).isFalse();
+    }
+
+    @Test
+    void ifRangeMatchesLastModifiedDate() {
+        HttpHeaders same = new HttpHeaders();
+        same.setDate(HttpHeaders.IF_RANGE, lastModifiedMillis());
+        assertThat(controller.isIfRangeSatisfied(same, res, ETAG)).isTrue();
+
+        HttpHeaders older = new HttpHeaders();
+        older.setDate(HttpHeaders.IF_RANGE, lastModifiedMillis() - 60_000);
+        assertThat(controller.isIfRangeSatisfied(older, res, ETAG)).isFalse();
+
+        assertThat(controller.isIfRangeSatisfied(ifRange("yesterday"), res, ETAG)).isFalse();
+
+        // 没有修改时间时日期无法比较
+        res.setUpdatedAt(null);
+        assertThat(controller.isIfRangeSatisfied(same, res, ETAG)).isFalse();
+    }
+
+    @Test
+    void ignoresRangeWhenIfRangeDoesNotMatch() {
+        HttpHeaders headers = range("bytes=0-9");
+        headers.set(HttpHeaders.IF_RANGE, "\"other\"");
+        assertThat(controller.resolveRanges(headers, res, ETAG, LENGTH)).isNull();
+    }
+
+    @Test
+    void downloadReturnsPartialContent() throws Exception {
+        StreamingResponseBody body = out -> {
+        };
+        when(fileService.downloadFileRange(res, null, new ByteRange(900, 999), false)).thenReturn(body);
+
+        ResponseEntity<StreamingResponseBody> response = download(range("bytes=-100"));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 900-999/1000");
+        assertThat(response.getHeaders().getContentLength()).isEqualTo(100);
+        assertThat(response.getBody()).isSameAs(body);
+    }
+
+    @Test
+    void downloadReturnsRangeNotSatisfiable() throws Exception {
+        ResponseEntity<StreamingResponseBody> response = download(range("bytes=1000-"));
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */1000");
+        assertThat(response.getBody()).isNull();
+    }
+
+    private ResponseEntity<StreamingResponseBody> download(HttpHeaders requestHeaders) throws Exception {
+        when(fileResourceRepository.findById(new FileResourceId(FILE_ID))).thenReturn(Optional.of(res));
+        when(fileService.getCandidateEncoding(eq(res), isNull(), anyString())).thenReturn(null);
+        when(fileService.getContentLength(res, null, false)).thenReturn(LENGTH);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/file-resource/" + FILE_ID);
+        request.addHeader(HttpHeaders.RANGE, requestHeaders.getFirst(HttpHeaders.RANGE));
+        ServletWebRequest webRequest = new ServletWebRequest(request, new MockHttpServletResponse());
+        return controller.download(FILE_ID, null, null, null, requestHeaders, request, webRequest);
+    }
+
+    private long lastModifiedMillis() {
+        return UPDATED_AT.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static HttpHeaders range(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, value);
+        return headers;
+    }
+
+    private static HttpHeaders ifRange(String value) {
+        HttpHeaders headers = range("bytes=0-9");
+        headers.set(HttpHeaders.IF_RANGE, value);
+        return headers;
+    }
+}
@@ -0,0 +1,287 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.github.dutianze.yotsuba.file.config.ChunkedUploadProperties;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.UploadSession;
+import io.github.dutianze.yotsuba.file.domain.UploadSessionRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.dto.UploadSessionDto;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 以内存中的会话、分片记录与明文缓冲区代替数据库和加密文件
+ */
+class ChunkedUploadServiceTest {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final StorageVersion STAGING_VERSION = StorageVersion.V7;
+
+    private final Map<FileResourceId, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final Set<Integer> acknowledged = new ConcurrentSkipListSet<>();
+    private volatile byte[] stored;
+    private UploadSessionRepository uploadSessionRepository;
+    private AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private FileService fileService;
+    private ChunkedUploadService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        uploadSessionRepository = mock(UploadSessionRepository.class);
+        when(uploadSessionRepository.save(any(UploadSession.class))).thenAnswer(invocation -> {
+            UploadSession session = invocation.getArgument(0);
+            sessions.put(session.getId(), session);
+            return session;
+        });
+        when(uploadSessionRepository.findById(any(FileResourceId.class)))
+            .thenAnswer(invocation -> Optional.ofNullable(sessions.get(invocation.<FileResourceId>getArgument(0))));
+        when(uploadSessionRepository.findAcknowledgedChunks(anyString()))
+            .thenAnswer(invocation -> new ArrayList<>(acknowledged));
+        when(uploadSessionRepository.acknowledgeChunk(anyString(), anyInt()))
+            .thenAnswer(invocation -> acknowledged.add(invocation.getArgument(1)) ? 1 : 0);
+
+        aesCtrFileEncryptionService = mock(AesCtrFileEncryptionService.class);
+        when(aesCtrFileEncryptionService.getChunkAlignment(STAGING_VERSION)).thenReturn(CHUNK_SIZE);
+        doAnswer(invocation -> {
+            stored = new byte[Math.toIntExact(invocation.<Long>getArgument(2))];
+            return null;
+        }).when(aesCtrFileEncryptionService).createEncryptedFile(any(Path.class), eq(STAGING_VERSION), anyLong());
+        // 与实际的分段写入一样，输入不足 length 字节时抛出 EOFException
+        doAnswer(invocation -> {
+            long offset = invocation.getArgument(2);
+            InputStream in = invocation.getArgument(3);
+            long length = invocation.getArgument(4);
+            byte[] chunk = in.readNBytes(Math.toIntExact(length));
+            if (chunk.length < length) {
+                throw new EOFException("Chunk ended " + (length - chunk.length) + " bytes early");
+            }
+            System.arraycopy(chunk, 0, stored, Math.toIntExact(offset), chunk.length);
+            return null;
+        }).when(aesCtrFileEncryptionService).writeEncryptedChunk(any(Path.class), eq(STAGING_VERSION), anyLong(),
+                                                                 any(InputStream.class), anyLong(), anyLong());
+
+        fileService = mock(FileService.class);
+        when(fileService.adoptEncryptedFile(any(FileResourceId.class), eq(STAGING_VERSION), anyString(),
+                                            anyString(), anyLong(), any(), any(), any()))
+            .thenReturn(mock(FileResource.class));
+
+        ChunkedUploadProperties properties = new ChunkedUploadProperties(DataSize.ofBytes(CHUNK_SIZE),
+                                                                         Duration.ofHours(24),
+                                                                         Duration.ofHours(1));
+        service = new ChunkedUploadService(uploadSessionRepository, aesCtrFileEncryptionService, fileService,
+                                           properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void acceptsChunksOutOfOrder() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK_SIZE + 8);
+        UploadSessionDto session = init(content.length);
+        assertThat(session.totalChunks()).isEqualTo(3);
+
+        UploadSessionDto status = put(session, 2, content);
+        assertThat(status.receivedChunks()).containsExactly(2);
+        assertThat(status.missingChunks()).containsExactly(0, 1);
+        put(session, 0, content);
+        put(session, 1, content);
+
+        service.complete(session.uploadId(), "password");
+
+        assertThat(stored).isEqualTo(content);
+        verify(fileService).adoptEncryptedFile(new FileResourceId(session.uploadId()), STAGING_VERSION, "a.bin",
+                                               "application/octet-stream", content.length, "password", null,
+                                               null);
+    }
+
+    @Test
+    void acceptsChunksInParallel() throws Exception {
+        byte[] content = randomBytes(20 * CHUNK_SIZE + 5);
+        UploadSessionDto session = init(content.length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<UploadSessionDto>> tasks = new ArrayList<>();
+            for (int i = session.totalChunks() - 1; i >= 0; i--) {
+                int index = i;
+                tasks.add(() -> put(session, index, content));
+            }
+            for (Future<UploadSessionDto> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(service.status(session.uploadId()).missingChunks()).isEmpty();
+        service.complete(session.uploadId(), "password");
+        assertThat(stored).isEqualTo(content);
+    }
+
+    @Test
+    void rejectsConcurrentWriteOfSameChunk() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK_SIZE);
+        UploadSessionDto session = init(content.length);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream slow = new ByteArrayInputStream(chunk(content, 0)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                writing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<UploadSessionDto> first = executor.submit(() -> service.putChunk(session.uploadId(), 0, slow));
+            assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> put(session, 0, content))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("already being uploaded");
+
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS).receivedChunks()).containsExactly(0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectsAcknowledgedChunk() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK_SIZE);
+        UploadSessionDto session = init(content.length);
+        put(session, 0, content);
+
+        // 控制器把 IllegalStateException 映射为 409
+        assertThatThrownBy(() -> put(session, 0, content))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("already been acknowledged");
+        verify(aesCtrFileEncryptionService, times(1)).writeEncryptedChunk(any(Path.class), eq(STAGING_VERSION),
+                                                                          eq(0L), any(InputStream.class),
+                                                                          anyLong(), anyLong());
+    }
+
+    @Test
+    void doesNotAcknowledgeShortChunk() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK_SIZE);
+        UploadSessionDto session = init(content.length);
+
+        assertThatThrownBy(() -> service.putChunk(session.uploadId(), 0,
+                                                  new ByteArrayInputStream(content, 0, CHUNK_SIZE - 1)))
+            .isInstanceOf(EOFException.class);
+        assertThat(service.status(session.uploadId()).missingChunks()).containsExactly(0, 1);
+
+        // 未确认的分片可以重传
+        assertThat(put(session, 0, content).receivedChunks()).containsExactly(0);
+    }
+
+    @Test
+    void rejectsLongChunk() throws Exception {
+        byte[] content = randomBytes(2 * CHUNK_SIZE);
+        UploadSessionDto session = init(content.length);
+
+        assertThatThrownBy(() -> service.putChunk(session.uploadId(), 0,
+                                                  new ByteArrayInputStream(content, 0, CHUNK_SIZE + 1)))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("larger than " + CHUNK_SIZE + " bytes");
+        assertThat(service.status(session.uploadId()).receivedChunks()).isEmpty();
+
+        assertThat(put(session, 0, content).receivedChunks()).containsExactly(0);
+    }
+
+    @Test
+    void resumesFromMissingChunks() throws Exception {
+        byte[] content = randomBytes(3 * CHUNK_SIZE);
+        UploadSessionDto session = init(content.length);
+        put(session, 0, content);
+        put(session, 2, content);
+
+        assertThatThrownBy(() -> service.complete(session.uploadId(), "password"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("missing chunks [1]");
+
+        // 断点续传：查询状态后只上传缺少的分片
+        UploadSessionDto status = service.status(session.uploadId());
+        assertThat(status.receivedChunks()).containsExactly(0, 2);
+        for (int index : status.missingChunks()) {
+            put(session, index, content);
+        }
+        service.complete(session.uploadId(), "password");
+        assertThat(stored).isEqualTo(content);
+    }
+
+    @Test
+    void rejectsChunkIndexOutOfRange() throws Exception {
+        UploadSessionDto session = init(CHUNK_SIZE);
+
+        assertThatThrownBy(() -> service.putChunk(session.uploadId(), 1, new ByteArrayInputStream(new byte[0])))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.putChunk(session.uploadId(), -1, new ByteArrayInputStream(new byte[0])))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private UploadSessionDto init(long size) throws Exception {
+        return service.init("a.bin", "application/octet-stream", size, null, null);
+    }
+
+    private UploadSessionDto put(UploadSessionDto session, int index, byte[] content) throws Exception {
+        return service.putChunk(session.uploadId(), index, new ByteArrayInputStream(chunk(content, index)));
+    }
+
+    private static byte[] chunk(byte[] content, int index) {
+        int from = index * CHUNK_SIZE;
+        return Arrays.copyOfRange(content, from, Math.min(content.length, from + CHUNK_SIZE));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,154 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.github.dutianze.yotsuba.file.config.SpreadsheetPreviewProperties;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.service.AesCtrFileEncryptionService.EncryptedFileOutputStream;
+import io.github.dutianze.yotsuba.file.service.ThumbnailService.ThumbnailListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * xls 经 HSSF 记录事件写成的预览页，加密输出流以内存缓冲代替
+ */
+class ExcelHtmlServiceTest {
+
+    private static final String FILE_ID = "file-1";
+    private static final StorageVersion STORAGE_VERSION = StorageVersion.V1;
+
+    private final Map<Path, ByteArrayOutputStream> pages = new ConcurrentHashMap<>();
+    private final List<EncryptedFileOutputStream> streams = new ArrayList<>();
+    private ExcelHtmlService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AesCtrFileEncryptionService aesCtrFileEncryptionService = mock(AesCtrFileEncryptionService.class);
+        when(aesCtrFileEncryptionService.openEncryptedOutputStream(any(Path.class), anyString(),
+                                                                   any(StorageVersion.class), any()))
+            .thenAnswer(invocation -> open(invocation.getArgument(0)));
+        ContentCompressionService contentCompressionService = mock(ContentCompressionService.class);
+        when(contentCompressionService.forGenerated(anyString(), any(StorageVersion.class)))
+            .thenReturn(ContentCoding.IDENTITY);
+
+        service = new ExcelHtmlService(aesCtrFileEncryptionService,
+                                       new SpreadsheetPreviewProperties(3, 4, DataSize.ofMegabytes(8)),
+                                       contentCompressionService);
+    }
+
+    @Test
+    void writesOnePagePerWorksheet() throws Exception {
+        byte[] xls;
+        try (HSSFWorkbook workbook = new HSSFWorkbook()) {
+            Sheet first = workbook.createSheet("first");
+            Row header = first.createRow(0);
+            header.createCell(0).setCellValue("name");
+            header.createCell(1).setCellValue(1.5);
+            header.createCell(2).setCellValue(true);
+            // 第 1 行为空，第 2 行只有后面几列
+            Row sparse = first.createRow(2);
+            sparse.createCell(1).setCellValue("<b>");
+            Cell formula = sparse.createCell(3);
+            formula.setCellFormula("\"x\"&\"y\"");
+            workbook.getCreationHelper().createFormulaEvaluator().evaluateFormulaCell(formula);
+
+            Sheet second = workbook.createSheet("second");
+            second.createRow(0).createCell(0).setCellValue("only");
+            xls = toBytes(workbook);
+        }
+        ThumbnailListener listener = mock(ThumbnailListener.class);
+
+        List<Integer> result = service.generateThumbnail(new ByteArrayInputStream(xls), FILE_ID, "password",
+                                                         STORAGE_VERSION, listener);
+
+        assertThat(result).containsExactly(1, 2);
+        verify(listener).onStart(2);
+        verify(listener).onGenerated(1);
+        verify(listener).onGenerated(2);
+        assertThat(page(1)).contains("<tr><td>name</td><td>1.5</td><td>true</td></tr>"
+                                         + "<tr><td></td><td>&lt;b&gt;</td><td></td><td>xy</td></tr></table>");
+        assertThat(page(2)).contains("<tr><td>only</td></tr></table>");
+        assertThat(page(2)).doesNotContain("name");
+        streams.forEach(ExcelHtmlServiceTest::verifyClosed);
+    }
+
+    @Test
+    void truncatesRowsAndColumnsBeyondLimits() throws Exception {
+        byte[] xls;
+        try (HSSFWorkbook workbook = new HSSFWorkbook()) {
+            Sheet sheet = workbook.createSheet("large");
+            for (int i = 0; i < 10; i++) {
+                Row row = sheet.createRow(i);
+                for (int j = 0; j < 6; j++) {
+                    row.createCell(j).setCellValue("r" + i + "c" + j);
+                }
+            }
+            xls = toBytes(workbook);
+        }
+
+        service.generateThumbnail(new ByteArrayInputStream(xls), FILE_ID, "password", STORAGE_VERSION,
+                                  ThumbnailListener.NONE);
+
+        String html = page(1);
+        assertThat(html).contains("<td>r2c3</td></tr></table>");
+        assertThat(html).doesNotContain("r3c0");
+        assertThat(html).doesNotContain("c4");
+        assertThat(html).contains("<p>仅显示前 3 行、前 4 列</p>");
+    }
+
+    private EncryptedFileOutputStream open(Path path) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        pages.put(path, buffer);
+        EncryptedFileOutputStream out = mock(EncryptedFileOutputStream.class);
+        doAnswer(invocation -> {
+            buffer.write(invocation.<byte[]>getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(out).write(any(byte[].class), anyInt(), anyInt());
+        doAnswer(invocation -> {
+            buffer.write(invocation.<Integer>getArgument(0));
+            return null;
+        }).when(out).write(anyInt());
+        streams.add(out);
+        return out;
+    }
+
+    private String page(int index) {
+        ByteArrayOutputStream buffer = pages.get(Path.of(FILE_ID, String.valueOf(index)));
+        assertThat(buffer).isNotNull();
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void verifyClosed(EncryptedFileOutputStream stream) {
+        try {
+            verify(stream).close();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] toBytes(HSSFWorkbook workbook) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        workbook.write(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,219 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.github.dutianze.yotsuba.file.domain.FileBlob;
+import io.github.dutianze.yotsuba.file.domain.FileBlobRepository;
+import io.github.dutianze.yotsuba.file.domain.valueobject.StorageVersion;
+import io.github.dutianze.yotsuba.file.service.FileBlobService.ClaimedBlob;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+/**
+ * 以内存中的 file_blob 表代替数据库，事务管理器与 SQLite 一样同一时间只允许一个写事务
+ */
+class FileBlobServiceTest {
+
+    private static final String HASH = "a".repeat(64);
+    private static final StorageVersion STAGING_VERSION = StorageVersion.V7;
+    private static final StorageVersion CONTENT_ADDRESSED_VERSION = StorageVersion.V8;
+
+    private final Map<String, FileBlob> blobs = new ConcurrentHashMap<>();
+    /**
+     * ref_count 列，FileBlob 实体只在创建时带有计数
+     */
+    private final Map<String, Long> refCounts = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private AesCtrFileEncryptionService aesCtrFileEncryptionService;
+    private FileBlobService service;
+
+    @BeforeEach
+    void setUp() {
+        FileBlobRepository repository = mock(FileBlobRepository.class);
+        when(repository.acquire(anyString()))
+            .thenAnswer(invocation -> refCounts.computeIfPresent(invocation.getArgument(0),
+                                                                 (hash, count) -> count + 1) == null ? 0 : 1);
+        when(repository.adjustRefCount(anyString(), anyLong()))
+            .thenAnswer(invocation -> refCounts.computeIfPresent(
+                invocation.getArgument(0),
+                (hash, count) -> Math.max(0, count + invocation.<Long>getArgument(1))) == null ? 0 : 1);
+        when(repository.deleteIfUnreferenced(anyString())).thenAnswer(invocation -> {
+            String hash = invocation.getArgument(0);
+            if (refCounts.getOrDefault(hash, 1L) > 0) {
+                return 0;
+            }
+            refCounts.remove(hash);
+            blobs.remove(hash);
+            return 1;
+        });
+        when(repository.save(any(FileBlob.class))).thenAnswer(invocation -> {
+            FileBlob blob = invocation.getArgument(0);
+            blobs.put(blob.getContentHash(), blob);
+            refCounts.put(blob.getContentHash(), blob.getRefCount());
+            return blob;
+        });
+        when(repository.findById(anyString()))
+            .thenAnswer(invocation -> Optional.ofNullable(blobs.get(invocation.<String>getArgument(0))));
+
+        TransactionStatus transactionStatus = mock(TransactionStatus.class);
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenAnswer(invocation -> {
+            writeLock.lock();
+            return transactionStatus;
+        });
+        doAnswer(invocation -> {
+            writeLock.unlock();
+            return null;
+        }).when(transactionManager).commit(any());
+        doAnswer(invocation -> {
+            writeLock.unlock();
+            return null;
+        }).when(transactionManager).rollback(any());
+
+        aesCtrFileEncryptionService = mock(AesCtrFileEncryptionService.class);
+        when(aesCtrFileEncryptionService.deleteFile(anyString(), any(StorageVersion.class))).thenReturn(true);
+        service = new FileBlobService(repository, aesCtrFileEncryptionService, transactionManager);
+    }
+
+    @Test
+    void firstClaimMovesStagedFile() throws Exception {
+        ClaimedBlob claimed = claim("staging-1");
+
+        assertThat(claimed.created()).isTrue();
+        assertThat(refCounts).containsEntry(HASH, 1L);
+        verify(aesCtrFileEncryptionService).moveEncryptedFile(Path.of("staging-1"), STAGING_VERSION, Path.of(HASH),
+                                                              CONTENT_ADDRESSED_VERSION);
+        verify(aesCtrFileEncryptionService, never()).deleteFile(anyString(), any(StorageVersion.class));
+    }
+
+    @Test
+    void duplicateClaimCountsReferenceAndDiscardsStagedFile() throws Exception {
+        claim("staging-1");
+        ClaimedBlob duplicate = claim("staging-2");
+
+        assertThat(duplicate.created()).isFalse();
+        assertThat(duplicate.blob().getContentHash()).isEqualTo(HASH);
+        assertThat(refCounts).containsEntry(HASH, 2L);
+        verify(aesCtrFileEncryptionService, times(1)).moveEncryptedFile(any(Path.class), eq(STAGING_VERSION),
+                                                                        eq(Path.of(HASH)),
+                                                                        eq(CONTENT_ADDRESSED_VERSION));
+        verify(aesCtrFileEncryptionService).deleteFile("staging-2", STAGING_VERSION);
+    }
+
+    @Test
+    void releaseDeletesBlobOnlyWithLastReference() {
+        claim("staging-1");
+        claim("staging-2");
+
+        assertThat(service.release(HASH, CONTENT_ADDRESSED_VERSION)).isTrue();
+        assertThat(refCounts).containsEntry(HASH, 1L);
+        verify(aesCtrFileEncryptionService, never()).deleteFile(HASH, CONTENT_ADDRESSED_VERSION);
+
+        assertThat(service.release(HASH, CONTENT_ADDRESSED_VERSION)).isTrue();
+        assertThat(refCounts).doesNotContainKey(HASH);
+        assertThat(blobs).doesNotContainKey(HASH);
+        verify(aesCtrFileEncryptionService).deleteFile(HASH, CONTENT_ADDRESSED_VERSION);
+    }
+
+    @Test
+    void reclaimAfterDeleteWritesContentAgain() throws Exception {
+        claim("staging-1");
+        service.release(HASH, CONTENT_ADDRESSED_VERSION);
+
+        assertThat(claim("staging-2").created()).isTrue();
+        assertThat(refCounts).containsEntry(HASH, 1L);
+        verify(aesCtrFileEncryptionService).moveEncryptedFile(Path.of("staging-2"), STAGING_VERSION, Path.of(HASH),
+                                                              CONTENT_ADDRESSED_VERSION);
+    }
+
+    @Test
+    void concurrentDuplicateUploadsAndDeletesKeepCountExact() throws Exception {
+        int uploads = 16;
+        List<ClaimedBlob> claimed = runConcurrently(uploads, i -> claim("staging-" + i));
+
+        assertThat(claimed.stream().filter(ClaimedBlob::created).count()).isEqualTo(1L);
+        assertThat(refCounts).containsEntry(HASH, (long) uploads);
+        verify(aesCtrFileEncryptionService, times(1)).moveEncryptedFile(any(Path.class), eq(STAGING_VERSION),
+                                                                        eq(Path.of(HASH)),
+                                                                        eq(CONTENT_ADDRESSED_VERSION));
+        verify(aesCtrFileEncryptionService, times(uploads - 1)).deleteFile(anyString(), eq(STAGING_VERSION));
+
+        runConcurrently(uploads, i -> service.release(HASH, CONTENT_ADDRESSED_VERSION));
+
+        assertThat(refCounts).doesNotContainKey(HASH);
+        verify(aesCtrFileEncryptionService, times(1)).deleteFile(HASH, CONTENT_ADDRESSED_VERSION);
+    }
+
+    @Test
+    void failedMoveCreatesNoBlob() throws Exception {
+        doThrow(new IOException("disk full")).when(aesCtrFileEncryptionService)
+            .moveEncryptedFile(Path.of("staging-1"), STAGING_VERSION, Path.of(HASH), CONTENT_ADDRESSED_VERSION);
+
+        assertThatThrownBy(() -> claim("staging-1")).isInstanceOf(UncheckedIOException.class);
+        assertThat(refCounts).doesNotContainKey(HASH);
+
+        // 事务已回滚，之后的上传不受影响
+        assertThat(claim("staging-2").created()).isTrue();
+    }
+
+    private ClaimedBlob claim(String stagingPath) {
+        return service.claim(HASH, 100, Path.of(stagingPath), STAGING_VERSION, CONTENT_ADDRESSED_VERSION);
+    }
+
+    private static <T> List<T> runConcurrently(int count, IndexedTask<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                Callable<T> callable = () -> {
+                    start.await();
+                    return task.run(index);
+                };
+                futures.add(executor.submit(callable));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface IndexedTask<T> {
+
+        T run(int index) throws Exception;
+    }
+}
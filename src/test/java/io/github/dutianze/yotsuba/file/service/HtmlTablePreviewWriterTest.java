@@ -0,0 +1,104 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+
+class HtmlTablePreviewWriterTest {
+
+    private static final String TABLE = "<table border='1' cellspacing='0' cellpadding='3'>";
+
+    private final StringWriter out = new StringWriter();
+
+    @Test
+    void writesRowsAndEscapesValues() throws Exception {
+        HtmlTablePreviewWriter html = begin(10, 10);
+        html.cell(0, 0, "name");
+        html.cell(0, 1, "<b>&");
+        html.cell(1, 0, null);
+        html.finish();
+
+        assertThat(out.toString()).isEqualTo(
+            "<html><head><meta charset='UTF-8'></head><body>" + TABLE
+                + "<tr><td>name</td><td>&lt;b&gt;&amp;</td></tr><tr><td></td></tr>"
+                + "</table></body></html>");
+    }
+
+    @Test
+    void padsMissingCellsInSparseRows() throws Exception {
+        HtmlTablePreviewWriter html = begin(10, 10);
+        html.cell(0, 2, "c");
+        html.cell(0, 4, "e");
+        // 中间的空行不输出
+        html.cell(5, 1, "b");
+        html.finish();
+
+        assertThat(body()).isEqualTo("<tr><td></td><td></td><td>c</td><td></td><td>e</td></tr>"
+                                         + "<tr><td></td><td>b</td></tr>");
+    }
+
+    @Test
+    void continuesAfterPreviousCellWithoutColumn() throws Exception {
+        HtmlTablePreviewWriter html = begin(10, 10);
+        html.cell(0, -1, "a");
+        html.cell(0, -1, "b");
+        html.cell(0, 3, "d");
+        html.cell(0, -1, "e");
+        html.finish();
+
+        assertThat(body()).isEqualTo("<tr><td>a</td><td>b</td><td></td><td>d</td><td>e</td></tr>");
+    }
+
+    @Test
+    void stopsAtRowLimit() throws Exception {
+        HtmlTablePreviewWriter html = begin(2, 5);
+        assertThat(html.cell(0, 0, "1")).isTrue();
+        assertThat(html.cell(1, 0, "2")).isTrue();
+        // 同一行的后续单元格仍然写入
+        assertThat(html.cell(1, 1, "2b")).isTrue();
+        assertThat(html.cell(2, 0, "3")).isFalse();
+        html.finish();
+
+        assertThat(body()).isEqualTo("<tr><td>1</td></tr><tr><td>2</td><td>2b</td></tr>");
+        assertThat(out.toString()).contains("<p>仅显示前 2 行、前 5 列</p>");
+    }
+
+    @Test
+    void dropsCellsBeyondColumnLimit() throws Exception {
+        HtmlTablePreviewWriter html = begin(5, 2);
+        html.cell(0, 0, "a");
+        html.cell(0, 1, "b");
+        assertThat(html.cell(0, 2, "c")).isTrue();
+        assertThat(html.cell(0, -1, "d")).isTrue();
+        html.cell(1, 0, "x");
+        html.finish();
+
+        assertThat(body()).isEqualTo("<tr><td>a</td><td>b</td></tr><tr><td>x</td></tr>");
+        assertThat(out.toString()).contains("<p>仅显示前 5 行、前 2 列</p>");
+    }
+
+    @Test
+    void writesEmptyTable() throws Exception {
+        HtmlTablePreviewWriter html = begin(5, 5);
+        html.finish();
+
+        assertThat(body()).isEmpty();
+        assertThat(out.toString()).doesNotContain("<p>");
+    }
+
+    private HtmlTablePreviewWriter begin(int maxRows, int maxColumns) throws IOException {
+        HtmlTablePreviewWriter html = new HtmlTablePreviewWriter(out, maxRows, maxColumns);
+        html.begin();
+        return html;
+    }
+
+    /**
+     * table 标签内的内容
+     */
+    private String body() {
+        String html = out.toString();
+        return html.substring(html.indexOf(TABLE) + TABLE.length(), html.indexOf("</table>"));
+    }
+}
@@ -0,0 +1,279 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.dutianze.yotsuba.file.service.Mp4FaststartService.Remuxed;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.InputStreamSource;
+
+/**
+ * 以手工拼接的 box 构造 MP4，检查 moov 移动后块偏移仍指向同一份数据
+ */
+class Mp4FaststartServiceTest {
+
+    private static final String VIDEO = "video/mp4";
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl");
+    private static final byte[] FTYP = box("ftyp", "isom".getBytes(StandardCharsets.ISO_8859_1), new byte[4]);
+
+    private final Mp4FaststartService service = new Mp4FaststartService();
+
+    @Test
+    void movesMoovBeforeMdatAndShiftsStco() throws Exception {
+        byte[] mdat = box("mdat", pattern(100));
+        byte[] free = box("free", pattern(10));
+        long mdatOffset = FTYP.length;
+        long freeOffset = mdatOffset + mdat.length;
+        long moovOffset = freeOffset + free.length;
+        int moovLength = moov(stco(0, 0, 0, 0)).length;
+        long udtaOffset = moovOffset + moovLength;
+        // 分别指向 mdat、mdat 与 moov 之间的 box、moov 之后的 box
+        long[] offsets = {mdatOffset + 8, mdatOffset + 58, freeOffset + 9, udtaOffset + 8};
+        byte[] moov = moov(stco(offsets));
+        byte[] udta = box("udta", pattern(6));
+        byte[] original = concat(FTYP, mdat, free, moov, udta);
+
+        Remuxed remuxed = service.prepare(source(original), VIDEO);
+
+        assertThat(remuxed).isNotNull();
+        byte[] output = readAll(remuxed);
+        assertThat(output).hasSize(original.length);
+        assertThat(remuxed.length()).isEqualTo(original.length);
+        assertThat(topLevelTypes(output)).containsExactly("ftyp", "moov", "mdat", "free", "udta");
+
+        long[] shifted = chunkOffsets(remuxed.moov(), "stco");
+        assertThat(shifted).containsExactly(offsets[0] + moov.length, offsets[1] + moov.length,
+                                            offsets[2] + moov.length, offsets[3]);
+        for (int i = 0; i < offsets.length; i++) {
+            assertThat(output[(int) shifted[i]]).isEqualTo(original[(int) offsets[i]]);
+        }
+    }
+
+    @Test
+    void shiftsCo64Entries() throws Exception {
+        byte[] mdat = box("mdat", pattern(40));
+        long[] offsets = {FTYP.length + 8, FTYP.length + 30};
+        byte[] moov = moov(co64(offsets));
+        byte[] original = concat(FTYP, mdat, moov);
+
+        Remuxed remuxed = service.prepare(source(original), VIDEO);
+
+        assertThat(remuxed).isNotNull();
+        byte[] output = readAll(remuxed);
+        assertThat(topLevelTypes(output)).containsExactly("ftyp", "moov", "mdat");
+        long[] shifted = chunkOffsets(remuxed.moov(), "co64");
+        assertThat(shifted).containsExactly(offsets[0] + moov.length, offsets[1] + moov.length);
+        for (int i = 0; i < offsets.length; i++) {
+            assertThat(output[(int) shifted[i]]).isEqualTo(original[(int) offsets[i]]);
+        }
+    }
+
+    @Test
+    void upgradesStcoToCo64WhenShiftedOffsetExceeds32Bits() throws Exception {
+        // 4GB 的 mdat 以 64 位 largesize 表示，内容按需生成，不占用内存
+        long mdatSize = 0x1_0000_0000L;
+        byte[] mdatHeader = ByteBuffer.allocate(16).putInt(1).put("mdat".getBytes(StandardCharsets.ISO_8859_1))
+            .putLong(mdatSize).array();
+        long[] offsets = {FTYP.length + 16, 0xFFFF_FFF0L};
+        byte[] moov = moov(stco(offsets));
+        long originalLength = FTYP.length + mdatSize + moov.length;
+
+        Remuxed remuxed = service.prepare(
+            () -> new SparseInputStream(concat(FTYP, mdatHeader), mdatSize - 16, moov), VIDEO);
+
+        assertThat(remuxed).isNotNull();
+        byte[] relocated = remuxed.moov();
+        // 每个条目从 4 字节变为 8 字节
+        assertThat(relocated).hasSize(moov.length + 4 * offsets.length);
+        assertThat(remuxed.length()).isEqualTo(originalLength + 4 * offsets.length);
+        assertThat(chunkOffsets(relocated, "stco")).isNull();
+        assertThat(chunkOffsets(relocated, "co64"))
+            .containsExactly(offsets[0] + relocated.length, offsets[1] + relocated.length);
+    }
+
+    @Test
+    void keepsFileWhenMoovAlreadyFirst() throws Exception {
+        byte[] original = concat(FTYP, moov(stco(100)), box("mdat", pattern(20)));
+
+        assertThat(service.prepare(source(original), VIDEO)).isNull();
+    }
+
+    @Test
+    void keepsFragmentedFile() throws Exception {
+        byte[] original = concat(FTYP, box("mdat", pattern(20)), box("moof", pattern(8)), moov(stco(24)));
+
+        assertThat(service.prepare(source(original), VIDEO)).isNull();
+    }
+
+    @Test
+    void keepsMalformedMoov() throws Exception {
+        byte[] stbl = box("stbl", stco(24));
+        // 子 box 声明的长度超出父 box
+        ByteBuffer.wrap(stbl).putInt(8, 1000);
+        byte[] moov = box("moov", box("trak", box("mdia", box("minf", stbl))));
+        byte[] original = concat(FTYP, box("mdat", pattern(20)), moov);
+
+        assertThat(service.prepare(source(original), VIDEO)).isNull();
+    }
+
+    @Test
+    void ignoresNonMediaContent() throws Exception {
+        byte[] original = concat(FTYP, box("mdat", pattern(20)), moov(stco(24)));
+
+        assertThat(service.prepare(source(original), "application/octet-stream")).isNull();
+        assertThat(service.prepare(source(original), null)).isNull();
+    }
+
+    private static byte[] moov(byte[] chunkOffsets) {
+        byte[] mvhd = box("mvhd", new byte[20]);
+        return box("moov", mvhd, box("trak", box("mdia", box("minf", box("stbl", chunkOffsets)))));
+    }
+
+    private static byte[] stco(long... offsets) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + offsets.length * 4).putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            payload.putInt((int) offset);
+        }
+        return box("stco", payload.array());
+    }
+
+    private static byte[] co64(long... offsets) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + offsets.length * 8).putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            payload.putLong(offset);
+        }
+        return box("co64", payload.array());
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] payload = concat(children);
+        return ByteBuffer.allocate(8 + payload.length).putInt(8 + payload.length)
+            .put(type.getBytes(StandardCharsets.ISO_8859_1)).put(payload).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 7 + 1);
+        }
+        return bytes;
+    }
+
+    private static InputStreamSource source(byte[] content) {
+        return () -> new ByteArrayInputStream(content);
+    }
+
+    private static byte[] readAll(Remuxed remuxed) throws IOException {
+        try (InputStream in = remuxed.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static List<String> topLevelTypes(byte[] content) {
+        List<String> types = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            types.add(new String(content, start + 4, 4, StandardCharsets.ISO_8859_1));
+            buffer.position(start + size);
+        }
+        return types;
+    }
+
+    /**
+     * moov 中第一个 type 类型的块偏移表，不存在时返回 null
+     */
+    private static long[] chunkOffsets(byte[] moov, String type) {
+        return chunkOffsets(ByteBuffer.wrap(moov), type);
+    }
+
+    private static long[] chunkOffsets(ByteBuffer buffer, String type) {
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            byte[] name = new byte[4];
+            buffer.get(name);
+            String boxType = new String(name, StandardCharsets.ISO_8859_1);
+            ByteBuffer payload = buffer.slice(start + 8, size - 8);
+            if (boxType.equals(type)) {
+                long[] offsets = new long[payload.getInt(4)];
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = "co64".equals(type) ? payload.getLong(8 + i * 8)
+                        : Integer.toUnsignedLong(payload.getInt(8 + i * 4));
+                }
+                return offsets;
+            }
+            if (CONTAINERS.contains(boxType)) {
+                long[] offsets = chunkOffsets(payload, type);
+                if (offsets != null) {
+                    return offsets;
+                }
+            }
+            buffer.position(start + size);
+        }
+        return null;
+    }
+
+    /**
+     * 头部、若干个零字节、尾部，零字节部分不占用内存，跳过时不逐字节读取
+     */
+    private static final class SparseInputStream extends InputStream {
+
+        private final byte[] head;
+        private final long gap;
+        private final byte[] tail;
+        private long position;
+
+        private SparseInputStream(byte[] head, long gap, byte[] tail) {
+            this.head = head;
+            this.gap = gap;
+            this.tail = tail;
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long length = head.length + gap + tail.length;
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            for (int i = 0; i < n; i++) {
+                long p = position + i;
+                b[off + i] = p < head.length ? head[(int) p]
+                    : p < head.length + gap ? 0 : tail[(int) (p - head.length - gap)];
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, head.length + gap + tail.length - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.dutianze.yotsuba.file.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.github.dutianze.yotsuba.file.service.SegmentedGcmFormat.Params;
+import io.github.dutianze.yotsuba.file.service.SegmentedGcmFormat.SegmentInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * 分段认证加密格式的读写，以及调换、篡改、截断分段时的认证失败
+ */
+class SegmentedGcmFormatTest {
+
+    private static final int SEGMENT_SIZE = 16;
+
+    @TempDir
+    Path tempDir;
+
+    private SecretKey key;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        key = keyGenerator.generateKey();
+        file = tempDir.resolve("data.encrypted");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE, 100})
+    void roundTripsPlainContent(int length) throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        byte[] plain = randomBytes(length);
+        write(params, plain);
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            assertThat(SegmentedGcmFormat.readEncodedLength(channel)).isEqualTo(length);
+            assertThat(SegmentedGcmFormat.readDecodedLength(channel, params)).isEqualTo(length);
+            assertThat(channel.size()).isEqualTo(SegmentedGcmFormat.HEADER_LENGTH + length
+                + params.segmentCount(channel.size() - SegmentedGcmFormat.HEADER_LENGTH)
+                * SegmentedGcmFormat.SEGMENT_OVERHEAD);
+        }
+        assertThat(read(params, 0)).isEqualTo(plain);
+    }
+
+    @Test
+    void readsFromOffsetAndRange() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        byte[] plain = randomBytes(100);
+        write(params, plain);
+
+        assertThat(read(params, 20)).isEqualTo(Arrays.copyOfRange(plain, 20, 100));
+        try (FileChannel channel = FileChannel.open(file)) {
+            // 跨越三个分段
+            assertThat(SegmentedGcmFormat.readRange(channel, params, 10, 30))
+                .isEqualTo(Arrays.copyOfRange(plain, 10, 40));
+            assertThatThrownBy(() -> SegmentedGcmFormat.readRange(channel, params, 90, 11))
+                .isInstanceOf(IOException.class);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 5, 1000})
+    void roundTripsGzipContentWithDecodedLength(int length) throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.GZIP);
+        byte[] plain = new byte[length];
+        Arrays.fill(plain, (byte) 'a');
+        write(params, plain);
+
+        try (FileChannel channel = FileChannel.open(file)) {
+            assertThat(SegmentedGcmFormat.readCoding(channel)).isEqualTo(ContentCoding.GZIP);
+            assertThat(SegmentedGcmFormat.readDecodedLength(channel, params)).isEqualTo(length);
+            // 编码后的长度不包含原始长度
+            assertThat(SegmentedGcmFormat.readEncodedLength(channel))
+                .isEqualTo(params.encodedLength(channel.size() - SegmentedGcmFormat.HEADER_LENGTH));
+        }
+        try (InputStream in = ContentCoding.GZIP.decode(open(params, 0))) {
+            assertThat(in.readAllBytes()).isEqualTo(plain);
+        }
+    }
+
+    @Test
+    void rejectsFinalSegmentNotMarkedLast() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        byte[] plain = randomBytes(10);
+        writeHeader(params);
+        Files.write(file, SegmentedGcmFormat.encryptSegments(params, 0, plain, plain.length, false),
+                    StandardOpenOption.APPEND);
+
+        assertThatThrownBy(() -> read(params, 0))
+            .isInstanceOf(IOException.class)
+            .hasCauseInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void rejectsTamperedSegment() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        write(params, randomBytes(40));
+        flipByte(params.position(1) + SegmentedGcmFormat.NONCE_LENGTH + 3);
+
+        assertThatThrownBy(() -> read(params, 0))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Segment 1");
+        // 未涉及被篡改分段的读取不受影响
+        try (FileChannel channel = FileChannel.open(file)) {
+            assertThat(SegmentedGcmFormat.readRange(channel, params, 0, SEGMENT_SIZE)).hasSize(SEGMENT_SIZE);
+        }
+    }
+
+    @Test
+    void rejectsSwappedSegments() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        write(params, randomBytes(40));
+        byte[] data = Files.readAllBytes(file);
+        int first = (int) params.position(0);
+        int size = (int) params.cipherSegmentSize();
+        byte[] segment = Arrays.copyOfRange(data, first, first + size);
+        System.arraycopy(data, first + size, data, first, size);
+        System.arraycopy(segment, 0, data, first + size, size);
+        Files.write(file, data);
+
+        assertThatThrownBy(() -> read(params, 0)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsTamperedSegmentSizeField() throws Exception {
+        write(new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY), randomBytes(40));
+        // 把压缩编码改为 GZIP，分段位置不变但附加认证数据不同
+        flipByte(SegmentedGcmFormat.SEGMENT_SIZE_OFFSET, (byte) ContentCoding.GZIP.id());
+
+        Params tampered;
+        try (FileChannel channel = FileChannel.open(file)) {
+            tampered = new Params(key, SEGMENT_SIZE, SegmentedGcmFormat.readCoding(channel));
+        }
+        assertThat(tampered.coding()).isEqualTo(ContentCoding.GZIP);
+        assertThatThrownBy(() -> read(tampered, 0))
+            .isInstanceOf(IOException.class)
+            .hasCauseInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void detectsTruncationAtSegmentBoundary() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        write(params, randomBytes(40));
+        truncate(params.position(2));
+
+        // 剩下的最后一段加密时并不是最后一段
+        assertThatThrownBy(() -> read(params, 0))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("Segment 1");
+    }
+
+    @Test
+    void detectsTruncationInsideSegment() throws Exception {
+        Params params = new Params(key, SEGMENT_SIZE, ContentCoding.IDENTITY);
+        write(params, randomBytes(40));
+        truncate(Files.size(file) - 3);
+
+        assertThatThrownBy(() -> read(params, 0)).isInstanceOf(IOException.class);
+    }
+
+    private void write(Params params, byte[] plain) throws IOException {
+        writeHeader(params);
+        try (OutputStream out = SegmentedGcmFormat.openEncodingStream(
+            Files.newOutputStream(file, StandardOpenOption.APPEND), params)) {
+            out.write(plain);
+        }
+    }
+
+    /**
+     * 测试只关心分段大小字段，主密钥 ID 与包装后的数据密钥留空
+     */
+    private void writeHeader(Params params) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SegmentedGcmFormat.HEADER_LENGTH)
+            .putInt(SegmentedGcmFormat.SEGMENT_SIZE_OFFSET,
+                    SegmentedGcmFormat.segmentField(params.segmentSize(), params.coding()));
+        Files.write(file, header.array());
+    }
+
+    private SegmentInputStream open(Params params, long offset) throws IOException {
+        return new SegmentInputStream(FileChannel.open(file), params, offset);
+    }
+
+    private byte[] read(Params params, long offset) throws IOException {
+        try (InputStream in = open(params, offset)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        flipByte(position, (byte) 1);
+    }
+
+    private void flipByte(long position, byte mask) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        data[(int) position] ^= mask;
+        Files.write(file, data);
+    }
+
+    private void truncate(long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
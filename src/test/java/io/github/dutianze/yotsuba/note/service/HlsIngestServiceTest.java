@@ -0,0 +1,309 @@
+package io.github.dutianze.yotsuba.note.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.sun.net.httpserver.HttpServer;
+import io.github.dutianze.yotsuba.file.domain.FileResource;
+import io.github.dutianze.yotsuba.file.domain.valueobject.FileResourceId;
+import io.github.dutianze.yotsuba.file.service.FileService;
+import io.github.dutianze.yotsuba.note.config.HlsIngestProperties;
+import io.github.dutianze.yotsuba.note.domain.NoteRepository;
+import io.github.dutianze.yotsuba.note.domain.valueobject.NoteId;
+import io.github.dutianze.yotsuba.note.dto.HlsIngestProgress;
+import io.github.dutianze.yotsuba.note.dto.HlsIngestProgress.State;
+import io.github.dutianze.yotsuba.shared.common.ReferenceCategory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * 以本地 HTTP 服务模拟 HLS 源站
+ */
+class HlsIngestServiceTest {
+
+    private static final String NOTE_ID = "note-1";
+    private static final HlsIngestProperties PROPERTIES = new HlsIngestProperties(DataSize.ofKilobytes(4),
+                                                                                  DataSize.ofBytes(64));
+
+    private final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private NoteRepository noteRepository;
+    private FileService fileService;
+    private HlsIngestService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.start();
+
+        noteRepository = mock(NoteRepository.class);
+        when(noteRepository.existsById(new NoteId(NOTE_ID))).thenReturn(true);
+
+        FileResource fileResource = mock(FileResource.class);
+        when(fileResource.getId()).thenReturn(new FileResourceId("file-1"));
+        fileService = mock(FileService.class);
+        when(fileService.upload(any(InputStream.class), anyString(), anyString(), anyString(), anyString(),
+                                any(ReferenceCategory.class)))
+            .thenAnswer(invocation -> {
+                try (InputStream in = invocation.getArgument(0)) {
+                    in.transferTo(uploaded);
+                }
+                return fileResource;
+            });
+
+        // 放行本地服务，其余地址按公网规则检查
+        service = new HlsIngestService(fileService, noteRepository, PROPERTIES,
+                                       address -> address.isLoopbackAddress()
+                                           || HlsIngestService.isPublicAddress(address));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    void concatenatesSegmentsOfHighestBandwidthVariant() {
+        serve("/master.m3u8", """
+            #EXTM3U
+            #EXT-X-STREAM-INF:BANDWIDTH=100000
+            low/index.m3u8
+            #EXT-X-STREAM-INF:BANDWIDTH=900000
+            high/index.m3u8
+            """);
+        serve("/low/index.m3u8", mediaPlaylist("low-0.ts"));
+        serve("/high/index.m3u8", mediaPlaylist("seg-0.ts", "seg-1.ts", "seg-2.ts"));
+        for (int i = 0; i < 3; i++) {
+            serve("/high/seg-" + i + ".ts", "segment-" + i + ";");
+        }
+
+        HlsIngestProgress progress = await(service.start(url("/master.m3u8"), NOTE_ID, "video.ts"));
+
+        assertThat(progress.state()).isEqualTo(State.COMPLETED);
+        assertThat(progress.fileResourceId()).isEqualTo("file-1");
+        assertThat(progress.totalSegments()).isEqualTo(3);
+        assertThat(progress.downloadedSegments()).isEqualTo(3);
+        assertThat(uploaded.toString(StandardCharsets.UTF_8)).isEqualTo("segment-0;segment-1;segment-2;");
+    }
+
+    @Test
+    void decryptsAes128SegmentsWithSequenceIv() throws Exception {
+        byte[] key = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        serve("/index.m3u8", """
+            #EXTM3U
+            #EXT-X-MEDIA-SEQUENCE:7
+            #EXT-X-KEY:METHOD=AES-128,URI="key.bin"
+            #EXTINF:4,
+            seg-0.ts
+            #EXTINF:4,
+            seg-1.ts
+            #EXT-X-ENDLIST
+            """);
+        serve("/key.bin", key);
+        serve("/seg-0.ts", encrypt(key, 7, "first;"));
+        serve("/seg-1.ts", encrypt(key, 8, "second;"));
+
+        HlsIngestProgress progress = await(service.start(url("/index.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.COMPLETED);
+        assertThat(uploaded.toString(StandardCharsets.UTF_8)).isEqualTo("first;second;");
+    }
+
+    @Test
+    void followsRedirectsAndResolvesAgainstFinalUrl() {
+        redirect("/moved.m3u8", url("/media/index.m3u8"));
+        serve("/media/index.m3u8", mediaPlaylist("seg-0.ts"));
+        // 相对地址相对重定向后的地址解析
+        serve("/media/seg-0.ts", "payload");
+
+        HlsIngestProgress progress = await(service.start(url("/moved.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.COMPLETED);
+        assertThat(uploaded.toString(StandardCharsets.UTF_8)).isEqualTo("payload");
+    }
+
+    @Test
+    void rejectsRedirectToPrivateAddress() {
+        redirect("/index.m3u8", "http://169.254.169.254/latest/meta-data/");
+
+        HlsIngestProgress progress = await(service.start(url("/index.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.FAILED);
+        assertThat(progress.error()).contains("169.254.169.254");
+        // 被拒绝的目标不重试
+        assertThat(requests).hasValue(1);
+    }
+
+    @Test
+    void rejectsSegmentOnPrivateAddress() {
+        serve("/index.m3u8", """
+            #EXTM3U
+            #EXTINF:4,
+            http://10.0.0.1/seg-0.ts
+            #EXT-X-ENDLIST
+            """);
+
+        HlsIngestProgress progress = await(service.start(url("/index.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.FAILED);
+        assertThat(progress.error()).contains("10.0.0.1");
+    }
+
+    @Test
+    void abortsSegmentLargerThanLimit() {
+        serve("/index.m3u8", mediaPlaylist("seg-0.ts"));
+        // 不声明 Content-Length，按接收到的字节数中止
+        server.createContext("/seg-0.ts", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 16; i++) {
+                    out.write(new byte[16]);
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+                // 客户端中止
+            }
+        });
+
+        HlsIngestProgress progress = await(service.start(url("/index.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.FAILED);
+        assertThat(progress.error()).contains("exceeds 64 bytes");
+        // 超过上限不重试
+        assertThat(requests).hasValue(2);
+    }
+
+    @Test
+    void rejectsDeclaredLengthOverLimit() {
+        serve("/index.m3u8", mediaPlaylist("seg-0.ts"));
+        serve("/seg-0.ts", new byte[65]);
+
+        HlsIngestProgress progress = await(service.start(url("/index.m3u8"), NOTE_ID, null));
+
+        assertThat(progress.state()).isEqualTo(State.FAILED);
+        assertThat(progress.error()).contains("exceeds 64 bytes");
+    }
+
+    @Test
+    void rejectsLoopbackPlaylistByDefault() {
+        serve("/index.m3u8", mediaPlaylist("seg-0.ts"));
+        HlsIngestService defaultService = new HlsIngestService(fileService, noteRepository, PROPERTIES);
+        try {
+            assertThatThrownBy(() -> defaultService.start(url("/index.m3u8"), NOTE_ID, null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("not a public address");
+        } finally {
+            defaultService.shutdown();
+        }
+        assertThat(requests).hasValue(0);
+    }
+
+    @Test
+    void rejectsUnknownNoteBeforeStarting() {
+        serve("/index.m3u8", mediaPlaylist("seg-0.ts"));
+
+        assertThatThrownBy(() -> service.start(url("/index.m3u8"), "missing", null))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("Note not found");
+        assertThatThrownBy(() -> service.start(url("/index.m3u8"), " ", null))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThat(requests).hasValue(0);
+    }
+
+    @Test
+    void rejectsNonHttpSchemes() {
+        assertThatThrownBy(() -> service.start("file:///etc/passwd", NOTE_ID, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"127.0.0.1", "0.0.0.0", "0.1.2.3", "10.1.2.3", "172.16.0.1", "192.168.1.1",
+        "169.254.169.254", "100.64.0.1", "224.0.0.1", "::1", "::", "fe80::1", "fd00::1", "fc00::1",
+        "::ffff:127.0.0.1"})
+    void nonPublicAddresses(String address) throws Exception {
+        assertThat(HlsIngestService.isPublicAddress(InetAddress.getByName(address))).isFalse();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"8.8.8.8", "1.1.1.1", "100.128.0.1", "2001:4860:4860::8888"})
+    void publicAddresses(String address) throws Exception {
+        assertThat(HlsIngestService.isPublicAddress(InetAddress.getByName(address))).isTrue();
+    }
+
+    private HlsIngestProgress await(String jobId) {
+        return service.subscribe(jobId)
+            .filter(HlsIngestProgress::finished)
+            .blockLast(Duration.ofSeconds(10));
+    }
+
+    private String url(String path) {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort()
+            + path;
+    }
+
+    private void serve(String path, String body) {
+        serve(path, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void serve(String path, byte[] body) {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    private void redirect(String path, String location) {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Location", location);
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+    }
+
+    private static String mediaPlaylist(String... segments) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n");
+        for (String segment : segments) {
+            playlist.append("#EXTINF:4,\n").append(segment).append('\n');
+        }
+        return playlist.append("#EXT-X-ENDLIST\n").toString();
+    }
+
+    private static byte[] encrypt(byte[] key, long sequence, String plainText) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                        new IvParameterSpec(ByteBuffer.allocate(16).putLong(8, sequence).array()));
+            return cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}